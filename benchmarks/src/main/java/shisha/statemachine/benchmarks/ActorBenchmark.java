@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.strategy.ActorScheduler;
+
+/**
+ * Events spread over <code>machines</code> actor state machines sharing an
+ * {@link ActorScheduler} of <code>threads</code> threads. Every invocation
+ * sends one event to {@value #BATCH} consecutive machines and waits for all
+ * of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActorBenchmark {
+    static final int BATCH = 1000;
+
+    @Param({ "1000", "100000" })
+    public int machines;
+
+    @Param({ "2", "4" })
+    public int threads;
+
+    private ActorScheduler scheduler;
+    private StateMachine[] statemachines;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        private int next;
+        private final CompletableFuture<?>[] results = new CompletableFuture<?>[BATCH];
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        scheduler = new ActorScheduler(threads);
+        CompiledStateMachineDefinition definition = Definitions.ring(4).compile();
+        statemachines = new StateMachine[machines];
+        for (int i = 0; i < machines; i++)
+            statemachines[i] = StateMachines.newActor(definition, scheduler);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH)
+    public void processEventAsync(Producer producer) {
+        for (int i = 0; i < BATCH; i++) {
+            producer.results[i] = statemachines[producer.next].processEventAsync(Definitions.NEXT, null);
+            producer.next = (producer.next + 1) % machines;
+        }
+        CompletableFuture.allOf(producer.results).join();
+    }
+}
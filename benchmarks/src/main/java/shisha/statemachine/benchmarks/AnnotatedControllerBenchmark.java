@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+
+/**
+ * Compares the controllers bound to annotated methods by
+ * {@link StateMachines#newNonReentrant(Object)} with controllers invoking the
+ * same methods through {@link Method#invoke}, the way annotated state machines
+ * were wired before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnotatedControllerBenchmark {
+    private PingPong bound;
+    private PingPong reflective;
+
+    private StateMachine boundMachine;
+    private StateMachine reflectiveMachine;
+
+    private TransitionController boundController;
+    private TransitionController reflectiveController;
+    private TransitionInfo info;
+
+    @Setup
+    public void setup() throws Exception {
+        bound = new PingPong();
+        boundMachine = StateMachines.newNonReentrant(bound);
+
+        reflective = new PingPong();
+        reflectiveMachine = StateMachines.newNonReentrant(reflectiveDefinition(reflective));
+
+        boundController = ((CompiledStateMachineDefinition) boundMachine.getDefinition()).getTransitionController(
+                PingPong.STATE_A, PingPong.PING);
+        reflectiveController = reflectiveTransition(PingPong.class.getMethod("onPing", TransitionInfo.class),
+                reflective);
+        info = new TransitionInfo(PingPong.STATE_A, PingPong.PING, PingPong.STATE_B, null);
+    }
+
+    @Benchmark
+    public int boundControllerCall() {
+        boundController.execute(info);
+        return bound.counter;
+    }
+
+    @Benchmark
+    public int reflectiveControllerCall() {
+        reflectiveController.execute(info);
+        return reflective.counter;
+    }
+
+    /**
+     * A complete round trip: two transitions with their exit, transition and
+     * enter phases
+     */
+    @Benchmark
+    public int boundRoundTrip() throws Exception {
+        boundMachine.processEvent(PingPong.PING, null);
+        boundMachine.processEvent(PingPong.PONG, null);
+        return bound.counter;
+    }
+
+    @Benchmark
+    public int reflectiveRoundTrip() throws Exception {
+        reflectiveMachine.processEvent(PingPong.PING, null);
+        reflectiveMachine.processEvent(PingPong.PONG, null);
+        return reflective.counter;
+    }
+
+    private static CompiledStateMachineDefinition reflectiveDefinition(PingPong callee) throws Exception {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState(PingPong.STATE_A, true, false);
+        definition.defineState(PingPong.STATE_B);
+        definition.defineEvent(PingPong.PING);
+        definition.defineEvent(PingPong.PONG);
+
+        definition.defineTransition(PingPong.STATE_A, PingPong.PING, PingPong.STATE_B,
+                reflectiveTransition(PingPong.class.getMethod("onPing", TransitionInfo.class), callee));
+        definition.defineTransition(PingPong.STATE_B, PingPong.PONG, PingPong.STATE_A,
+                reflectiveTransition(PingPong.class.getMethod("onPong", TransitionInfo.class), callee));
+        definition.defineExitState(PingPong.STATE_A,
+                reflectiveExitState(PingPong.class.getMethod("onExitA", TransitionInfo.class), callee));
+        definition.defineEnterState(PingPong.STATE_B,
+                reflectiveEnterState(PingPong.class.getMethod("onEnterB", TransitionInfo.class), callee));
+
+        return definition.compile();
+    }
+
+    private static TransitionController reflectiveTransition(final Method method, final Object callee) {
+        return new TransitionController() {
+            public void execute(TransitionInfo event) {
+                try {
+                    method.invoke(callee, event);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } catch (InvocationTargetException swallow) {
+                    // Same contract as the annotated controllers
+                }
+            }
+        };
+    }
+
+    private static ExitStateController reflectiveExitState(final Method method, final Object callee) {
+        return new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                Boolean result = null;
+                try {
+                    result = (Boolean) method.invoke(callee, event);
+                    if (result == null)
+                        result = true;
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } catch (InvocationTargetException swallow) {
+                    // Same contract as the annotated controllers
+                }
+                return result;
+            }
+        };
+    }
+
+    private static EnterStateController reflectiveEnterState(final Method method, final Object callee) {
+        return new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                EventInfo result = null;
+                try {
+                    result = (EventInfo) method.invoke(callee, event);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } catch (InvocationTargetException swallow) {
+                    // Same contract as the annotated controllers
+                }
+                return result;
+            }
+        };
+    }
+}
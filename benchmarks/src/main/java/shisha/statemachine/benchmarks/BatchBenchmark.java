@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.EventOutcome;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachines;
+
+/**
+ * A burst of events for the same state machine, processed one by one or as
+ * a single batch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+    @Param({ "16", "256" })
+    public int size;
+
+    private StateMachine machine;
+    private List<EventInfo> events;
+
+    @Setup
+    public void setup() throws Exception {
+        machine = StateMachines.newNonReentrant(Definitions.ring(4).compile());
+        events = new ArrayList<EventInfo>(size);
+        for (int i = 0; i < size; i++)
+            events.add(new EventInfo(Definitions.NEXT, null));
+    }
+
+    @Benchmark
+    public void oneByOne() throws Exception {
+        for (int i = 0; i < events.size(); i++) {
+            EventInfo event = events.get(i);
+            machine.processEvent(event.getEvent(), event.getObject());
+        }
+    }
+
+    @Benchmark
+    public List<EventOutcome> batch() throws Exception {
+        return machine.processEvents(events);
+    }
+}
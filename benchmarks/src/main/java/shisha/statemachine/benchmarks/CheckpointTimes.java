@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.io.File;
+import java.util.Map;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.journal.CheckpointRecovery;
+import shisha.statemachine.journal.Checkpointer;
+import shisha.statemachine.strategy.FlyweightStrategy;
+
+/**
+ * Time to write a full checkpoint of <code>machines</code> flyweight state
+ * machines, an incremental one after 1% of them moved, and to restore them,
+ * both into an array with a {@link CheckpointRecovery.Visitor} and into the
+ * map returned by {@link CheckpointRecovery#restore}. Not a JMH benchmark,
+ * single runs are what a restart looks like. Run it with:
+ *
+ * <pre>
+ * java -Xmx8g -cp target/benchmarks.jar shisha.statemachine.benchmarks.CheckpointTimes [machines] [directory]
+ * </pre>
+ */
+public class CheckpointTimes {
+    public static void main(String[] args) throws Exception {
+        int machines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File directory = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"),
+                "checkpoint-times");
+        final CompiledStateMachineDefinition definition = Definitions.ring(4).compile();
+
+        Checkpointer checkpointer = new Checkpointer(directory, definition);
+        StateMachineImpl[] statemachines = new StateMachineImpl[machines];
+        for (int i = 0; i < machines; i++) {
+            statemachines[i] = new StateMachineImpl(definition, FlyweightStrategy.SHARED);
+            for (int j = 0; j < i % 4; j++)
+                statemachines[i].processEvent(Definitions.NEXT, null);
+            checkpointer.register(i, statemachines[i]);
+        }
+
+        long start = System.nanoTime();
+        File full = checkpointer.fullCheckpoint();
+        report("full checkpoint", start, full.length());
+
+        for (int i = 0; i < machines; i += 100)
+            statemachines[i].processEvent(Definitions.NEXT, null);
+        start = System.nanoTime();
+        File incremental = checkpointer.checkpoint();
+        report("incremental (1%)", start, incremental.length());
+        statemachines = null;
+
+        final StateMachineImpl[] restored = new StateMachineImpl[machines];
+        start = System.nanoTime();
+        CheckpointRecovery.scan(directory, definition, new CheckpointRecovery.Visitor() {
+            public void visit(long machineId, int stateId, long sequence) {
+                StateMachineImpl statemachine = restored[(int) machineId];
+                if (statemachine == null) {
+                    try {
+                        statemachine = new StateMachineImpl(definition, FlyweightStrategy.SHARED);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    restored[(int) machineId] = statemachine;
+                }
+                statemachine.restore(stateId, sequence);
+            }
+        });
+        report("restore into an array", start, -1);
+
+        start = System.nanoTime();
+        Map<Long, StateMachineImpl> map = CheckpointRecovery.restore(directory, definition, FlyweightStrategy.SHARED);
+        report("restore into a map", start, -1);
+        System.out.println(map.size() + " state machines");
+
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private static void report(String name, long start, long bytes) {
+        System.out.printf("%-24s %8.0f ms%s%n", name, (System.nanoTime() - start) / 1e6,
+                bytes < 0 ? "" : String.format(" %8.1f MB", bytes / 1e6));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.exceptions.StateMachineException;
+
+/**
+ * Several threads processing events on the same {@link StateMachineImpl}.
+ * Events the strategy rejects, instead of processing them, are counted
+ * apart in <code>rejected</code>. The optimistic strategy never rejects
+ * events, it retries them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+    @Param({ "nonReentrant", "optimistic", "flyweight" })
+    public String strategy;
+
+    private StateMachine machine;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Outcome {
+        public long processed;
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            processed = 0;
+            rejected = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        if ("optimistic".equals(strategy))
+            machine = StateMachines.newOptimistic(Definitions.ring(4).compile());
+        else if ("flyweight".equals(strategy))
+            machine = StateMachines.newFlyweight(Definitions.ring(4).compile());
+        else
+            machine = StateMachines.newNonReentrant(Definitions.ring(4).compile());
+    }
+
+    private void processEvent(Outcome outcome) {
+        try {
+            machine.processEvent(Definitions.NEXT, null);
+            outcome.processed++;
+        } catch (StateMachineException e) {
+            outcome.rejected++;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void oneThread(Outcome outcome) {
+        processEvent(outcome);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void fourThreads(Outcome outcome) {
+        processEvent(outcome);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void sixteenThreads(Outcome outcome) {
+        processEvent(outcome);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachineDefinitionImpl;
+
+/**
+ * Cost of defining state machines with the {@link StateMachineDefinitionImpl}
+ * methods and compiling them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefinitionBenchmark {
+    @Param({ "16", "1024" })
+    public int states;
+
+    /**
+     * defineState, defineEvent and defineTransition for a ring of
+     * <code>states</code> states with two transitions each
+     */
+    @Benchmark
+    public StateMachineDefinitionImpl define() throws Exception {
+        return Definitions.ring(states);
+    }
+
+    @Benchmark
+    public CompiledStateMachineDefinition defineAndCompile() throws Exception {
+        return Definitions.ring(states).compile();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+
+/**
+ * State machine definitions shared by the benchmarks
+ */
+final class Definitions {
+    static final String NEXT = "NEXT";
+    static final String BACK = "BACK";
+    static final String GO = "GO";
+    static final String RESET = "RESET";
+
+    // Trivial controller, so the benchmarks measure the state machine itself
+    static final TransitionController NOOP = new TransitionController() {
+        public void execute(TransitionInfo info) {
+        }
+    };
+
+    private Definitions() {
+    }
+
+    static String state(int i) {
+        return "S" + i;
+    }
+
+    /**
+     * <code>states</code> states in a ring: NEXT moves to the following state
+     * and BACK to the previous one
+     */
+    static StateMachineDefinitionImpl ring(int states) throws StateMachineDefinitionException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState(state(0), true, false);
+        for (int i = 1; i < states; i++)
+            definition.defineState(state(i));
+
+        definition.defineEvent(NEXT);
+        definition.defineEvent(BACK);
+
+        for (int i = 0; i < states; i++) {
+            definition.defineTransition(state(i), NEXT, state((i + 1) % states), NOOP);
+            definition.defineTransition(state(i), BACK, state((i + states - 1) % states), NOOP);
+        }
+        return definition;
+    }
+
+    /**
+     * States S0 to S<code>length</code>. GO moves from S0 to S1, and entering
+     * any state but the last one redirects with GO to the following state, so
+     * one event goes through the whole chain. RESET moves back to S0.
+     */
+    static StateMachineDefinitionImpl redirectChain(int length) throws StateMachineDefinitionException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState(state(0), true, false);
+        for (int i = 1; i <= length; i++)
+            definition.defineState(state(i));
+
+        definition.defineEvent(GO);
+        definition.defineEvent(RESET);
+
+        final EventInfo redirect = new EventInfo(GO, null);
+        EnterStateController redirecting = new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                return redirect;
+            }
+        };
+
+        for (int i = 0; i < length; i++) {
+            definition.defineTransition(state(i), GO, state(i + 1), NOOP);
+            if (i > 0)
+                definition.defineEnterState(state(i), redirecting);
+        }
+        definition.defineTransition(state(length), RESET, state(0), NOOP);
+        return definition;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.EventRef;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachines;
+
+/**
+ * Single thread {@link StateMachine#processEvent(String, Object)} throughput.
+ * The machine walks a ring of <code>states</code> states, so the large
+ * machine visits every state of the table instead of bouncing between two.
+ * {@link #processEventRef()} dispatches the same event by handle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({ "4", "1024", "4096" })
+    public int states;
+
+    private StateMachine machine;
+    private EventRef next;
+
+    @Setup
+    public void setup() throws Exception {
+        CompiledStateMachineDefinition definition = Definitions.ring(states).compile();
+        machine = StateMachines.newNonReentrant(definition);
+        next = definition.event(Definitions.NEXT);
+    }
+
+    @Benchmark
+    public String processEvent() throws Exception {
+        machine.processEvent(Definitions.NEXT, null);
+        return machine.getCurrentState();
+    }
+
+    @Benchmark
+    public String processEventRef() throws Exception {
+        machine.processEvent(next, null);
+        return machine.getCurrentState();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.engine.StateMachineEngine;
+
+/**
+ * Events for random entities from several threads: a state machine per
+ * entity against a single {@link StateMachineEngine}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(4)
+public class EngineBenchmark {
+    @Param({ "1000000" })
+    public int entities;
+
+    private StateMachine[] machines;
+    private StateMachineEngine engine;
+
+    @Setup
+    public void setup() throws Exception {
+        CompiledStateMachineDefinition definition = Definitions.ring(4).compile();
+        machines = new StateMachine[entities];
+        for (int i = 0; i < entities; i++)
+            machines[i] = StateMachines.newReentrant(definition);
+
+        engine = new StateMachineEngine(definition, entities, 64);
+    }
+
+    @Benchmark
+    public void machinePerEntity() throws Exception {
+        machines[ThreadLocalRandom.current().nextInt(entities)].processEvent(Definitions.NEXT, null);
+    }
+
+    @Benchmark
+    public void engine() throws Exception {
+        engine.processEvent(ThreadLocalRandom.current().nextInt(entities), Definitions.NEXT, null);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.typed.EnumStateMachine;
+import shisha.statemachine.typed.EnumStateMachineDefinition;
+
+/**
+ * Dispatch by enum ordinal against dispatch by event name, on the same
+ * {@link EnumStateMachine} walking a ring of states
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnumDispatchBenchmark {
+    public enum Ring {
+        S0, S1, S2, S3, S4, S5, S6, S7
+    }
+
+    public enum Move {
+        NEXT, BACK
+    }
+
+    private EnumStateMachine<Ring, Move> machine;
+
+    @Setup
+    public void setup() throws Exception {
+        EnumStateMachineDefinition<Ring, Move> definition = new EnumStateMachineDefinition<Ring, Move>(Ring.class,
+                Move.class, Ring.S0);
+        Ring[] states = Ring.values();
+        for (int i = 0; i < states.length; i++) {
+            definition.defineTransition(states[i], Move.NEXT, states[(i + 1) % states.length], Definitions.NOOP);
+            definition.defineTransition(states[i], Move.BACK, states[(i + states.length - 1) % states.length],
+                    Definitions.NOOP);
+        }
+        definition.compile();
+        machine = new EnumStateMachine<Ring, Move>(definition, new NonReentrantStrategy());
+    }
+
+    @Benchmark
+    public Ring processEnum() throws Exception {
+        machine.processEvent(Move.NEXT, null);
+        return machine.getState();
+    }
+
+    @Benchmark
+    public String processString() throws Exception {
+        machine.processEvent(Definitions.NEXT, null);
+        return machine.getCurrentState();
+    }
+}
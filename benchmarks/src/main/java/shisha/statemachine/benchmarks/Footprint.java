@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.engine.StateMachineEngine;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+
+/**
+ * Heap used per state machine, measured with JOL. Everything shared by the
+ * state machines, like the definition, is left out by measuring the
+ * difference between <code>machines</code> and twice as many. The states of
+ * the engine are outside of the heap, in a
+ * {@link shisha.statemachine.engine.DirectStateStore}. Not a JMH
+ * benchmark, run it with:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar shisha.statemachine.benchmarks.Footprint [machines]
+ * </pre>
+ */
+public class Footprint {
+    private interface Factory {
+        Object create(int count) throws StateMachineDefinitionException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int machines = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final CompiledStateMachineDefinition definition = Definitions.ring(4).compile();
+
+        System.out.println(ClassLayout.parseClass(StateMachineImpl.class).toPrintable());
+
+        report("reentrant", machines, new Factory() {
+            public Object create(int count) throws StateMachineDefinitionException {
+                StateMachine[] result = new StateMachine[count];
+                for (int i = 0; i < count; i++)
+                    result[i] = StateMachines.newReentrant(definition);
+                return result;
+            }
+        });
+        report("flyweight", machines, new Factory() {
+            public Object create(int count) throws StateMachineDefinitionException {
+                StateMachine[] result = new StateMachine[count];
+                for (int i = 0; i < count; i++)
+                    result[i] = StateMachines.newFlyweight(definition);
+                return result;
+            }
+        });
+        report("engine", machines, new Factory() {
+            public Object create(int count) throws StateMachineDefinitionException {
+                return new StateMachineEngine(definition, count, 16);
+            }
+        });
+    }
+
+    private static void report(String name, int machines, Factory factory) throws StateMachineDefinitionException {
+        long once = GraphLayout.parseInstance(factory.create(machines)).totalSize();
+        long twice = GraphLayout.parseInstance(factory.create(2 * machines)).totalSize();
+        System.out.printf("%-10s %6.1f bytes per state machine%n", name, (twice - once) / (double) machines);
+    }
+}
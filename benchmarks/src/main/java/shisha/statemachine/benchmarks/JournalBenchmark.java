@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.journal.TransitionJournal;
+import shisha.statemachine.strategy.FlyweightStrategy;
+
+/**
+ * Transitions recorded in a {@link TransitionJournal}, every thread moving its
+ * own state machine. The journal is written to <code>java.io.tmpdir</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+    @Param({ "none", "NEVER", "INTERVAL", "ALWAYS" })
+    public String fsync;
+
+    private CompiledStateMachineDefinition definition;
+    private TransitionJournal journal;
+    private File directory;
+    private final AtomicLong ids = new AtomicLong();
+
+    @State(Scope.Thread)
+    public static class Machine {
+        StateMachineImpl statemachine;
+
+        @Setup
+        public void setup(JournalBenchmark benchmark) throws Exception {
+            statemachine = new StateMachineImpl(benchmark.definition, FlyweightStrategy.SHARED);
+            if (benchmark.journal != null)
+                benchmark.journal.attach(statemachine, benchmark.ids.incrementAndGet());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        definition = Definitions.ring(4).compile();
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+        if (!"none".equals(fsync))
+            journal = new TransitionJournal(directory, definition, TransitionJournal.FsyncPolicy.valueOf(fsync),
+                    TransitionJournal.DEFAULT_FSYNC_INTERVAL_MILLIS, TransitionJournal.DEFAULT_SEGMENT_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (journal != null)
+            journal.close();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void oneThread(Machine machine) throws Exception {
+        machine.statemachine.processEvent(Definitions.NEXT, null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void eightThreads(Machine machine) throws Exception {
+        machine.statemachine.processEvent(Definitions.NEXT, null);
+    }
+}
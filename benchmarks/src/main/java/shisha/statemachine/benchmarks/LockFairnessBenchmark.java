@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.strategy.LockPolicy;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * Eight threads blocking on the lock of the same state machine, with a fair
+ * and an unfair lock. Throughput tells the cost of fairness, and the sample
+ * mode percentiles (p0.99, p0.999) the tail latency it buys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockFairnessBenchmark {
+    @Param({ "false", "true" })
+    public boolean fair;
+
+    @Param({ "100" })
+    public int work;
+
+    private StateMachine machine;
+
+    @Setup
+    public void setup() throws Exception {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineEvent("TICK");
+        definition.defineTransition("A", "TICK", "A", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                // Some work inside the critical section
+                Blackhole.consumeCPU(work);
+            }
+        });
+
+        LockPolicy policy = fair ? LockPolicy.block().fair() : LockPolicy.block();
+        machine = new StateMachineImpl(definition.compile(), new NonReentrantStrategy(policy));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void processEvent() throws Exception {
+        machine.processEvent("TICK", null);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.jfr.FlightRecorderMetrics;
+import shisha.statemachine.metrics.TransitionMetrics;
+import shisha.statemachine.metrics.TransitionTrace;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+/**
+ * Cost of the {@link TransitionMetrics} on single thread
+ * {@link StateMachineImpl#processEvent(String, Object)}, compared with the
+ * same strategy without metrics, of the {@link FlightRecorderMetrics} with no
+ * recording running and of the {@link TransitionTrace}. Run with
+ * <code>-prof gc</code> to check that none of them allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    @Param({ "none", "histograms", "jfr", "trace" })
+    public String metrics;
+
+    private StateMachineImpl machine;
+
+    @Setup
+    public void setup() throws Exception {
+        ReentrantStrategy strategy = new NonReentrantStrategy();
+        if (metrics.equals("histograms"))
+            strategy.setMetrics(new TransitionMetrics());
+        else if (metrics.equals("jfr"))
+            strategy.setMetrics(new FlightRecorderMetrics());
+        else if (metrics.equals("trace"))
+            strategy.setMetrics(new TransitionTrace(1 << 16));
+        machine = new StateMachineImpl(Definitions.ring(4).compile(), strategy);
+    }
+
+    @Benchmark
+    public String processEvent() throws Exception {
+        machine.processEvent(Definitions.NEXT, null);
+        return machine.getCurrentState();
+    }
+}
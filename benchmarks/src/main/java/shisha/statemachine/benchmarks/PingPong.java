@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.EnterState;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.ExitState;
+import shisha.statemachine.annotations.State;
+import shisha.statemachine.annotations.Transition;
+
+/**
+ * Two states bouncing between them, with the three phases defined for the
+ * A -> B transition.
+ */
+@AStateMachine
+public class PingPong {
+    @State(isStart = true) public static final String STATE_A = "STATE_A";
+    @State public static final String STATE_B = "STATE_B";
+
+    @Event public static final String PING = "PING";
+    @Event public static final String PONG = "PONG";
+
+    int counter;
+
+    @ExitState(STATE_A)
+    public Boolean onExitA(TransitionInfo info) {
+        counter++;
+        return true;
+    }
+
+    @Transition(source = STATE_A, event = PING, target = STATE_B)
+    public void onPing(TransitionInfo info) {
+        counter++;
+    }
+
+    @EnterState(STATE_B)
+    public EventInfo onEnterB(TransitionInfo info) {
+        counter++;
+        return null;
+    }
+
+    @Transition(source = STATE_B, event = PONG, target = STATE_A)
+    public void onPong(TransitionInfo info) {
+        counter++;
+    }
+}
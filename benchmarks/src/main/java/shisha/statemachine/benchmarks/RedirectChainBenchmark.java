@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachines;
+
+/**
+ * One event followed by <code>length - 1</code> redirections returned by
+ * {@link EnterStateController}s, plus the event resetting the machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedirectChainBenchmark {
+    @Param({ "1", "10", "100" })
+    public int length;
+
+    private StateMachine machine;
+
+    @Setup
+    public void setup() throws Exception {
+        machine = StateMachines.newNonReentrant(Definitions.redirectChain(length).compile());
+    }
+
+    @Benchmark
+    public String redirectChain() throws Exception {
+        machine.processEvent(Definitions.GO, null);
+        machine.processEvent(Definitions.RESET, null);
+        return machine.getCurrentState();
+    }
+}
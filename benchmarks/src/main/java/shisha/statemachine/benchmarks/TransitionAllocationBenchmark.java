@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionInfoCache;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * Allocation of the transition hot path for every
+ * {@link TransitionInfoCache.Mode}. Run it with the GC profiler, reused modes
+ * are expected to report <code>gc.alloc.rate.norm</code> close to 0 B/op:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar TransitionAllocationBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionAllocationBenchmark {
+    @Param({ "NONE", "PER_MACHINE", "PER_THREAD" })
+    public TransitionInfoCache.Mode reuse;
+
+    private PingPong pingPong;
+    private StateMachine machine;
+
+    @Setup
+    public void setup() throws Exception {
+        pingPong = new PingPong();
+        machine = new StateMachineImpl(StateMachines.newNonReentrant(pingPong).getDefinition(),
+                new NonReentrantStrategy(reuse));
+    }
+
+    /**
+     * Two transitions with their exit, transition and enter phases
+     */
+    @Benchmark
+    public int roundTrip() throws Exception {
+        machine.processEvent(PingPong.PING, null);
+        machine.processEvent(PingPong.PONG, null);
+        return pingPong.counter;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.strategy.VirtualThreadStrategy;
+import shisha.statemachine.strategy.VirtualThreads;
+
+/**
+ * Stress test for the {@link VirtualThreadStrategy}: <code>machines</code>
+ * state machines process one event each at the same time, and every
+ * transition blocks <code>millis</code> milliseconds simulating a call to a
+ * remote service. Not a JMH benchmark, run it with:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar shisha.statemachine.benchmarks.VirtualThreadStress [machines] [millis] [rounds]
+ * </pre>
+ */
+public class VirtualThreadStress {
+    public static void main(String[] args) throws Exception {
+        int machines = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final long millis = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.println("Virtual threads available: " + VirtualThreads.isAvailable());
+
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineEvent("CALL");
+        definition.defineTransition("A", "CALL", "A", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                int now = concurrent.incrementAndGet();
+                int max;
+                while (now > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, now))
+                    ;
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                concurrent.decrementAndGet();
+            }
+        });
+        CompiledStateMachineDefinition compiled = definition.compile();
+
+        StateMachine[] statemachines = new StateMachine[machines];
+        for (int i = 0; i < machines; i++)
+            statemachines[i] = StateMachines.newVirtual(compiled);
+
+        CompletableFuture<?>[] results = new CompletableFuture<?>[machines];
+        for (int round = 1; round <= rounds; round++) {
+            maxConcurrent.set(0);
+            System.gc();
+            long start = System.nanoTime();
+            for (int i = 0; i < machines; i++)
+                results[i] = statemachines[i].processEventAsync("CALL", null);
+            CompletableFuture.allOf(results).join();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println(String.format(
+                    "Round %d: %d machines blocking %d ms in %d ms, %d blocked at the same time, heap %d MB",
+                    round, machines, millis, elapsed, maxConcurrent.get(),
+                    (runtime.totalMemory() - runtime.freeMemory()) >> 20));
+        }
+    }
+}
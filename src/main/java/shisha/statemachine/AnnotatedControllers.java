@@ -0,0 +1,450 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.exceptions.IllegalTransitionAnnotationException;
+
+/**
+ * Binds the methods of an annotated state machine to the controllers of the
+ * transition phases.
+ *
+ * <p>
+ * Whenever possible the method is bound with the {@link LambdaMetafactory},
+ * so the controller is a real implementation of the interface calling the
+ * annotated method directly and the JIT can inline it. If the method cannot
+ * be accessed that way (non public classes, classes not visible from our class
+ * loader...) we fall back to a bound {@link MethodHandle}. In both cases we
+ * avoid the access checks and the argument boxing of {@link Method#invoke}.
+ *
+ * <p>
+ * The contract of the annotated methods is kept: anything thrown by them,
+ * errors included, is logged and swallowed, void exit phases continue the transition and void enter phases
+ * do not redirect to any other event.
+ *
+ * <p>
+ * Instance methods requested without callee are returned as unbound
+ * placeholders. They are replaced by real controllers once the callee is
+ * known, see {@link #bindTransitionController(TransitionController, Object, Map)}
+ * and its siblings for the other phases.
+ */
+final class AnnotatedControllers {
+    private static Logger l = LoggerFactory.getLogger(AnnotatedControllers.class);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // The metafactory spins a new class every time it is invoked, so we keep
+    // the resulting factories per method and phase interface: the same method
+    // may be bound as a transition and as an exit or enter phase
+    private static final ClassValue<ConcurrentHashMap<BinderKey, Binder>> BINDERS = new ClassValue<ConcurrentHashMap<BinderKey, Binder>>() {
+        @Override
+        protected ConcurrentHashMap<BinderKey, Binder> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<BinderKey, Binder>();
+        }
+    };
+
+    private AnnotatedControllers() {
+    }
+
+    static TransitionController transitionController(Method method, Object callee)
+            throws IllegalTransitionAnnotationException {
+        if (isUnbound(method, callee))
+            return new UnboundTransitionController(method);
+
+        final TransitionController delegate = bind(TransitionController.class, void.class, method, callee);
+        return new TransitionController() {
+            public void execute(TransitionInfo event) {
+                try {
+                    delegate.execute(event);
+                } catch (Throwable swallow) {
+                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
+                }
+            }
+        };
+    }
+
+    static ExitStateController exitStateController(Method method, Object callee)
+            throws IllegalTransitionAnnotationException {
+        if (isUnbound(method, callee))
+            return new UnboundExitStateController(method);
+
+        if (isVoid(method)) {
+            final TransitionController delegate = bind(TransitionController.class, void.class, method, callee);
+            return new ExitStateController() {
+                public Boolean execute(TransitionInfo event) {
+                    try {
+                        delegate.execute(event);
+                        return true;
+                    } catch (Throwable swallow) {
+                        l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
+                        return null;
+                    }
+                }
+            };
+        }
+
+        final ExitStateController delegate = bind(ExitStateController.class, Boolean.class, method, callee);
+        return new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                try {
+                    Boolean result = delegate.execute(event);
+                    return result == null ? Boolean.TRUE : result;
+                } catch (Throwable swallow) {
+                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
+                    return null;
+                }
+            }
+        };
+    }
+
+    static EnterStateController enterStateController(Method method, Object callee)
+            throws IllegalTransitionAnnotationException {
+        if (isUnbound(method, callee))
+            return new UnboundEnterStateController(method);
+
+        if (isVoid(method)) {
+            final TransitionController delegate = bind(TransitionController.class, void.class, method, callee);
+            return new EnterStateController() {
+                public EventInfo execute(TransitionInfo event) {
+                    try {
+                        delegate.execute(event);
+                    } catch (Throwable swallow) {
+                        l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
+                    }
+                    return null;
+                }
+            };
+        }
+
+        final EnterStateController delegate = bind(EnterStateController.class, EventInfo.class, method, callee);
+        return new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                try {
+                    return delegate.execute(event);
+                } catch (Throwable swallow) {
+                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the controller bound to <code>callee</code> if it is an unbound
+     * placeholder or a {@link BindableController}, or the controller itself
+     * otherwise. <code>bound</code> keeps the controllers already bound to
+     * this callee per method or bindable controller, so every method is bound
+     * only once.
+     */
+    static TransitionController bindTransitionController(TransitionController controller, Object callee,
+            Map<Object, Object> bound) throws IllegalTransitionAnnotationException {
+        if (controller instanceof BindableController)
+            return (TransitionController) bindController((BindableController) controller, callee, bound);
+        if (!(controller instanceof UnboundTransitionController))
+            return controller;
+
+        Method method = ((UnboundTransitionController) controller).method;
+        TransitionController result = (TransitionController) bound.get(method);
+        if (result == null) {
+            result = transitionController(method, callee);
+            bound.put(method, result);
+        }
+        return result;
+    }
+
+    static ExitStateController bindExitStateController(ExitStateController controller, Object callee,
+            Map<Object, Object> bound) throws IllegalTransitionAnnotationException {
+        if (controller instanceof BindableController)
+            return (ExitStateController) bindController((BindableController) controller, callee, bound);
+        if (!(controller instanceof UnboundExitStateController))
+            return controller;
+
+        Method method = ((UnboundExitStateController) controller).method;
+        ExitStateController result = (ExitStateController) bound.get(method);
+        if (result == null) {
+            result = exitStateController(method, callee);
+            bound.put(method, result);
+        }
+        return result;
+    }
+
+    static EnterStateController bindEnterStateController(EnterStateController controller, Object callee,
+            Map<Object, Object> bound) throws IllegalTransitionAnnotationException {
+        if (controller instanceof BindableController)
+            return (EnterStateController) bindController((BindableController) controller, callee, bound);
+        if (!(controller instanceof UnboundEnterStateController))
+            return controller;
+
+        Method method = ((UnboundEnterStateController) controller).method;
+        EnterStateController result = (EnterStateController) bound.get(method);
+        if (result == null) {
+            result = enterStateController(method, callee);
+            bound.put(method, result);
+        }
+        return result;
+    }
+
+    private static Object bindController(BindableController controller, Object callee, Map<Object, Object> bound) {
+        Object result = bound.get(controller);
+        if (result == null) {
+            result = controller.bind(callee);
+            bound.put(controller, result);
+        }
+        return result;
+    }
+
+    private static boolean isUnbound(Method method, Object callee) {
+        return callee == null && !Modifier.isStatic(method.getModifiers());
+    }
+
+    private static boolean isVoid(Method method) {
+        return void.class.equals(method.getReturnType());
+    }
+
+    /**
+     * Returns an implementation of the <code>phase</code> interface invoking
+     * <code>method</code> on <code>callee</code>.
+     */
+    private static <T> T bind(Class<T> phase, Class<?> returnType, Method method, Object callee)
+            throws IllegalTransitionAnnotationException {
+        Binder binder = binderFor(phase, returnType, method);
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+
+        if (binder.factory != null) {
+            try {
+                return phase.cast(isStatic ? binder.factory.invoke() : binder.factory.invoke(callee));
+            } catch (Throwable t) {
+                l.debug("#bind: metafactory binding failed for method " + method.getName(), t);
+            }
+        }
+
+        MethodHandle handle = isStatic ? binder.target : binder.target.bindTo(callee);
+        handle = handle.asType(MethodType.methodType(returnType, TransitionInfo.class));
+
+        if (phase == ExitStateController.class)
+            return phase.cast(new MethodHandleExitStateController(handle));
+        if (phase == EnterStateController.class)
+            return phase.cast(new MethodHandleEnterStateController(handle));
+        return phase.cast(new MethodHandleTransitionController(handle));
+    }
+
+    private static Binder binderFor(Class<?> phase, Class<?> returnType, Method method)
+            throws IllegalTransitionAnnotationException {
+        ConcurrentHashMap<BinderKey, Binder> binders = BINDERS.get(method.getDeclaringClass());
+        BinderKey key = new BinderKey(method, phase);
+        Binder binder = binders.get(key);
+        if (binder == null) {
+            binder = createBinder(phase, returnType, method);
+            Binder previous = binders.putIfAbsent(key, binder);
+            if (previous != null)
+                binder = previous;
+        }
+        return binder;
+    }
+
+    private static Binder createBinder(Class<?> phase, Class<?> returnType, Method method)
+            throws IllegalTransitionAnnotationException {
+        MethodHandle target;
+        try {
+            if (!isAccessible(method))
+                method.setAccessible(true);
+            target = LOOKUP.unreflect(method);
+        } catch (Exception e) {
+            throw new IllegalTransitionAnnotationException("Method " + method.getName() + " cannot be bound: "
+                    + e.getMessage());
+        }
+
+        MethodHandle factory = null;
+        if (isAccessible(method) && isVisible(method.getDeclaringClass())) {
+            try {
+                boolean isStatic = Modifier.isStatic(method.getModifiers());
+                MethodType factoryType = isStatic ? MethodType.methodType(phase) : MethodType.methodType(phase,
+                        method.getDeclaringClass());
+                MethodType samType = MethodType.methodType(returnType, TransitionInfo.class);
+                CallSite site = LambdaMetafactory.metafactory(LOOKUP, "execute", factoryType, samType, target,
+                        samType);
+                factory = site.getTarget();
+            } catch (Throwable t) {
+                l.debug("#createBinder: using a method handle for method " + method.getName(), t);
+            }
+        }
+
+        return new Binder(factory, target);
+    }
+
+    private static boolean isAccessible(Method method) {
+        return Modifier.isPublic(method.getModifiers()) && Modifier.isPublic(method.getDeclaringClass().getModifiers());
+    }
+
+    /**
+     * The classes spun by the metafactory live in our class loader, so they
+     * can only link against classes that are visible from it.
+     */
+    private static boolean isVisible(Class<?> clazz) {
+        try {
+            return Class.forName(clazz.getName(), false, AnnotatedControllers.class.getClassLoader()) == clazz;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A method and the phase interface it is bound to. The phase also fixes
+     * the return type of the binding.
+     */
+    private static final class BinderKey {
+        private final Method method;
+        private final Class<?> phase;
+
+        private BinderKey(Method method, Class<?> phase) {
+            this.method = method;
+            this.phase = phase;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BinderKey))
+                return false;
+            BinderKey other = (BinderKey) obj;
+            return method.equals(other.method) && phase == other.phase;
+        }
+
+        public int hashCode() {
+            return 31 * method.hashCode() + phase.hashCode();
+        }
+    }
+
+    /**
+     * The metafactory binding of a method (null if it could not be created)
+     * and its direct method handle as fallback.
+     */
+    private static final class Binder {
+        private final MethodHandle factory;
+        private final MethodHandle target;
+
+        private Binder(MethodHandle factory, MethodHandle target) {
+            this.factory = factory;
+            this.target = target;
+        }
+    }
+
+    private static final class UnboundTransitionController implements TransitionController {
+        private final Method method;
+
+        private UnboundTransitionController(Method method) {
+            this.method = method;
+        }
+
+        public void execute(TransitionInfo event) {
+            throw new IllegalStateException("Method " + method.getName() + " has not been bound to any instance");
+        }
+    }
+
+    private static final class UnboundExitStateController implements ExitStateController {
+        private final Method method;
+
+        private UnboundExitStateController(Method method) {
+            this.method = method;
+        }
+
+        public Boolean execute(TransitionInfo event) {
+            throw new IllegalStateException("Method " + method.getName() + " has not been bound to any instance");
+        }
+    }
+
+    private static final class UnboundEnterStateController implements EnterStateController {
+        private final Method method;
+
+        private UnboundEnterStateController(Method method) {
+            this.method = method;
+        }
+
+        public EventInfo execute(TransitionInfo event) {
+            throw new IllegalStateException("Method " + method.getName() + " has not been bound to any instance");
+        }
+    }
+
+    private static final class MethodHandleTransitionController implements TransitionController {
+        private final MethodHandle handle;
+
+        private MethodHandleTransitionController(MethodHandle handle) {
+            this.handle = handle;
+        }
+
+        public void execute(TransitionInfo event) {
+            try {
+                handle.invokeExact(event);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+
+    private static final class MethodHandleExitStateController implements ExitStateController {
+        private final MethodHandle handle;
+
+        private MethodHandleExitStateController(MethodHandle handle) {
+            this.handle = handle;
+        }
+
+        public Boolean execute(TransitionInfo event) {
+            try {
+                return (Boolean) handle.invokeExact(event);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+
+    private static final class MethodHandleEnterStateController implements EnterStateController {
+        private final MethodHandle handle;
+
+        private MethodHandleEnterStateController(MethodHandle handle) {
+            this.handle = handle;
+        }
+
+        public EventInfo execute(TransitionInfo event) {
+            try {
+                return (EventInfo) handle.invokeExact(event);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link StateMachineStrategy} that can process events without blocking the
+ * caller. The transitions run later, usually in another thread, and the
+ * returned future tells when they have finished.
+ */
+public interface AsyncStateMachineStrategy extends StateMachineStrategy {
+    /**
+     * Queues the event and returns immediately. The future completes with the
+     * current state once the transition (and its redirections) has been
+     * processed, or exceptionally with the
+     * {@link shisha.statemachine.exceptions.StateMachineExecutionException} or
+     * {@link shisha.statemachine.exceptions.StateMachineDefinitionException}
+     * that {@link #processEvent(StateMachineImpl, String, Object)} would have
+     * thrown.
+     */
+    public CompletableFuture<String> processEventAsync(StateMachineImpl statemachine, String event, Object object);
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.List;
+
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+
+/**
+ * A {@link StateMachineStrategy} that processes a batch of events at once,
+ * paying for the synchronization only once per batch.
+ */
+public interface BatchStateMachineStrategy extends StateMachineStrategy {
+    /**
+     * Processes the events in order, see
+     * {@link StateMachine#processEvents(Iterable, boolean)}
+     * 
+     * @throws StateMachineExecutionException
+     *             if the batch could not start, for instance because the lock
+     *             could not be acquired. No event has been processed
+     */
+    public List<EventOutcome> processEvents(StateMachineImpl statemachine, Iterable<EventInfo> events,
+            boolean continueOnFailure) throws StateMachineExecutionException;
+}
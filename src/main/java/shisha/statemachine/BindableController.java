@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * Controller of a definition shared by all the instances of an annotated
+ * class, such as the ones generated by
+ * {@link shisha.statemachine.processor.StateMachineProcessor}. It is not
+ * meant to run: {@link CompiledStateMachineDefinition#bind(Object)} replaces
+ * it with the controller bound to the instance of every state machine.
+ *
+ * <p>
+ * Implementations are also a {@link TransitionController},
+ * {@link ExitStateController} or {@link EnterStateController}, and return a
+ * controller of the same kind.
+ */
+public interface BindableController {
+    /**
+     * Returns the controller invoking the annotated method on
+     * <code>callee</code>
+     */
+    public Object bind(Object callee);
+}
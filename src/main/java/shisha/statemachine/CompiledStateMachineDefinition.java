@@ -0,0 +1,445 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.IllegalTransitionAnnotationException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+/**
+ * Immutable, table driven version of a {@link StateMachineDefinitionImpl}. It
+ * is obtained invoking {@link StateMachineDefinitionImpl#compile()} once the
+ * definition is finished.
+ *
+ * <p>
+ * States and events are identified by an ordinal, assigned in definition
+ * order. All transitions are stored in a dense array so the strategy resolves
+ * the whole transition (target and the controllers of the three phases) with
+ * a single access: <code>table[stateId * eventCount + eventId]</code>.
+ *
+ * <p>
+ * The table takes <code>states * events</code> slots, so it is not meant for
+ * state machines with a huge number of both states and events.
+ *
+ * <p>
+ * Every field is final and the lists returned by {@link #getStates()},
+ * {@link #getFinalStates()} and {@link #getApplicableEvents(String)} are
+ * computed once and cannot be modified, so one instance can be read by any
+ * number of threads without synchronization.
+ */
+public final class CompiledStateMachineDefinition implements StateMachineDefinition {
+    private final String[] states;
+    private final boolean[] finalStates;
+    private final int startStateId;
+    private final String[] events;
+
+    private final HashMap<String, Integer> stateIds;
+    private final HashMap<String, Integer> eventIds;
+    private final Set<String> eventSet;
+    private final StateRef[] stateRefs;
+    private final EventRef[] eventRefs;
+    private final List<String> stateList;
+    private final List<String> finalStateList;
+    // By state ordinal
+    private final List<List<String>> applicableEvents;
+
+    private final ExitStateController[] exitStateControllers;
+    private final EnterStateController[] enterStateControllers;
+    private final CompiledTransition[] table;
+    private final long fingerprint;
+
+    CompiledStateMachineDefinition(String[] states, boolean[] finalStates, int startStateId, String[] events,
+            ExitStateController[] exitStateControllers, EnterStateController[] enterStateControllers,
+            CompiledTransition[] table) {
+        this.states = states;
+        this.finalStates = finalStates;
+        this.startStateId = startStateId;
+        this.events = events;
+        this.exitStateControllers = exitStateControllers;
+        this.enterStateControllers = enterStateControllers;
+        this.table = table;
+
+        this.stateIds = new HashMap<String, Integer>(states.length * 2);
+        for (int i = 0; i < states.length; i++)
+            stateIds.put(states[i], i);
+
+        this.eventIds = new HashMap<String, Integer>(events.length * 2);
+        for (int i = 0; i < events.length; i++)
+            eventIds.put(events[i], i);
+
+        this.eventSet = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(events)));
+
+        this.stateRefs = new StateRef[states.length];
+        for (int i = 0; i < states.length; i++)
+            stateRefs[i] = new StateRef(states[i], i);
+
+        this.eventRefs = new EventRef[events.length];
+        for (int i = 0; i < events.length; i++)
+            eventRefs[i] = new EventRef(events[i], i);
+
+        this.stateList = Collections.unmodifiableList(Arrays.asList(states.clone()));
+        ArrayList<String> finals = new ArrayList<String>();
+        for (int i = 0; i < states.length; i++) {
+            if (finalStates[i])
+                finals.add(states[i]);
+        }
+        this.finalStateList = Collections.unmodifiableList(finals);
+        this.applicableEvents = applicableEvents(states.length, events, table);
+
+        this.fingerprint = fingerprint(states, events, table);
+    }
+
+    /**
+     * Same states and events as <code>template</code> but with other
+     * controllers. All the immutable structures are shared.
+     */
+    private CompiledStateMachineDefinition(CompiledStateMachineDefinition template,
+            ExitStateController[] exitStateControllers, EnterStateController[] enterStateControllers,
+            CompiledTransition[] table) {
+        this.states = template.states;
+        this.finalStates = template.finalStates;
+        this.startStateId = template.startStateId;
+        this.events = template.events;
+        this.stateIds = template.stateIds;
+        this.eventIds = template.eventIds;
+        this.eventSet = template.eventSet;
+        this.stateRefs = template.stateRefs;
+        this.eventRefs = template.eventRefs;
+        this.stateList = template.stateList;
+        this.finalStateList = template.finalStateList;
+        this.applicableEvents = template.applicableEvents;
+        this.fingerprint = template.fingerprint;
+        this.exitStateControllers = exitStateControllers;
+        this.enterStateControllers = enterStateControllers;
+        this.table = table;
+    }
+
+    /**
+     * Returns the definition as a compiled one. Non compiled
+     * {@link StateMachineDefinitionImpl} are compiled on demand.
+     *
+     * @throws IllegalArgumentException
+     *             if the definition is neither a compiled one nor a
+     *             {@link StateMachineDefinitionImpl}
+     */
+    public static CompiledStateMachineDefinition of(StateMachineDefinition definition) {
+        if (definition instanceof CompiledStateMachineDefinition)
+            return (CompiledStateMachineDefinition) definition;
+
+        if (definition instanceof StateMachineDefinitionImpl)
+            return ((StateMachineDefinitionImpl) definition).compile();
+
+        throw new IllegalArgumentException("Definition " + definition.getClass().getName() + " cannot be compiled");
+    }
+
+    /**
+     * Returns a definition where the controllers of annotated methods that
+     * were defined without instance, and the {@link BindableController}s, are
+     * bound to <code>callee</code>. Only the controllers are created, states,
+     * events and ordinals are shared with this definition.
+     */
+    public CompiledStateMachineDefinition bind(Object callee) throws IllegalTransitionAnnotationException {
+        HashMap<Object, Object> bound = new HashMap<Object, Object>();
+
+        ExitStateController[] exits = new ExitStateController[states.length];
+        EnterStateController[] enters = new EnterStateController[states.length];
+        for (int i = 0; i < states.length; i++) {
+            exits[i] = AnnotatedControllers.bindExitStateController(exitStateControllers[i], callee, bound);
+            enters[i] = AnnotatedControllers.bindEnterStateController(enterStateControllers[i], callee, bound);
+        }
+
+        CompiledTransition[] boundTable = new CompiledTransition[table.length];
+        for (int i = 0; i < table.length; i++) {
+            CompiledTransition tx = table[i];
+            if (tx != null)
+                boundTable[i] = new CompiledTransition(tx.getSourceId(), tx.getSource(), tx.getEventId(),
+                        tx.getEvent(), tx.getTargetId(), tx.getTarget(), exits[tx.getSourceId()],
+                        AnnotatedControllers.bindTransitionController(tx.getTransitionController(), callee, bound),
+                        enters[tx.getTargetId()]);
+        }
+
+        return new CompiledStateMachineDefinition(this, exits, enters, boundTable);
+    }
+
+    private static List<List<String>> applicableEvents(int stateCount, String[] events, CompiledTransition[] table) {
+        ArrayList<List<String>> result = new ArrayList<List<String>>(stateCount);
+        for (int stateId = 0; stateId < stateCount; stateId++) {
+            ArrayList<String> applicable = new ArrayList<String>();
+            for (int eventId = 0; eventId < events.length; eventId++) {
+                if (table[stateId * events.length + eventId] != null)
+                    applicable.add(events[eventId]);
+            }
+            applicable.trimToSize();
+            result.add(Collections.unmodifiableList(applicable));
+        }
+        return result;
+    }
+
+    // 64 bit FNV-1a of the names in ordinal order and of the transitions
+    private static long fingerprint(String[] states, String[] events, CompiledTransition[] table) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fingerprint(hash, states.length);
+        for (String state : states)
+            hash = fingerprint(hash, state);
+        hash = fingerprint(hash, events.length);
+        for (String event : events)
+            hash = fingerprint(hash, event);
+        for (CompiledTransition transition : table)
+            hash = fingerprint(hash, transition == null ? -1 : transition.getTargetId());
+        return hash;
+    }
+
+    private static long fingerprint(long hash, String value) {
+        for (int i = 0; i < value.length(); i++)
+            hash = fingerprint(hash, value.charAt(i));
+        return fingerprint(hash, value.length());
+    }
+
+    private static long fingerprint(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Hash of the states, the events and the transitions. Two definitions
+     * with the same fingerprint assign the same ordinals to the same states
+     * and events, so the ordinals saved with one can be read with the other.
+     * Controllers are not taken into account.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getStateCount() {
+        return states.length;
+    }
+
+    public int getEventCount() {
+        return events.length;
+    }
+
+    /**
+     * Returns the ordinal of the state or -1 if it has not been defined
+     */
+    public int getStateId(String state) {
+        Integer id = stateIds.get(state);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the ordinal of the event or -1 if it has not been defined
+     */
+    public int getEventId(String event) {
+        Integer id = eventIds.get(event);
+        return id == null ? -1 : id;
+    }
+
+    public StateRef state(String state) throws StateNotDefinedException {
+        return stateRefs[checkStateExists(state)];
+    }
+
+    public EventRef event(String event) throws EventNotDefinedException {
+        int id = getEventId(event);
+        if (id < 0)
+            throw new EventNotDefinedException("Event " + event + " does not exist");
+
+        return eventRefs[id];
+    }
+
+    /**
+     * Whether <code>state</code> is a handle of a state of this definition
+     */
+    public boolean isState(StateRef state) {
+        return state.belongsTo(states);
+    }
+
+    /**
+     * Whether <code>event</code> is a handle of an event of this definition
+     */
+    public boolean isEvent(EventRef event) {
+        return event.belongsTo(events);
+    }
+
+    public String getStateName(int stateId) {
+        return states[stateId];
+    }
+
+    public String getEventName(int eventId) {
+        return events[eventId];
+    }
+
+    /**
+     * Returns the transition for the state and event ordinals, or null if the
+     * transition has not been defined. Ordinals are not validated.
+     */
+    public CompiledTransition getTransition(int stateId, int eventId) {
+        return table[stateId * events.length + eventId];
+    }
+
+    public boolean isState(String state) {
+        return stateIds.containsKey(state);
+    }
+
+    public boolean isStartState(String state) {
+        int id = getStateId(state);
+        return id >= 0 && id == startStateId;
+    }
+
+    public boolean isFinalState(String state) {
+        int id = getStateId(state);
+        return id >= 0 && finalStates[id];
+    }
+
+    /**
+     * Returns the states in ordinal order. The list cannot be modified
+     */
+    public List<String> getStates() {
+        return stateList;
+    }
+
+    /**
+     * Returns the final states in ordinal order. The list cannot be modified
+     */
+    public List<String> getFinalStates() {
+        return finalStateList;
+    }
+
+    public String getStartState() {
+        return startStateId < 0 ? null : states[startStateId];
+    }
+
+    public boolean isEvent(String event) {
+        return eventIds.containsKey(event);
+    }
+
+    public Set<String> getEvents() {
+        return eventSet;
+    }
+
+    /**
+     * Returns the events with a transition from <code>state</code> in ordinal
+     * order, empty for unknown states. The list cannot be modified
+     */
+    public List<String> getApplicableEvents(String state) {
+        int stateId = getStateId(state);
+        if (stateId < 0)
+            return Collections.emptyList();
+
+        return applicableEvents.get(stateId);
+    }
+
+    public String getTargetState(String source, String event) throws TransitionNotDefinedException,
+            StateNotDefinedException {
+        int sourceId = getStateId(source);
+        if (sourceId < 0)
+            throw new StateNotDefinedException("State " + source + " does not exist");
+
+        int eventId = getEventId(event);
+        CompiledTransition transition = eventId < 0 ? null : getTransition(sourceId, eventId);
+        if (transition == null)
+            throw new TransitionNotDefinedException("Transition from state " + source + " with event " + event
+                    + " not defined");
+
+        return transition.getTarget();
+    }
+
+    public ExitStateController getExitStateController(String state) throws StateNotDefinedException {
+        return exitStateControllers[checkStateExists(state)];
+    }
+
+    public EnterStateController getEnterStateController(String state) throws StateNotDefinedException {
+        return enterStateControllers[checkStateExists(state)];
+    }
+
+    public TransitionController getTransitionController(String state, String event) throws StateNotDefinedException {
+        int stateId = checkStateExists(state);
+        int eventId = getEventId(event);
+        CompiledTransition transition = eventId < 0 ? null : getTransition(stateId, eventId);
+
+        return transition == null ? null : transition.getTransitionController();
+    }
+
+    private int checkStateExists(String state) throws StateNotDefinedException {
+        int id = getStateId(state);
+        if (id < 0)
+            throw new StateNotDefinedException("State " + state + " does not exist");
+
+        return id;
+    }
+
+    /**
+     * Returns the state machine definition in a XML format. This is not a cheap
+     * operation.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        String NEWLINE = "\n";
+        sb.append("<StateMachineDefinition");
+        if (startStateId >= 0)
+            sb.append(" startState=\"").append(states[startStateId]).append("\"");
+
+        sb.append(">").append(NEWLINE);
+
+        sb.append("<States>").append(NEWLINE);
+        for (int stateId = 0; stateId < states.length; stateId++) {
+            if (finalStates[stateId]) {
+                sb.append("<FinalState>").append(states[stateId]).append("</FinalState>").append(NEWLINE);
+            } else {
+                sb.append("<State>").append(states[stateId]).append("</State>").append(NEWLINE);
+            }
+
+            sb.append("<Transitions>").append(NEWLINE);
+            if (exitStateControllers[stateId] != null)
+                sb.append("<ExitState state=\"").append(states[stateId]).append("\" />").append(NEWLINE);
+
+            for (int eventId = 0; eventId < events.length; eventId++) {
+                CompiledTransition transition = getTransition(stateId, eventId);
+                if (transition != null)
+                    sb.append("<Transition ").append("source=\"").append(transition.getSource()).append("\" ")
+                            .append("event=\"").append(transition.getEvent()).append("\" ").append("target=\"")
+                            .append(transition.getTarget()).append("\"").append(" />").append(NEWLINE);
+            }
+
+            if (enterStateControllers[stateId] != null)
+                sb.append("<EnterState state=\"").append(states[stateId]).append("\" />");
+
+            sb.append("</Transitions>").append(NEWLINE);
+        }
+        sb.append("</States>").append(NEWLINE);
+
+        sb.append("<Events>").append(NEWLINE);
+        for (String event : events) {
+            sb.append("<Event>").append(event).append("</Event>").append(NEWLINE);
+        }
+        sb.append("</Events>").append(NEWLINE);
+
+        sb.append("</StateMachineDefinition>");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * One cell of the {@link CompiledStateMachineDefinition} transition table.
+ * Everything a strategy needs for executing the source - event - target tuple
+ * is resolved beforehand: the ordinals, the names and the controllers of the
+ * three phases. Any of the controllers might be null.
+ */
+public final class CompiledTransition {
+    private final int sourceId;
+    private final int eventId;
+    private final int targetId;
+
+    private final String source;
+    private final String event;
+    private final String target;
+
+    private final ExitStateController exitStateController;
+    private final TransitionController transitionController;
+    private final EnterStateController enterStateController;
+
+    CompiledTransition(int sourceId, String source, int eventId, String event, int targetId, String target,
+            ExitStateController exitStateController, TransitionController transitionController,
+            EnterStateController enterStateController) {
+        this.sourceId = sourceId;
+        this.source = source;
+        this.eventId = eventId;
+        this.event = event;
+        this.targetId = targetId;
+        this.target = target;
+        this.exitStateController = exitStateController;
+        this.transitionController = transitionController;
+        this.enterStateController = enterStateController;
+    }
+
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    public int getEventId() {
+        return eventId;
+    }
+
+    public int getTargetId() {
+        return targetId;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * The exit phase controller of the source state
+     */
+    public ExitStateController getExitStateController() {
+        return exitStateController;
+    }
+
+    public TransitionController getTransitionController() {
+        return transitionController;
+    }
+
+    /**
+     * The enter phase controller of the target state
+     */
+    public EnterStateController getEnterStateController() {
+        return enterStateController;
+    }
+
+    public String toString() {
+        return "[" + source + " + " + event + " -> " + target + "]";
+    }
+}
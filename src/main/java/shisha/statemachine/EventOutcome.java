@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+
+/**
+ * What happened to one of the events of
+ * {@link StateMachine#processEvents(Iterable, boolean)}
+ */
+public final class EventOutcome {
+    public enum Status {
+        /**
+         * The transition, and its redirections, completed
+         */
+        APPLIED,
+        /**
+         * An {@link ExitStateController} cancelled the transition
+         */
+        CANCELLED,
+        /**
+         * The event, the transition or the current state are not defined
+         */
+        REJECTED,
+        /**
+         * A controller or the strategy failed processing the event
+         */
+        FAILED,
+        /**
+         * Not processed, a previous event of the batch failed
+         */
+        SKIPPED
+    }
+
+    private final EventInfo event;
+    private final Status status;
+    private final Exception exception;
+
+    public EventOutcome(EventInfo event, Status status, Exception exception) {
+        this.event = event;
+        this.status = status;
+        this.exception = exception;
+    }
+
+    /**
+     * Outcome of an event that threw <code>exception</code>: rejected for
+     * definition errors, failed otherwise
+     */
+    public static EventOutcome failed(EventInfo event, Exception exception) {
+        return new EventOutcome(event, exception instanceof StateMachineDefinitionException ? Status.REJECTED
+                : Status.FAILED, exception);
+    }
+
+    public EventInfo getEvent() {
+        return event;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Whether the event was rejected or failed. A batch that stops on
+     * failures stops after this event
+     */
+    public boolean isFailure() {
+        return status == Status.REJECTED || status == Status.FAILED;
+    }
+
+    /**
+     * The reason of a rejected or failed event, null otherwise
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    public String toString() {
+        return event.getEvent() + ": " + status;
+    }
+}
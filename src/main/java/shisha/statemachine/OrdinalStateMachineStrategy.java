@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+
+/**
+ * A {@link StateMachineStrategy} that processes events identified by their
+ * ordinal in the {@link CompiledStateMachineDefinition}, so the event name is
+ * never hashed nor compared.
+ */
+public interface OrdinalStateMachineStrategy extends StateMachineStrategy {
+    /**
+     * Same as {@link #processEvent(StateMachineImpl, String, Object)} for the
+     * event with ordinal <code>eventId</code>
+     * 
+     * @throws shisha.statemachine.exceptions.EventNotDefinedException
+     *             if there is no event with that ordinal
+     */
+    public void processEvent(StateMachineImpl statemachine, int eventId, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException;
+}
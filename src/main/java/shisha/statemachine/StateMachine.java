@@ -15,7 +15,13 @@
  */
 package shisha.statemachine;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
 import shisha.statemachine.exceptions.StateMachineExecutionException;
 
 /**
@@ -61,6 +67,20 @@ public interface StateMachine {
      */
     public String getCurrentState();
 
+    /**
+     * Returns the current state together with the number of transitions that
+     * led to it. It never waits for a running transition, so monitoring
+     * threads can poll any number of state machines without slowing them
+     * down.
+     * 
+     * <p>
+     * By default the transitions are not counted: the sequence and the state
+     * ordinal are -1.
+     */
+    public default StateSnapshot getStateSnapshot() {
+        return new StateSnapshot(getCurrentState(), -1, -1);
+    }
+
     /**
      * Returns the state machine definition
      */
@@ -71,4 +91,118 @@ public interface StateMachine {
      */
     public void processEvent(String event, Object object) throws StateMachineExecutionException,
             StateMachineDefinitionException;
+
+    /**
+     * Same as {@link #processEvent(String, Object)} with an event resolved by
+     * {@link StateMachineDefinition#event(String)}. {@link StateMachineImpl}
+     * goes straight to the transition table, without looking up the event
+     * name nor the controllers; by default the event is processed by name.
+     * 
+     * @throws shisha.statemachine.exceptions.EventNotDefinedException
+     *             if the handle is not an event of the definition
+     */
+    public default void processEvent(EventRef event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        processEvent(event.getName(), object);
+    }
+
+    /**
+     * Whether the state machine is in <code>state</code>. By default the
+     * names are compared.
+     */
+    public default boolean isInState(StateRef state) {
+        return state.getName().equals(getCurrentState());
+    }
+
+    /**
+     * Consumes an event waiting at most <code>timeout</code> for the state
+     * machine lock, see
+     * {@link StateMachineImpl#processEvent(String, Object, long, TimeUnit)}.
+     * By default the timeout is ignored.
+     * 
+     * @throws shisha.statemachine.exceptions.LockTimeoutException
+     *             if the lock could not be acquired in time. The event has not
+     *             been processed
+     */
+    public default void processEvent(String event, Object object, long timeout, TimeUnit unit)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        processEvent(event, object);
+    }
+
+    /**
+     * Consumes an event without blocking the caller when the implementation
+     * supports it, see {@link StateMachineImpl#processEventAsync(String, Object)}.
+     * By default the event is processed in the calling thread and the future
+     * is already completed.
+     * 
+     * <p>
+     * The future completes with the current state after the transition, or
+     * exceptionally with the exception that {@link #processEvent(String, Object)}
+     * would have thrown.
+     */
+    public default CompletableFuture<String> processEventAsync(String event, Object object) {
+        CompletableFuture<String> result = new CompletableFuture<String>();
+        try {
+            processEvent(event, object);
+            result.complete(getCurrentState());
+        } catch (StateMachineException e) {
+            result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #processEvents(Iterable, boolean)}, stopping at the
+     * first failure
+     */
+    public default List<EventOutcome> processEvents(Iterable<EventInfo> events)
+            throws StateMachineExecutionException {
+        return processEvents(events, false);
+    }
+
+    /**
+     * Consumes the events in order. Errors processing an event do not throw,
+     * they are reported in the returned outcomes, one per event.
+     * {@link StateMachineImpl} acquires the lock once for the whole batch when
+     * its strategy is a {@link BatchStateMachineStrategy}.
+     * 
+     * <p>
+     * By default the events are processed one by one. An event is reported as
+     * cancelled if the sequence of {@link #getStateSnapshot()} did not change
+     * while processing it, and as applied when the implementation does not
+     * count its transitions.
+     * 
+     * @param continueOnFailure
+     *            if false, the events after the first rejected or failed one
+     *            are skipped
+     * @throws StateMachineExecutionException
+     *             if the batch could not start
+     */
+    public default List<EventOutcome> processEvents(Iterable<EventInfo> events, boolean continueOnFailure)
+            throws StateMachineExecutionException {
+        List<EventOutcome> outcomes = new ArrayList<EventOutcome>();
+        boolean failed = false;
+        for (EventInfo event : events) {
+            EventOutcome outcome;
+            if (failed) {
+                outcome = new EventOutcome(event, EventOutcome.Status.SKIPPED, null);
+            } else {
+                long sequence = getStateSnapshot().getSequence();
+                try {
+                    processEvent(event.getEvent(), event.getObject());
+                    outcome = new EventOutcome(event, sequence >= 0 && sequence == getStateSnapshot().getSequence()
+                            ? EventOutcome.Status.CANCELLED : EventOutcome.Status.APPLIED, null);
+                } catch (StateMachineException e) {
+                    outcome = EventOutcome.failed(event, e);
+                } catch (RuntimeException e) {
+                    outcome = EventOutcome.failed(event, e);
+                }
+                failed = outcome.isFailure() && !continueOnFailure;
+            }
+            outcomes.add(outcome);
+        }
+        return outcomes;
+    }
 }
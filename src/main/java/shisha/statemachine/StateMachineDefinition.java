@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.Set;
 
 import shisha.statemachine.annotations.EnterState;
+import shisha.statemachine.exceptions.EventNotDefinedException;
 import shisha.statemachine.exceptions.StateNotDefinedException;
 import shisha.statemachine.exceptions.TransitionNotDefinedException;
 
@@ -122,4 +123,28 @@ public interface StateMachineDefinition {
      */
     public String getTargetState(String source, String event) throws TransitionNotDefinedException,
             StateNotDefinedException;
+
+    /**
+     * Resolves the state once, so the callers that already know it do not
+     * look up its name on every use. By default the handle has no ordinal and
+     * is compared by name.
+     */
+    public default StateRef state(String state) throws StateNotDefinedException {
+        if (!isState(state))
+            throw new StateNotDefinedException("State " + state + " does not exist");
+
+        return new StateRef(state, -1);
+    }
+
+    /**
+     * Resolves the event once, see
+     * {@link StateMachine#processEvent(EventRef, Object)}. By default the
+     * handle has no ordinal and is processed by name.
+     */
+    public default EventRef event(String event) throws EventNotDefinedException {
+        if (!isEvent(event))
+            throw new EventNotDefinedException("Event " + event + " does not exist");
+
+        return new EventRef(event, -1);
+    }
 }
@@ -15,7 +15,6 @@
  */
 package shisha.statemachine;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -70,7 +69,8 @@ import com.google.common.collect.Sets;
  * 
  * <p>
  * A state machine has an initial state. Contains all the data for a state
- * machine. It is not thread-safe
+ * machine. It is not thread-safe: finish the definition and {@link #freeze()}
+ * it before sharing it between threads.
  */
 public class StateMachineDefinitionImpl implements StateMachineDefinition {
     private static Logger l = LoggerFactory.getLogger(StateMachineDefinitionImpl.class);
@@ -80,9 +80,20 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
     private HashMap<String, State> states;
     private HashSet<String> events;
 
+    // States and events in definition order. The position is the ordinal used
+    // by the compiled definition
+    private ArrayList<State> stateList;
+    private ArrayList<String> eventList;
+
+    // Last compiled version. Discarded as soon as the definition changes
+    private volatile CompiledStateMachineDefinition compiled;
+    private volatile boolean frozen;
+
     public StateMachineDefinitionImpl() {
         this.states = Maps.newHashMap();
         this.events = Sets.newHashSet();
+        this.stateList = new ArrayList<State>();
+        this.eventList = new ArrayList<String>();
     }
 
     public boolean isEvent(String event) {
@@ -113,13 +124,16 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
     }
 
     public void defineEvent(String event) throws EventAlreadyExistsException {
+        checkNotFrozen();
         checkEventNotNull(event);
 
         if (events.contains(event))
             throw new EventAlreadyExistsException("Event " + event + " already defined in the state machine");
 
         events.add(event);
-        l.debug("#defineEvent succeed for event id " + event);
+        eventList.add(event);
+        compiled = null;
+        l.debug("#defineEvent succeed for event id {}", event);
     }
 
     public Set<String> getEvents() {
@@ -132,6 +146,7 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
 
     public void defineState(String state, boolean isStart, boolean isFinal) throws StateAlreadyExistsException,
             ConstraintException {
+        checkNotFrozen();
 
         checkStateNotNull(state);
 
@@ -145,10 +160,13 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         if (states.containsKey(state)) {
             throw new StateAlreadyExistsException("State " + state + " already defined");
         } else {
-            states.put(state, new State(state, isStart, isFinal));
+            State internalState = new State(stateList.size(), state, isStart, isFinal);
+            states.put(state, internalState);
+            stateList.add(internalState);
+            compiled = null;
         }
 
-        l.debug("#defineState succeed for state id " + state);
+        l.debug("#defineState succeed for state id {}", state);
 
         if (isStart)
             this.startState = state;
@@ -168,6 +186,11 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         return result;
     }
 
+    private void checkNotFrozen() {
+        if (frozen)
+            throw new IllegalStateException("The definition is frozen, it cannot be changed");
+    }
+
     private State checkStateExists(String state) throws StateNotDefinedException {
         if (!isState(state))
             throw new StateNotDefinedException("State " + state + " does not exist");
@@ -190,25 +213,15 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
             throw new IllegalArgumentException("Can not define an event with null value");
     }
 
-    void defineTransition(Transition transition, final Method method, final Object callee)
+    void defineTransition(Transition transition, Method method, Object callee)
             throws StateMachineDefinitionException {
-        this.defineTransition(transition.source(), transition.event(), transition.target(), new TransitionController() {
-            public void execute(TransitionInfo event) {
-                try {
-                    method.invoke(callee, event);
-                } catch (IllegalAccessException e) {
-                    l.error("This should never happen");
-                } catch (IllegalArgumentException e) {
-                    l.error("This should never happen");
-                } catch (InvocationTargetException swallow) {
-                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
-                }
-            }
-        });
+        this.defineTransition(transition.source(), transition.event(), transition.target(),
+                AnnotatedControllers.transitionController(method, callee));
     }
 
     public void defineTransition(String source, String event, String target, TransitionController controller)
             throws StateMachineDefinitionException {
+        checkNotFrozen();
         State sourceState = checkStateExists(source);
         checkStateExists(target);
         checkEventExists(event);
@@ -216,56 +229,31 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         if (sourceState.isFinal() && !source.equals(target))
             throw new ConstraintException("Cannot create transitions from the final state " + source);
         sourceState.setTransitionController(event, target, controller);
+        compiled = null;
     }
 
-    void defineExitState(ExitState ann, final Method method, final Object callee)
+    void defineExitState(ExitState ann, Method method, Object callee)
             throws StateMachineDefinitionException {
-        this.defineExitState(ann.value(), new ExitStateController() {
-            public Boolean execute(TransitionInfo event) {
-                Boolean result = null;
-                try {
-                    result = (Boolean) method.invoke(callee, event);
-                    if (result == null)
-                        result = true; // We might be able to define void methods
-                } catch (IllegalAccessException e) {
-                    l.error("This should never happen");
-                } catch (IllegalArgumentException e) {
-                    l.error("This should never happen");
-                } catch (InvocationTargetException swallow) {
-                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
-                }
-                return result;
-            }
-        });
+        this.defineExitState(ann.value(), AnnotatedControllers.exitStateController(method, callee));
     }
 
     public void defineExitState(String state, ExitStateController controller) throws StateMachineDefinitionException {
+        checkNotFrozen();
         State internalState = checkStateExists(state);
         internalState.setExitStateController(controller);
+        compiled = null;
     }
 
-    void defineEnterState(final EnterState ann, final Method method, final Object callee)
+    void defineEnterState(EnterState ann, Method method, Object callee)
             throws StateMachineDefinitionException {
-        this.defineEnterState(ann.value(), new EnterStateController() {
-            public EventInfo execute(TransitionInfo event) {
-                EventInfo evtInfo = null;
-                try {
-                    evtInfo = (EventInfo) method.invoke(callee, event);
-                } catch (IllegalAccessException e) {
-                    l.error("This should never happen");
-                } catch (IllegalArgumentException e) {
-                    l.error("This should never happen");
-                } catch (InvocationTargetException swallow) {
-                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
-                }
-                return evtInfo;
-            }
-        });
+        this.defineEnterState(ann.value(), AnnotatedControllers.enterStateController(method, callee));
     }
 
     public void defineEnterState(String state, EnterStateController controller) throws StateMachineDefinitionException {
+        checkNotFrozen();
         State internalState = checkStateExists(state);
         internalState.setEnterStateController(controller);
+        compiled = null;
     }
 
     public TransitionController getTransitionController(String state, String event) throws StateNotDefinedException,
@@ -335,6 +323,91 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         return result;
     }
 
+    /**
+     * Resolved by the compiled definition, see {@link #compile()}. Handles
+     * remain valid after changing the definition, states and events keep
+     * their ordinals.
+     */
+    public StateRef state(String state) throws StateNotDefinedException {
+        return compile().state(state);
+    }
+
+    public EventRef event(String event) throws EventNotDefinedException {
+        return compile().event(event);
+    }
+
+    /**
+     * Finishes the definition: later attempts to change it throw an
+     * {@link IllegalStateException}. Returns the compiled definition, which
+     * from now on is always the same instance. It only has final fields, so
+     * it can be shared with any number of state machines in any thread
+     * without synchronization, and its queries do not allocate.
+     */
+    public CompiledStateMachineDefinition freeze() {
+        frozen = true;
+        return compile();
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns an immutable, table driven snapshot of this definition. The
+     * snapshot is cached until the definition changes, so invoking this method
+     * on a finished definition is cheap. Later changes to the definition are
+     * not reflected in an already returned snapshot.
+     */
+    public CompiledStateMachineDefinition compile() {
+        CompiledStateMachineDefinition result = compiled;
+        if (result == null) {
+            result = doCompile();
+            compiled = result;
+        }
+        return result;
+    }
+
+    private CompiledStateMachineDefinition doCompile() {
+        int stateCount = stateList.size();
+        int eventCount = eventList.size();
+
+        String[] stateNames = new String[stateCount];
+        boolean[] finalStates = new boolean[stateCount];
+        ExitStateController[] exitControllers = new ExitStateController[stateCount];
+        EnterStateController[] enterControllers = new EnterStateController[stateCount];
+        int startStateId = -1;
+        for (State state : stateList) {
+            stateNames[state.getId()] = state.getName();
+            finalStates[state.getId()] = state.isFinal();
+            exitControllers[state.getId()] = state.getExitStateController();
+            enterControllers[state.getId()] = state.getEnterStateController();
+            if (state.isStart())
+                startStateId = state.getId();
+        }
+
+        HashMap<String, Integer> eventIds = new HashMap<String, Integer>(eventCount * 2);
+        String[] eventNames = eventList.toArray(new String[eventCount]);
+        for (int i = 0; i < eventCount; i++)
+            eventIds.put(eventNames[i], i);
+
+        CompiledTransition[] table = new CompiledTransition[stateCount * eventCount];
+        for (State source : stateList) {
+            for (String event : source.getTransitions().keySet()) {
+                TransitionTarget txTarget = source.getTransitions().get(event);
+                State target = states.get(txTarget.getState());
+                int eventId = eventIds.get(event);
+
+                table[source.getId() * eventCount + eventId] = new CompiledTransition(source.getId(),
+                        source.getName(), eventId, event, target.getId(), target.getName(),
+                        source.getExitStateController(), txTarget.getTransitionController(),
+                        target.getEnterStateController());
+            }
+        }
+
+        return new CompiledStateMachineDefinition(stateNames, finalStates, startStateId, eventNames,
+                exitControllers, enterControllers, table);
+    }
+
     private void printTransitionsForState(State state, StringBuilder sb) {
         String NEWLINE = "\n";
         sb.append("<Transitions>").append(NEWLINE);
@@ -415,6 +488,7 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
      * not and the list of transitions to other states.
      */
     private class State {
+        private int id;
         private String name;
         private boolean isStart;
         private boolean isFinal;
@@ -423,13 +497,18 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
 
         private HashMap<String, TransitionTarget> transitions;
 
-        public State(String name, boolean isStart, boolean isFinal) {
+        public State(int id, String name, boolean isStart, boolean isFinal) {
+            this.id = id;
             this.name = name;
             this.isStart = isStart;
             this.isFinal = isFinal;
             this.transitions = new HashMap<String, TransitionTarget>();
         }
 
+        public int getId() {
+            return this.id;
+        }
+
         public String getName() {
             return this.name;
         }
@@ -15,11 +15,19 @@
  */
 package shisha.statemachine;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import shisha.statemachine.exceptions.EventNotDefinedException;
 import shisha.statemachine.exceptions.StartStateNotDefinedException;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
 import shisha.statemachine.exceptions.StateMachineExecutionException;
 
 /**
@@ -27,9 +35,34 @@ import shisha.statemachine.exceptions.StateMachineExecutionException;
  * strategy
  */
 public class StateMachineImpl implements StateMachine {
-    protected Logger l = LoggerFactory.getLogger(getClass());
+    private static final AtomicLongFieldUpdater<StateMachineImpl> STATE = AtomicLongFieldUpdater.newUpdater(
+            StateMachineImpl.class, "stateWord");
+
+    // The state word packs the number of times the state has been set in the
+    // upper bits and the ordinal of the state plus one in the lower ones, so
+    // both are read and written at once
+    private static final int STATE_ID_BITS = 24;
+    private static final long STATE_ID_MASK = (1L << STATE_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << (64 - STATE_ID_BITS)) - 1;
 
+    /**
+     * Maximum number of states of a compiled definition
+     */
+    public static final int MAX_STATES = (int) STATE_ID_MASK - 1;
+
+    private static final Logger l = LoggerFactory.getLogger(StateMachineImpl.class);
+
+    // Name of the current state, only set when the definition does not know
+    // it. Otherwise the name comes from the ordinal in the state word, so a
+    // transition publishes the state with a single volatile write. Written
+    // before the state word and read after it, so it needs no volatile of its
+    // own
     protected String currentState;
+    private volatile long stateWord;
+    private final boolean compilable;
+    // Guarded by the monitor of the state machine, see enterTransition
+    private boolean inTransition;
+    private volatile TransitionListener transitionListener;
     protected StateMachineDefinition definition;
     protected StateMachineStrategy strategy;
 
@@ -37,10 +70,16 @@ public class StateMachineImpl implements StateMachine {
             throws StartStateNotDefinedException {
         this.definition = definition;
         this.strategy = strategy;
+        this.compilable = definition instanceof CompiledStateMachineDefinition
+                || definition instanceof StateMachineDefinitionImpl;
+        if (compilable && CompiledStateMachineDefinition.of(definition).getStateCount() > MAX_STATES)
+            throw new IllegalArgumentException("State machines cannot have more than " + MAX_STATES + " states");
         this.currentState = definition.getStartState();
 
         if (currentState == null)
             throw new StartStateNotDefinedException("Start state has not been defined for the state machine");
+
+        this.stateWord = stateIdOf(currentState) + 1;
     }
 
     /**
@@ -56,6 +95,129 @@ public class StateMachineImpl implements StateMachine {
         strategy.processEvent(this, event, object);
     }
 
+    /**
+     * Processes the event with ordinal <code>eventId</code> in the
+     * {@link CompiledStateMachineDefinition}, without looking up its name when
+     * the strategy is an {@link OrdinalStateMachineStrategy}
+     * 
+     * @throws shisha.statemachine.exceptions.EventNotDefinedException
+     *             if there is no event with that ordinal
+     */
+    public void processEvent(int eventId, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        if (strategy instanceof OrdinalStateMachineStrategy) {
+            ((OrdinalStateMachineStrategy) strategy).processEvent(this, eventId, object);
+            return;
+        }
+
+        CompiledStateMachineDefinition compiled = CompiledStateMachineDefinition.of(definition);
+        if (eventId < 0 || eventId >= compiled.getEventCount())
+            throw new EventNotDefinedException("Event ordinal " + eventId + " not defined");
+
+        strategy.processEvent(this, compiled.getEventName(eventId), object);
+    }
+
+    /**
+     * Goes straight to the transition table with the ordinal of the handle.
+     * Handles without ordinal are processed by name.
+     */
+    public void processEvent(EventRef event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        if (!compilable || event.getId() < 0) {
+            strategy.processEvent(this, event.getName(), object);
+            return;
+        }
+
+        if (!CompiledStateMachineDefinition.of(definition).isEvent(event))
+            throw new EventNotDefinedException("Event " + event + " is not an event of this state machine");
+
+        processEvent(event.getId(), object);
+    }
+
+    /**
+     * Compares ordinals, or names for handles without ordinal
+     */
+    public boolean isInState(StateRef state) {
+        if (!compilable || state.getId() < 0)
+            return state.getName().equals(getCurrentState());
+
+        return state.getId() == getCurrentStateId()
+                && CompiledStateMachineDefinition.of(definition).isState(state);
+    }
+
+    /**
+     * Waits at most <code>timeout</code> for the lock when the strategy is a
+     * {@link TimedStateMachineStrategy}. Other strategies ignore the timeout.
+     */
+    public void processEvent(String event, Object object, long timeout, TimeUnit unit)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        if (strategy instanceof TimedStateMachineStrategy) {
+            ((TimedStateMachineStrategy) strategy).processEvent(this, event, object, timeout, unit);
+        } else {
+            strategy.processEvent(this, event, object);
+        }
+    }
+
+    /**
+     * Consumes an event without blocking the caller when the strategy is an
+     * {@link AsyncStateMachineStrategy}. Any other strategy processes the
+     * event in the calling thread and returns a completed future.
+     */
+    public CompletableFuture<String> processEventAsync(String event, Object object) {
+        if (strategy instanceof AsyncStateMachineStrategy)
+            return ((AsyncStateMachineStrategy) strategy).processEventAsync(this, event, object);
+
+        CompletableFuture<String> result = new CompletableFuture<String>();
+        try {
+            strategy.processEvent(this, event, object);
+            result.complete(getCurrentState());
+        } catch (StateMachineException e) {
+            result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    public List<EventOutcome> processEvents(Iterable<EventInfo> events) throws StateMachineExecutionException {
+        return processEvents(events, false);
+    }
+
+    /**
+     * Delegates on the strategy if it is a {@link BatchStateMachineStrategy}.
+     * Otherwise the events are processed one by one; an event is then reported
+     * as cancelled if the state was not set while processing it, which is
+     * only accurate if no other thread processes events at the same time.
+     */
+    public List<EventOutcome> processEvents(Iterable<EventInfo> events, boolean continueOnFailure)
+            throws StateMachineExecutionException {
+        if (strategy instanceof BatchStateMachineStrategy)
+            return ((BatchStateMachineStrategy) strategy).processEvents(this, events, continueOnFailure);
+
+        List<EventOutcome> outcomes = new ArrayList<EventOutcome>();
+        boolean failed = false;
+        for (EventInfo event : events) {
+            EventOutcome outcome;
+            if (failed) {
+                outcome = new EventOutcome(event, EventOutcome.Status.SKIPPED, null);
+            } else {
+                long sequence = stateWord >>> STATE_ID_BITS;
+                try {
+                    strategy.processEvent(this, event.getEvent(), event.getObject());
+                    outcome = new EventOutcome(event, sequence == stateWord >>> STATE_ID_BITS
+                            ? EventOutcome.Status.CANCELLED : EventOutcome.Status.APPLIED, null);
+                } catch (StateMachineException e) {
+                    outcome = EventOutcome.failed(event, e);
+                } catch (RuntimeException e) {
+                    outcome = EventOutcome.failed(event, e);
+                }
+                failed = outcome.isFailure() && !continueOnFailure;
+            }
+            outcomes.add(outcome);
+        }
+        return outcomes;
+    }
+
     public StateMachineDefinition getDefinition() {
         return this.definition;
     }
@@ -64,13 +226,152 @@ public class StateMachineImpl implements StateMachine {
         return this.strategy;
     }
 
+    /**
+     * Safe to call from any thread, it never waits for a running transition
+     */
     public String getCurrentState() {
-        return currentState;
+        return stateName(stateId(stateWord));
+    }
+
+    /**
+     * The state and the sequence are read from a single word, so they always
+     * belong to the same transition
+     */
+    public StateSnapshot getStateSnapshot() {
+        long word = stateWord;
+        int stateId = stateId(word);
+        return new StateSnapshot(stateName(stateId), stateId, word >>> STATE_ID_BITS);
+    }
+
+    /**
+     * Number of times the state has been set, see
+     * {@link StateSnapshot#getSequence()}
+     */
+    public long getSequence() {
+        return stateWord >>> STATE_ID_BITS;
+    }
+
+    public TransitionListener getTransitionListener() {
+        return transitionListener;
+    }
+
+    /**
+     * Listener notified of every transition, null for none. Only the
+     * strategies of this library notify it.
+     */
+    public void setTransitionListener(TransitionListener transitionListener) {
+        this.transitionListener = transitionListener;
+    }
+
+    /**
+     * Puts the state machine back in a state saved before, for instance in a
+     * journal, with the sequence it had at that point. Must not be called
+     * while the state machine processes events.
+     */
+    public void restore(int stateId, long sequence) {
+        if (!compilable || stateId < 0 || stateId >= CompiledStateMachineDefinition.of(definition).getStateCount())
+            throw new IllegalArgumentException("Unknown state ordinal " + stateId);
+
+        this.stateWord = ((sequence & SEQUENCE_MASK) << STATE_ID_BITS) | (stateId + 1);
+    }
+
+    /**
+     * Ordinal of the current state as defined in the
+     * {@link CompiledStateMachineDefinition}, or -1 if the definition cannot be
+     * compiled.
+     */
+    public int getCurrentStateId() {
+        return stateId(stateWord);
     }
 
     public void setCurrentState(String currentState) {
-        l.debug("#setCurrentState: " + currentState);
-        this.currentState = currentState;
+        setCurrentState(currentState, stateIdOf(currentState));
+    }
+
+    /**
+     * Same as {@link #setCurrentState(String)} when the caller already knows
+     * the ordinal of the state, so no lookup is required.
+     */
+    public void setCurrentState(String currentState, int currentStateId) {
+        if (l.isDebugEnabled())
+            l.debug("#setCurrentState: " + currentState);
+        if (currentStateId < 0)
+            this.currentState = currentState;
+        // Only the thread running the transition sets the state, a plain
+        // volatile write is enough
+        this.stateWord = next(stateWord, currentStateId);
+    }
+
+    /**
+     * Atomically moves the state machine to the state <code>newStateId</code>
+     * if it is still in <code>expectedStateId</code>. Only meaningful when the
+     * definition can be compiled, as both are ordinals of the
+     * {@link CompiledStateMachineDefinition}.
+     * 
+     * @return false if the current state was not <code>expectedStateId</code>
+     */
+    public boolean compareAndSetCurrentState(int expectedStateId, int newStateId) {
+        return compareAndAdvance(expectedStateId, newStateId) >= 0;
+    }
+
+    /**
+     * Same as {@link #compareAndSetCurrentState(int, int)}, returning the
+     * sequence of the new state or -1 if the current state was not
+     * <code>expectedStateId</code>
+     */
+    public long compareAndAdvance(int expectedStateId, int newStateId) {
+        if (expectedStateId < 0 || newStateId < 0)
+            throw new IllegalArgumentException("Unknown state ordinal");
+
+        while (true) {
+            long word = stateWord;
+            if (stateId(word) != expectedStateId)
+                return -1;
+
+            long next = next(word, newStateId);
+            if (STATE.compareAndSet(this, word, next))
+                return next >>> STATE_ID_BITS;
+        }
+    }
+
+    /**
+     * Marks the state machine as being in a transition, for strategies
+     * keeping no state of their own. The caller must hold the monitor of the
+     * state machine.
+     * 
+     * @return false if the state machine was already in a transition
+     */
+    public boolean enterTransition() {
+        if (inTransition)
+            return false;
+
+        inTransition = true;
+        return true;
+    }
+
+    /**
+     * Ends the transition started by {@link #enterTransition()}
+     */
+    public void exitTransition() {
+        inTransition = false;
+    }
+
+    private static int stateId(long word) {
+        return (int) (word & STATE_ID_MASK) - 1;
+    }
+
+    // Increments the sequence, wrapping around, and sets the state
+    private static long next(long word, int stateId) {
+        long sequence = ((word >>> STATE_ID_BITS) + 1) & SEQUENCE_MASK;
+        return (sequence << STATE_ID_BITS) | (stateId + 1);
+    }
+
+    private String stateName(int stateId) {
+        return stateId < 0 ? currentState : CompiledStateMachineDefinition.of(definition).getStateName(stateId);
+    }
+
+    private int stateIdOf(String state) {
+        return compilable ? CompiledStateMachineDefinition.of(definition).getStateId(state) : -1;
     }
 
     /**
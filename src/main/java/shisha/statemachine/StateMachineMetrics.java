@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * Instrumentation of the strategies, notified with the time spent waiting for
+ * the state machine lock and in every phase of a transition. Set with
+ * {@link shisha.statemachine.strategy.ReentrantStrategy#setMetrics(StateMachineMetrics)}
+ * and its equivalents in the other strategies; without it no time is taken.
+ * See {@link shisha.statemachine.metrics.TransitionMetrics} for the default
+ * implementation.
+ *
+ * <p>
+ * The methods are called from the threads processing the events, within the
+ * transition, so they must be short and thread safe. Transitions failing with
+ * an exception are not reported.
+ */
+public interface StateMachineMetrics {
+    /**
+     * Whether the strategies should time the next event. Checked once per
+     * event or batch, before reading the clock, so metrics that are mostly
+     * off cost a method call.
+     */
+    public boolean isEnabled();
+
+    /**
+     * Called once the lock has been acquired for an event, or for a batch of
+     * events. Locks acquired without waiting may be reported as 0 without
+     * taking the time.
+     */
+    public void onLockAcquired(StateMachineImpl statemachine, long waitNanos);
+
+    /**
+     * Called after the enter phase of every transition, redirections included.
+     * The exit and enter phases are only timed when the state has a
+     * controller for them.
+     * 
+     * @param exitNanos
+     *            time of the exit phase, -1 without exit state controller
+     * @param transitionNanos
+     *            time of the transition phase, including the update of the
+     *            state and the {@link TransitionListener}
+     * @param enterNanos
+     *            time of the enter phase, -1 without enter state controller
+     */
+    public void onTransition(StateMachineImpl statemachine, CompiledTransition transition, long exitNanos,
+            long transitionNanos, long enterNanos);
+
+    /**
+     * Called when the exit state controller cancelled the transition
+     */
+    public void onCancelled(StateMachineImpl statemachine, CompiledTransition transition, long exitNanos);
+}
@@ -17,9 +17,15 @@ package shisha.statemachine;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 
@@ -36,19 +42,37 @@ import shisha.statemachine.exceptions.IllegalEventAnnotationException;
 import shisha.statemachine.exceptions.IllegalStateAnnotationException;
 import shisha.statemachine.exceptions.IllegalTransitionAnnotationException;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.strategy.ActorScheduler;
+import shisha.statemachine.strategy.ActorStrategy;
+import shisha.statemachine.strategy.FlyweightStrategy;
+import shisha.statemachine.strategy.MailboxStrategy;
 import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.strategy.OptimisticStrategy;
 import shisha.statemachine.strategy.ReentrantStrategy;
+import shisha.statemachine.strategy.VirtualThreadStrategy;
 
 /**
  * Helper class for creating state machines from a state machine definition or
  * from an annotated class.
  * 
  * <p>
- * The annotated class must be annotated with {@link AStateMachine}
+ * The annotated class must be annotated with {@link AStateMachine}. When the
+ * class has been compiled with the
+ * {@link shisha.statemachine.processor.StateMachineProcessor}, the generated
+ * definition is used and no reflection is involved.
  */
 public class StateMachines {
     protected static Logger l = getLogger(StateMachines.class);
 
+    // Parsed layout of the annotated classes. Only the first state machine of
+    // a class pays for the reflection and the validations
+    private static final ClassValue<AnnotatedClass> ANNOTATED_CLASSES = new ClassValue<AnnotatedClass>() {
+        @Override
+        protected AnnotatedClass computeValue(Class<?> type) {
+            return new AnnotatedClass(type);
+        }
+    };
+
     public static StateMachine newReentrant(StateMachineDefinition definition) throws StateMachineDefinitionException {
         return new StateMachineImpl(definition, new ReentrantStrategy());
     }
@@ -65,9 +89,71 @@ public class StateMachines {
         return new StateMachineImpl(processAnnotatedController(instance), new NonReentrantStrategy());
     }
 
-    static void checkClassAnnotation(StateMachineDefinition definition, Object instance)
+    /**
+     * State machine sharing its strategy with all the other flyweight ones,
+     * see {@link FlyweightStrategy}. Meant for huge numbers of state machines.
+     */
+    public static StateMachine newFlyweight(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        return new StateMachineImpl(definition, FlyweightStrategy.SHARED);
+    }
+
+    public static StateMachine newFlyweight(Object instance) throws StateMachineDefinitionException {
+        return new StateMachineImpl(processAnnotatedController(instance), FlyweightStrategy.SHARED);
+    }
+
+    /**
+     * State machine processing the events in <code>executor</code>, see
+     * {@link MailboxStrategy}
+     */
+    public static StateMachineImpl newAsync(StateMachineDefinition definition, Executor executor)
+            throws StateMachineDefinitionException {
+        return new StateMachineImpl(definition, new MailboxStrategy(executor));
+    }
+
+    public static StateMachineImpl newAsync(Object instance, Executor executor) throws StateMachineDefinitionException {
+        return new StateMachineImpl(processAnnotatedController(instance), new MailboxStrategy(executor));
+    }
+
+    /**
+     * State machine run by the shared <code>scheduler</code>, see
+     * {@link ActorStrategy}
+     */
+    public static StateMachineImpl newActor(StateMachineDefinition definition, ActorScheduler scheduler)
+            throws StateMachineDefinitionException {
+        return new StateMachineImpl(definition, new ActorStrategy(scheduler));
+    }
+
+    public static StateMachineImpl newActor(Object instance, ActorScheduler scheduler)
             throws StateMachineDefinitionException {
-        Class<?> clazz = instance.getClass();
+        return new StateMachineImpl(processAnnotatedController(instance), new ActorStrategy(scheduler));
+    }
+
+    /**
+     * State machine running its transitions on virtual threads, see
+     * {@link VirtualThreadStrategy}
+     */
+    public static StateMachineImpl newVirtual(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        return new StateMachineImpl(definition, new VirtualThreadStrategy());
+    }
+
+    public static StateMachineImpl newVirtual(Object instance) throws StateMachineDefinitionException {
+        return new StateMachineImpl(processAnnotatedController(instance), new VirtualThreadStrategy());
+    }
+
+    /**
+     * Lock-free state machine, see {@link OptimisticStrategy}. Definitions
+     * with exit state controllers are rejected.
+     */
+    public static StateMachine newOptimistic(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        OptimisticStrategy.checkDefinition(definition);
+        return new StateMachineImpl(definition, new OptimisticStrategy());
+    }
+
+    public static StateMachine newOptimistic(Object instance) throws StateMachineDefinitionException {
+        return newOptimistic(processAnnotatedController(instance));
+    }
+
+    static void checkClassAnnotation(Class<?> clazz) throws StateMachineDefinitionException {
         if (!clazz.isAnnotationPresent(shisha.statemachine.annotations.AStateMachine.class)) {
             throw new IllegalControllerAnnotationException(
                     "All state machines must be annotated with the @AStateMachine annotation");
@@ -75,12 +161,19 @@ public class StateMachines {
     }
 
     static StateMachineDefinitionImpl checkFieldAnnotations(StateMachineDefinitionImpl stateMachineDefinition,
-            Object instance) throws StateMachineDefinitionException {
-        Class<?> clazz = instance.getClass();
-        
+            Class<?> clazz, Object instance) throws StateMachineDefinitionException {
         // Let's process the events and states first.
-        // We look for the State, StartState and Event annotations
-        for (Field field : clazz.getDeclaredFields()) {
+        // We look for the State, StartState and Event annotations. The order
+        // of getDeclaredFields is not specified, so the fields are sorted by
+        // name: the ordinals are the same for every JVM and for the definitions
+        // generated by the annotation processor
+        Field[] fields = clazz.getDeclaredFields();
+        Arrays.sort(fields, new Comparator<Field>() {
+            public int compare(Field a, Field b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        for (Field field : fields) {
             if (field.isAnnotationPresent(State.class))
                 checkStateAnnotation(instance, stateMachineDefinition, field, field.getAnnotation(State.class));
 
@@ -91,21 +184,29 @@ public class StateMachines {
         return stateMachineDefinition;
     }
 
-    static private StateMachineDefinition processAnnotatedController(Object instance)
+    static private CompiledStateMachineDefinition processAnnotatedController(Object instance)
+            throws StateMachineDefinitionException {
+        return ANNOTATED_CLASSES.get(instance.getClass()).newDefinition(instance);
+    }
+
+    /**
+     * Parses the annotated class. If <code>instance</code> is null, the
+     * controllers of the annotated methods are left unbound.
+     */
+    static StateMachineDefinitionImpl parseAnnotatedClass(Class<?> clazz, Object instance)
             throws StateMachineDefinitionException {
         StateMachineDefinitionImpl stateMachineDefinition = new StateMachineDefinitionImpl();
 
-        checkClassAnnotation(stateMachineDefinition, instance);
-        checkFieldAnnotations(stateMachineDefinition, instance);
-        checkTransitionAnnotations(stateMachineDefinition, instance);
+        checkClassAnnotation(clazz);
+        checkFieldAnnotations(stateMachineDefinition, clazz, instance);
+        checkTransitionAnnotations(stateMachineDefinition, clazz, instance);
 
         return stateMachineDefinition;
     }
 
-    static void checkTransitionAnnotations(StateMachineDefinitionImpl definition, Object instance)
+    static void checkTransitionAnnotations(StateMachineDefinitionImpl definition, Class<?> clazz, Object instance)
             throws StateMachineDefinitionException {
         // Let's process the transitions
-        Class<?> clazz = instance.getClass();
         for (Method method : clazz.getMethods()) {
             if (method.isAnnotationPresent(Transitions.class)) {
                 Transitions transitions = method.getAnnotation(Transitions.class);
@@ -207,4 +308,98 @@ public class StateMachines {
                 .isPublic(field.getModifiers()));
     }
 
+    /**
+     * The cached layout of an annotated class: a compiled definition whose
+     * annotated methods are not bound to any instance yet. Creating the
+     * definition for a new instance only binds those methods.
+     *
+     * <p>
+     * States or events declared in instance fields might change from one
+     * instance to another, so those classes are parsed for every instance.
+     * Definition errors are kept and thrown for every new instance.
+     *
+     * <p>
+     * If the annotation processor generated a definition for the class, it is
+     * preferred over all of the above.
+     */
+    private static class AnnotatedClass {
+        private MethodHandle generated;
+        private CompiledStateMachineDefinition template;
+        private StateMachineDefinitionException error;
+        private boolean parsePerInstance;
+
+        AnnotatedClass(Class<?> clazz) {
+            generated = findGeneratedDefinition(clazz);
+            if (generated != null)
+                return;
+
+            for (Field field : clazz.getDeclaredFields()) {
+                if ((field.isAnnotationPresent(State.class) || field.isAnnotationPresent(Event.class))
+                        && !Modifier.isStatic(field.getModifiers()))
+                    parsePerInstance = true;
+            }
+
+            if (!parsePerInstance) {
+                try {
+                    template = parseAnnotatedClass(clazz, null).compile();
+                } catch (StateMachineDefinitionException e) {
+                    error = e;
+                }
+            }
+        }
+
+        CompiledStateMachineDefinition newDefinition(Object instance) throws StateMachineDefinitionException {
+            if (generated != null)
+                return invokeGeneratedDefinition(instance);
+
+            if (error != null)
+                throw error;
+
+            if (parsePerInstance)
+                return parseAnnotatedClass(instance.getClass(), instance).compile();
+
+            return template.bind(instance);
+        }
+
+        private CompiledStateMachineDefinition invokeGeneratedDefinition(Object instance)
+                throws StateMachineDefinitionException {
+            try {
+                return (CompiledStateMachineDefinition) generated.invoke(instance);
+            } catch (StateMachineDefinitionException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Looks for the <code>XxxStateMachineDefinition</code> class generated
+         * by the annotation processor, next to the annotated class.
+         */
+        private static MethodHandle findGeneratedDefinition(Class<?> clazz) {
+            String name = clazz.getName();
+            int index = name.lastIndexOf('.');
+            String generatedName = name.substring(0, index + 1) + name.substring(index + 1).replace('$', '_')
+                    + "StateMachineDefinition";
+
+            try {
+                Class<?> generatedClass = Class.forName(generatedName, true, clazz.getClassLoader());
+                return MethodHandles.publicLookup().findStatic(generatedClass, "newDefinition",
+                        MethodType.methodType(CompiledStateMachineDefinition.class, clazz));
+            } catch (ClassNotFoundException e) {
+                return null;
+            } catch (NoSuchMethodException e) {
+                l.warn("Ignoring " + generatedName + ", it does not look like a generated definition");
+                return null;
+            } catch (IllegalAccessException e) {
+                l.warn("Ignoring " + generatedName + ", it is not accessible");
+                return null;
+            }
+        }
+    }
+
 }
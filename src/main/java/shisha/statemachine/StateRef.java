@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * Handle of a state of a {@link CompiledStateMachineDefinition}, resolved
+ * once with {@link StateMachineDefinition#state(String)}. It carries the
+ * ordinal of the state, so using it does not look up the name. Handles of
+ * other definitions have no ordinal, -1, and are compared by name.
+ *
+ * <p>
+ * A handle stays valid while the state keeps its ordinal: for the definitions
+ * compiled from the same {@link StateMachineDefinitionImpl}, and for the ones
+ * with the same fingerprint.
+ */
+public final class StateRef {
+    private final String name;
+    private final int id;
+
+    StateRef(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Ordinal of the state in the {@link CompiledStateMachineDefinition}, -1
+     * if it was resolved by name
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Whether the state has the ordinal of this handle in <code>names</code>.
+     * Names of the same definition are the same instances, so it is usually a
+     * reference comparison.
+     */
+    boolean belongsTo(String[] names) {
+        return id >= 0 && id < names.length && name.equals(names[id]);
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * The state of a state machine at some point, as returned by
+ * {@link StateMachine#getStateSnapshot()}. The state and the sequence always
+ * belong to the same transition.
+ */
+public final class StateSnapshot {
+    private final String state;
+    private final int stateId;
+    private final long sequence;
+
+    StateSnapshot(String state, int stateId, long sequence) {
+        this.state = state;
+        this.stateId = stateId;
+        this.sequence = sequence;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * Ordinal of the state in the {@link CompiledStateMachineDefinition}, or
+     * -1 if unknown
+     */
+    public int getStateId() {
+        return stateId;
+    }
+
+    /**
+     * Number of times the state has been set since the state machine was
+     * created, modulo 2<sup>40</sup>. Two snapshots with the same sequence
+     * have seen the same state. -1 if the state machine does not count its
+     * transitions.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String toString() {
+        return state + "#" + sequence;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.concurrent.TimeUnit;
+
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+
+/**
+ * A {@link StateMachineStrategy} that can bound the time a caller waits for
+ * the state machine lock.
+ */
+public interface TimedStateMachineStrategy extends StateMachineStrategy {
+    /**
+     * Same as {@link #processEvent(StateMachineImpl, String, Object)}, waiting
+     * at most <code>timeout</code> for the lock. A timeout of 0 only tries
+     * once.
+     * 
+     * @throws shisha.statemachine.exceptions.LockTimeoutException
+     *             if the lock could not be acquired in time. The event has not
+     *             been processed
+     */
+    public void processEvent(StateMachineImpl statemachine, String event, Object object, long timeout, TimeUnit unit)
+            throws StateMachineExecutionException, StateMachineDefinitionException;
+}
@@ -24,20 +24,50 @@ import com.google.common.collect.Maps;
  * target and event), we provide the object passed when processing the event and
  * a transition context map which is really helpful when we need to store information
  * between phases of the same transition.
+ * 
+ * <p>The transition context map is only created the first time it is requested.
+ * 
+ * <p>When the strategy uses a {@link TransitionInfoCache} other than
+ * {@link TransitionInfoCache.Mode#NONE}, the same instance is reused for later
+ * transitions, so controllers must not keep a reference once the transition
+ * has finished.
  */
 public class TransitionInfo extends EventInfo {
     private String source;
     private String target;
     
-    // We offer a generic repository for all the distinct phases of a transition
+    // We offer a generic repository for all the distinct phases of a transition.
+    // Most controllers never use it, so it is created on demand
     private HashMap<String, Object> transitionContext;
     
+    // Whether the instance belongs to a TransitionInfoCache
+    final boolean reusable;
+    
     public TransitionInfo(String source, String event, String target, Object object) {
+        this(source, event, target, object, false);
+    }
+    
+    TransitionInfo(String source, String event, String target, Object object, boolean reusable) {
         super(event, object);
         
         this.source = source;
         this.target = target;
-        this.transitionContext = Maps.newHashMap();
+        this.reusable = reusable;
+    }
+    
+    /**
+     * Prepares a reused instance for a new transition. The context map, if
+     * any, is emptied but kept.
+     */
+    TransitionInfo reset(String source, String event, String target, Object object) {
+        this.source = source;
+        this.event = event;
+        this.target = target;
+        this.object = object;
+        if (transitionContext != null)
+            transitionContext.clear();
+        
+        return this;
     }
     
     public String getSource() {
@@ -49,6 +79,9 @@ public class TransitionInfo extends EventInfo {
     }
     
     public HashMap<String,Object> getTransitionContext() {
+        if (this.transitionContext == null)
+            this.transitionContext = Maps.newHashMap();
+        
         return this.transitionContext;
     }
     
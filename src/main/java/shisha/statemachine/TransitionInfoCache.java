@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Provides the {@link TransitionInfo} passed to the controllers of a
+ * transition, so strategies can avoid allocating one per event.
+ *
+ * <p>
+ * A reused instance is taken from the cache during the transition and given
+ * back when it finishes. A nested transition (a controller processing another
+ * event from the same thread) or a concurrent one finds the cache empty and
+ * gets a new instance, so a transition info is never shared by two running
+ * transitions.
+ *
+ * <p>
+ * With reuse enabled, controllers must not keep the {@link TransitionInfo} once
+ * the transition has finished.
+ */
+public final class TransitionInfoCache {
+    public enum Mode {
+        /**
+         * A new instance for every transition. The default
+         */
+        NONE,
+        /**
+         * One instance per state machine
+         */
+        PER_MACHINE,
+        /**
+         * One instance per thread, shared by all the state machines
+         */
+        PER_THREAD
+    }
+
+    private static final ThreadLocal<TransitionInfo> THREAD_INFO = new ThreadLocal<TransitionInfo>();
+
+    private final Mode mode;
+    private final AtomicReference<TransitionInfo> machineInfo;
+
+    public TransitionInfoCache(Mode mode) {
+        this.mode = mode;
+        this.machineInfo = mode == Mode.PER_MACHINE ? new AtomicReference<TransitionInfo>(newReusable()) : null;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the transition info for a transition that is about to start.
+     * It must be given back with {@link #release(TransitionInfo)}.
+     */
+    public TransitionInfo acquire(String source, String event, String target, Object object) {
+        TransitionInfo info = null;
+        switch (mode) {
+        case PER_MACHINE:
+            info = machineInfo.getAndSet(null);
+            break;
+        case PER_THREAD:
+            info = THREAD_INFO.get();
+            if (info == null) {
+                info = newReusable();
+            } else {
+                THREAD_INFO.set(null);
+            }
+            break;
+        default:
+        }
+
+        if (info == null)
+            return new TransitionInfo(source, event, target, object);
+
+        return info.reset(source, event, target, object);
+    }
+
+    /**
+     * Gives back the transition info once the transition has finished. Non
+     * reusable instances are ignored.
+     */
+    public void release(TransitionInfo info) {
+        if (info == null || !info.reusable)
+            return;
+
+        // Do not retain the user object until the next transition
+        info.object = null;
+        if (mode == Mode.PER_MACHINE) {
+            machineInfo.lazySet(info);
+        } else {
+            THREAD_INFO.set(info);
+        }
+    }
+
+    private static TransitionInfo newReusable() {
+        return new TransitionInfo(null, null, null, null, true);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * Notified by the strategies of every transition of a
+ * {@link StateMachineImpl}, see
+ * {@link StateMachineImpl#setTransitionListener(TransitionListener)}.
+ */
+public interface TransitionListener {
+    /**
+     * Called once the state machine has moved to the target of the
+     * transition, before the enter state controller runs. It runs within the
+     * transition, so it should be short and must not process events. With the
+     * {@link shisha.statemachine.strategy.OptimisticStrategy} it may be called
+     * from several threads at the same time.
+     * 
+     * @param sequence
+     *            sequence of the new state, see {@link StateSnapshot#getSequence()}
+     */
+    public void onTransition(StateMachineImpl statemachine, CompiledTransition transition, long sequence);
+}
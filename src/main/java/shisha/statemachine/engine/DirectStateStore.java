@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link StateStore} outside of the Java heap, so the heap used by an
+ * engine does not depend on its number of entities and the garbage
+ * collector never scans the states. The states live in a direct
+ * {@link ByteBuffer}, either allocated in memory or mapped to a file, and are
+ * updated with atomic operations on the memory of the buffer.
+ *
+ * <p>
+ * The atomic operations are the ones of the byte buffer view var handle of
+ * Java 9+, reached through method handles so the library still runs on Java
+ * 8. There, every access takes one of {@value #LOCKS} locks instead.
+ *
+ * <p>
+ * A buffer holds at most 2 GB, so a store holds up to {@link #MAX_CAPACITY}
+ * entities. Mapped files use the byte order of the platform.
+ */
+public final class DirectStateStore implements StateStore {
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE / 4;
+
+    static final int LOCKS = 64;
+
+    // Access modes of the int view of the direct buffers, null before Java 9
+    private static final MethodHandle GET_VOLATILE;
+    private static final MethodHandle SET_VOLATILE;
+    private static final MethodHandle COMPARE_AND_SET;
+
+    static {
+        MethodHandle[] handles = accessModes("GET_VOLATILE", "SET_VOLATILE", "COMPARE_AND_SET");
+        GET_VOLATILE = handles[0];
+        SET_VOLATILE = handles[1];
+        COMPARE_AND_SET = handles[2];
+    }
+
+    // Keeps the memory alive as long as the store
+    private final ByteBuffer buffer;
+    private final int capacity;
+    // Only without var handles
+    private final Object[] locks;
+
+    private DirectStateStore(ByteBuffer buffer, int capacity) {
+        this(buffer, capacity, GET_VOLATILE == null);
+    }
+
+    DirectStateStore(ByteBuffer buffer, int capacity, boolean locked) {
+        this.buffer = buffer.order(ByteOrder.nativeOrder());
+        this.capacity = capacity;
+
+        if (locked) {
+            locks = new Object[LOCKS];
+            for (int i = 0; i < LOCKS; i++)
+                locks[i] = new Object();
+        } else {
+            locks = null;
+        }
+    }
+
+    private static MethodHandle[] accessModes(String... names) {
+        MethodHandle[] result = new MethodHandle[names.length];
+        try {
+            Method view = MethodHandles.class.getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class);
+            Object varHandle = view.invoke(null, int[].class, ByteOrder.nativeOrder());
+
+            Class<?> varHandleType = Class.forName("java.lang.invoke.VarHandle");
+            Class<?> accessModeType = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+            Method toMethodHandle = varHandleType.getMethod("toMethodHandle", accessModeType);
+            for (int i = 0; i < names.length; i++) {
+                Object accessMode = accessModeType.getField(names[i]).get(null);
+                result[i] = (MethodHandle) toMethodHandle.invoke(varHandle, accessMode);
+            }
+            return result;
+        } catch (NoSuchMethodException e) {
+            // Java 8
+            return new MethodHandle[names.length];
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Store in memory, lost when the process ends
+     */
+    public static DirectStateStore allocate(int capacity) {
+        checkCapacity(capacity);
+        return new DirectStateStore(ByteBuffer.allocateDirect(capacity * 4), capacity);
+    }
+
+    /**
+     * Store mapped to <code>file</code>, created or extended with zeros if
+     * needed. The states already in the file are kept, and the entities left
+     * in a transition by a crash are released.
+     */
+    public static DirectStateStore map(File file, int capacity) throws IOException {
+        checkCapacity(capacity);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long size = capacity * 4L;
+            if (raf.length() < size)
+                raf.setLength(size);
+
+            // The mapping stays valid once the channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            DirectStateStore store = new DirectStateStore(buffer, capacity);
+            for (int i = 0; i < capacity; i++) {
+                int value = store.get(i);
+                if (value < 0)
+                    store.set(i, value & Integer.MAX_VALUE);
+            }
+            return store;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void checkCapacity(int capacity) {
+        if (capacity < 0 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity must be between 0 and " + MAX_CAPACITY);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int get(int entityId) {
+        int index = index(entityId);
+        if (locks != null) {
+            synchronized (lock(entityId)) {
+                return buffer.getInt(index);
+            }
+        }
+
+        try {
+            return (int) GET_VOLATILE.invokeExact(buffer, index);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public void set(int entityId, int value) {
+        int index = index(entityId);
+        if (locks != null) {
+            synchronized (lock(entityId)) {
+                buffer.putInt(index, value);
+            }
+            return;
+        }
+
+        try {
+            SET_VOLATILE.invokeExact(buffer, index, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public boolean compareAndSet(int entityId, int expected, int value) {
+        int index = index(entityId);
+        if (locks != null) {
+            synchronized (lock(entityId)) {
+                if (buffer.getInt(index) != expected)
+                    return false;
+
+                buffer.putInt(index, value);
+                return true;
+            }
+        }
+
+        try {
+            return (boolean) COMPARE_AND_SET.invokeExact(buffer, index, expected, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Writes the states of a mapped store to the file. Nothing to do for
+     * stores in memory.
+     */
+    public void flush() {
+        if (buffer instanceof MappedByteBuffer)
+            ((MappedByteBuffer) buffer).force();
+    }
+
+    private int index(int entityId) {
+        if (entityId < 0 || entityId >= capacity)
+            throw new IndexOutOfBoundsException("Entity " + entityId + " out of [0, " + capacity + ")");
+
+        return entityId * 4;
+    }
+
+    private Object lock(int entityId) {
+        return locks[entityId & (LOCKS - 1)];
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+
+        throw new IllegalStateException(t);
+    }
+}
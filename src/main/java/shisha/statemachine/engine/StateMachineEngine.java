@@ -0,0 +1,354 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.engine;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.CompiledTransition;
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachineDefinition;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.TransitionInfoCache;
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.RedirectLimitExceededException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StartStateNotDefinedException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+/**
+ * Runs the state machines of a large number of entities sharing the same
+ * definition. Instead of a {@link shisha.statemachine.StateMachineImpl} per
+ * entity, the engine keeps the ordinal of the current state of every entity
+ * in a {@link StateStore}, 4 bytes per entity. By default the store is a
+ * {@link DirectStateStore} outside of the heap.
+ *
+ * <p>
+ * Entities are identified by an int between 0 and the capacity of the
+ * store. They are striped over a number of shards, each one with its own
+ * lock: consecutive entities belong to different shards, so threads working
+ * on different entities rarely wait for each other. Transitions without any
+ * controller do not take the lock, they are committed with a compare and set
+ * on the store.
+ *
+ * <p>
+ * The controllers of the definition are shared by all the entities; the
+ * caller passes whatever identifies the entity in the event object.
+ * Controllers can process events of other entities of the same shard (see
+ * {@link #getShard(int)}), but an entity cannot process an event while it is
+ * in a transition, as with the
+ * {@link shisha.statemachine.strategy.NonReentrantStrategy}. Events and
+ * {@link #setState(int, String)} for entities of other shards are rejected
+ * from a transition: the thread would take a second lock, and two transitions
+ * doing it in opposite directions would deadlock. The current state of an
+ * entity can be read from any thread without waiting for the locks.
+ */
+public class StateMachineEngine {
+    private static Logger l = LoggerFactory.getLogger(StateMachineEngine.class);
+
+    // Set in the state of an entity while it is in a transition. The rest of
+    // the value is the ordinal of the state plus one, so 0 is the start state
+    private static final int IN_TRANSITION = 0x80000000;
+
+    private final CompiledStateMachineDefinition definition;
+    private final int startId;
+    private final StateStore store;
+    private final int capacity;
+    private final Shard[] shards;
+    private final int shardMask;
+    private final int shardBits;
+    private volatile int maxRedirects = ReentrantStrategy.DEFAULT_MAX_REDIRECTS;
+    // The shard whose transition is running in the current thread, if any
+    private final ThreadLocal<Shard> running = new ThreadLocal<Shard>();
+
+    /**
+     * Engine with a shard per available processor, rounded up to a power of
+     * two
+     */
+    public StateMachineEngine(StateMachineDefinition definition, int capacity) throws StateMachineDefinitionException {
+        this(definition, capacity, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param capacity
+     *            number of entities, with ids from 0 to
+     *            <code>capacity - 1</code>
+     * @param shards
+     *            number of locks, rounded up to a power of two
+     * @throws StartStateNotDefinedException
+     *             if the definition does not have a start state
+     */
+    public StateMachineEngine(StateMachineDefinition definition, int capacity, int shards)
+            throws StateMachineDefinitionException {
+        this(definition, DirectStateStore.allocate(capacity), shards);
+    }
+
+    /**
+     * Engine keeping the states in <code>store</code>. Entities already in the
+     * store keep their state, the store must have been written by an engine
+     * with the same definition.
+     * 
+     * @param shards
+     *            number of locks, rounded up to a power of two
+     * @throws StartStateNotDefinedException
+     *             if the definition does not have a start state
+     */
+    public StateMachineEngine(StateMachineDefinition definition, StateStore store, int shards)
+            throws StateMachineDefinitionException {
+        if (shards <= 0 || shards > 1 << 16)
+            throw new IllegalArgumentException("Number of shards must be between 1 and 65536");
+
+        this.definition = CompiledStateMachineDefinition.of(definition);
+        if (this.definition.getStartState() == null)
+            throw new StartStateNotDefinedException("Start state has not been defined for the state machine");
+
+        this.startId = this.definition.getStateId(this.definition.getStartState());
+        this.store = store;
+        this.capacity = store.capacity();
+        this.shardBits = 32 - Integer.numberOfLeadingZeros(shards - 1);
+        this.shardMask = (1 << shardBits) - 1;
+        this.shards = new Shard[1 << shardBits];
+        for (int i = 0; i < this.shards.length; i++)
+            this.shards[i] = new Shard();
+    }
+
+    public CompiledStateMachineDefinition getDefinition() {
+        return definition;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public StateStore getStore() {
+        return store;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Shard of the entity, between 0 and <code>getShardCount() - 1</code>.
+     * Controllers can only process events of entities in the same shard.
+     */
+    public int getShard(int entityId) {
+        checkEntity(entityId);
+        return entityId & shardMask;
+    }
+
+    public int getMaxRedirects() {
+        return maxRedirects;
+    }
+
+    /**
+     * Maximum number of consecutive redirections, see
+     * {@link ReentrantStrategy#setMaxRedirects(int)}
+     */
+    public void setMaxRedirects(int maxRedirects) {
+        if (maxRedirects < 0)
+            throw new IllegalArgumentException("The maximum number of redirects cannot be negative");
+
+        this.maxRedirects = maxRedirects;
+    }
+
+    /**
+     * Current state of the entity. It does not wait for a running transition.
+     */
+    public String getState(int entityId) {
+        return definition.getStateName(getStateId(entityId));
+    }
+
+    /**
+     * Ordinal of the current state of the entity in the compiled definition
+     */
+    public int getStateId(int entityId) {
+        checkEntity(entityId);
+        return stateId(store.get(entityId));
+    }
+
+    /**
+     * Forces the state of the entity, for instance when it is loaded from a
+     * database. Waits for the running transitions of its shard.
+     * 
+     * @throws StateNotDefinedException
+     *             if the state is not defined
+     * @throws IllegalStateException
+     *             if called from a transition of another shard
+     */
+    public void setState(int entityId, String state) throws StateNotDefinedException {
+        checkEntity(entityId);
+        int stateId = definition.getStateId(state);
+        if (stateId < 0)
+            throw new StateNotDefinedException("State " + state + " does not exist");
+
+        Shard shard = shards[entityId & shardMask];
+        Shard current = running.get();
+        if (current != null && current != shard)
+            throw new IllegalStateException("Entity " + entityId
+                    + " belongs to another shard, its state cannot be set from this transition");
+
+        shard.lock.lock();
+        try {
+            // Transitions without controllers do not take the lock
+            int value;
+            do {
+                value = store.get(entityId);
+            } while (!store.compareAndSet(entityId, value, (stateId + 1) | (value & IN_TRANSITION)));
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Processes the event for the entity, with the lock of its shard acquired
+     * 
+     * @throws ReentrantTransitionNotAllowed
+     *             if the entity is already in a transition in this thread,
+     *             or if called from a transition of another shard
+     */
+    public void processEvent(int entityId, String event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        checkEntity(entityId);
+        int eventId = definition.getEventId(event);
+        if (eventId < 0)
+            throw new EventNotDefinedException("Event " + event + " not defined");
+
+        Shard shard = shards[entityId & shardMask];
+        // Taking a second lock could deadlock with a transition of the other
+        // shard doing the opposite
+        Shard current = running.get();
+        if (current != null && current != shard)
+            throw new ReentrantTransitionNotAllowed("Entity " + entityId
+                    + " belongs to another shard, it cannot process events from this transition");
+
+        int value = store.get(entityId);
+        if (value >= 0) {
+            CompiledTransition transition = definition.getTransition(stateId(value), eventId);
+            if (transition != null && transition.getExitStateController() == null
+                    && transition.getTransitionController() == null && transition.getEnterStateController() == null
+                    && store.compareAndSet(entityId, value, transition.getTargetId() + 1))
+                return;
+        }
+
+        shard.lock.lock();
+        if (current == null)
+            running.set(shard);
+        try {
+            // Marking the entity fails only if a transition without
+            // controllers has just moved it
+            do {
+                value = store.get(entityId);
+                if (value < 0)
+                    throw new ReentrantTransitionNotAllowed("Entity " + entityId + " is already in a transition");
+            } while (!store.compareAndSet(entityId, value, value | IN_TRANSITION));
+
+            try {
+                process(shard, entityId, event, eventId, object);
+            } finally {
+                store.set(entityId, store.get(entityId) & ~IN_TRANSITION);
+            }
+        } finally {
+            if (current == null)
+                running.remove();
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Same as the transitions of the strategies, on the state of the entity
+     */
+    private void process(Shard shard, int entityId, String event, int eventId, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        TransitionInfo tEvent = null;
+        try {
+            int redirects = 0;
+            while (true) {
+                int sourceId = stateId(store.get(entityId));
+                CompiledTransition transition = definition.getTransition(sourceId, eventId);
+                if (transition == null)
+                    throw new TransitionNotDefinedException("Transition from state "
+                            + definition.getStateName(sourceId) + " with event " + event + " not defined");
+
+                tEvent = shard.transitionInfos.acquire(transition.getSource(), event, transition.getTarget(), object);
+
+                ExitStateController exitController = transition.getExitStateController();
+                EnterStateController enterController = transition.getEnterStateController();
+                TransitionController transitionController = transition.getTransitionController();
+
+                if (exitController != null && !exitController.execute(tEvent)) {
+                    l.debug("The controller cancelled the event propagation");
+                    return;
+                }
+
+                if (transitionController != null)
+                    transitionController.execute(tEvent);
+
+                store.set(entityId, (transition.getTargetId() + 1) | IN_TRANSITION);
+                EventInfo result = enterController != null ? enterController.execute(tEvent) : null;
+                shard.transitionInfos.release(tEvent);
+                tEvent = null;
+
+                if (result == null)
+                    return;
+
+                if (++redirects > maxRedirects)
+                    throw new RedirectLimitExceededException("Redirect chain longer than " + maxRedirects
+                            + " events. Last redirection to event " + result.getEvent() + " from state "
+                            + transition.getTarget());
+
+                event = result.getEvent();
+                object = result.getObject();
+                eventId = definition.getEventId(event);
+                if (eventId < 0)
+                    throw new EventNotDefinedException("Event " + event + " not defined");
+            }
+        } finally {
+            shard.transitionInfos.release(tEvent);
+        }
+    }
+
+    private int stateId(int value) {
+        int stateId = (value & ~IN_TRANSITION) - 1;
+        return stateId < 0 ? startId : stateId;
+    }
+
+    private void checkEntity(int entityId) {
+        if (entityId < 0 || entityId >= capacity)
+            throw new IndexOutOfBoundsException("Entity " + entityId + " out of [0, " + capacity + ")");
+    }
+
+    /**
+     * The entities sharing a lock. Their transitions run with the lock
+     * acquired, so they reuse the same {@link TransitionInfo}; a transition
+     * started from a controller gets a new one.
+     */
+    private static class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final TransitionInfoCache transitionInfos = new TransitionInfoCache(
+                TransitionInfoCache.Mode.PER_MACHINE);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.engine;
+
+/**
+ * Where a {@link StateMachineEngine} keeps the state of its entities: one
+ * int per entity, read and written atomically.
+ *
+ * <p>
+ * The value is opaque to the store, but a new store must hold 0 for every
+ * entity, which the engine reads as the start state. The sign bit is reserved
+ * by the engine for entities in a transition; stores that survive a restart
+ * must clear it when they are opened.
+ */
+public interface StateStore {
+    /**
+     * Number of entities, with ids from 0 to <code>capacity() - 1</code>
+     */
+    public int capacity();
+
+    /**
+     * Value for the entity, with volatile semantics
+     */
+    public int get(int entityId);
+
+    /**
+     * Sets the value for the entity, with volatile semantics
+     */
+    public void set(int entityId, int value);
+
+    /**
+     * Atomically sets the value for the entity if it is still
+     * <code>expected</code>
+     * 
+     * @return false if the value was not <code>expected</code>
+     */
+    public boolean compareAndSet(int entityId, int expected, int value);
+}
@@ -21,4 +21,8 @@ public class StateMachineException extends Exception {
     public StateMachineException(String msg) {
         super(msg);
     }
+    
+    public StateMachineException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.jfr;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.SettingControl;
+
+/**
+ * JFR setting for a minimum duration, written like the built-in
+ * <code>threshold</code> setting, for example <code>20 ms</code>. The
+ * events of this package carry durations measured before they are created,
+ * which the built-in threshold cannot filter. With several recordings
+ * running, the lowest threshold applies. Values that cannot be parsed are
+ * ignored.
+ *
+ * <p>
+ * JFR instantiates settings with their only constructor, so every event has
+ * its own subclass with the default value.
+ */
+public abstract class DurationThreshold extends SettingControl {
+    private final String defaultValue;
+    private volatile String value;
+    private volatile long nanos;
+
+    protected DurationThreshold(String defaultValue) {
+        this.defaultValue = defaultValue;
+        setValue(defaultValue);
+    }
+
+    public String combine(Set<String> values) {
+        String lowest = null;
+        long lowestNanos = Long.MAX_VALUE;
+        for (String value : values) {
+            long nanos = parse(value);
+            if (nanos >= 0 && (lowest == null || nanos < lowestNanos)) {
+                lowest = value;
+                lowestNanos = nanos;
+            }
+        }
+        return lowest == null ? defaultValue : lowest;
+    }
+
+    public void setValue(String value) {
+        long nanos = parse(value);
+        if (nanos < 0)
+            return;
+
+        this.nanos = nanos;
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public boolean isExceededBy(long nanos) {
+        return nanos >= this.nanos;
+    }
+
+    /**
+     * Nanoseconds of a duration like <code>20 ms</code>, without unit in
+     * nanoseconds. <code>infinity</code> and durations too long for a
+     * <code>long</code> are {@link Long#MAX_VALUE}, so nothing exceeds them.
+     * 
+     * @return -1 for values that cannot be parsed
+     */
+    static long parse(String value) {
+        String trimmed = value == null ? "" : value.trim();
+        if (trimmed.equals("infinity"))
+            return Long.MAX_VALUE;
+
+        int unit = 0;
+        while (unit < trimmed.length() && Character.isDigit(trimmed.charAt(unit)))
+            unit++;
+        if (unit == 0)
+            return -1;
+
+        long amount;
+        try {
+            amount = Long.parseLong(trimmed.substring(0, unit));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+
+        String suffix = trimmed.substring(unit).trim();
+        if (suffix.isEmpty() || suffix.equals("ns"))
+            return amount;
+        if (suffix.equals("us"))
+            return TimeUnit.MICROSECONDS.toNanos(amount);
+        if (suffix.equals("ms"))
+            return TimeUnit.MILLISECONDS.toNanos(amount);
+        if (suffix.equals("s"))
+            return TimeUnit.SECONDS.toNanos(amount);
+        if (suffix.equals("m"))
+            return TimeUnit.MINUTES.toNanos(amount);
+        if (suffix.equals("h"))
+            return TimeUnit.HOURS.toNanos(amount);
+        if (suffix.equals("d"))
+            return TimeUnit.DAYS.toNanos(amount);
+        return -1;
+    }
+}
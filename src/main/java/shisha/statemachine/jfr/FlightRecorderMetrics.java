@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+
+import shisha.statemachine.CompiledTransition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineMetrics;
+
+/**
+ * {@link StateMachineMetrics} emitting Java Flight Recorder events, so state
+ * machine hot spots show up in the same recording as GC and CPU:
+ * <ul>
+ * <li><code>shisha.statemachine.Transition</code> for every transition, with
+ * its source, event and target, the duration of its phases and whether the
+ * exit state controller cancelled it. Disabled by default, it has a
+ * <code>durationThreshold</code> setting.</li>
+ * <li><code>shisha.statemachine.LockWait</code> when a thread waited for the
+ * lock of a state machine longer than the <code>waitThreshold</code>
+ * setting.</li>
+ * </ul>
+ * Both are configured in the recording settings like any other event, for
+ * instance
+ * <code>-XX:StartFlightRecording:settings=profile,+shisha.statemachine.Transition#enabled=true</code>
+ * or a <code>.jfc</code> file.
+ *
+ * <p>
+ * The strategies only read the clock while a recording has one of the events
+ * enabled, see {@link #isEnabled()}. The library does not depend on JFR
+ * otherwise, check {@link #isAvailable()} before creating an instance on
+ * runtimes that might not have it.
+ */
+public class FlightRecorderMetrics implements StateMachineMetrics {
+    // Not initialized by isAvailable(), which must work without JFR
+    private static class EventTypes {
+        // Registers the events, so recordings list them before the first one
+        // is emitted
+        private static final EventType TRANSITION = EventType.getEventType(TransitionEvent.class);
+        private static final EventType LOCK_WAIT = EventType.getEventType(LockWaitEvent.class);
+    }
+
+    /**
+     * Whether the runtime has Java Flight Recorder
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        return FlightRecorder.isAvailable();
+    }
+
+    /**
+     * True while a recording has one of the events enabled
+     */
+    public boolean isEnabled() {
+        return EventTypes.TRANSITION.isEnabled() || EventTypes.LOCK_WAIT.isEnabled();
+    }
+
+    public void onLockAcquired(StateMachineImpl statemachine, long waitNanos) {
+        LockWaitEvent event = new LockWaitEvent();
+        event.waitDuration = waitNanos;
+        if (event.shouldCommit()) {
+            event.state = statemachine.getCurrentState();
+            event.commit();
+        }
+    }
+
+    public void onTransition(StateMachineImpl statemachine, CompiledTransition transition, long exitNanos,
+            long transitionNanos, long enterNanos) {
+        commit(transition, false, exitNanos, transitionNanos, enterNanos);
+    }
+
+    public void onCancelled(StateMachineImpl statemachine, CompiledTransition transition, long exitNanos) {
+        commit(transition, true, exitNanos, 0, -1);
+    }
+
+    private static void commit(CompiledTransition transition, boolean cancelled, long exitNanos,
+            long transitionNanos, long enterNanos) {
+        TransitionEvent event = new TransitionEvent();
+        event.exitDuration = exitNanos;
+        event.transitionDuration = transitionNanos;
+        event.enterDuration = enterNanos;
+        if (event.shouldCommit()) {
+            event.source = transition.getSource();
+            event.event = transition.getEvent();
+            event.target = transition.getTarget();
+            event.cancelled = cancelled;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.Timespan;
+
+/**
+ * A thread waited for the lock of a state machine longer than the
+ * <code>waitThreshold</code> setting, {@value Threshold#DEFAULT} by default
+ */
+@Name(LockWaitEvent.NAME)
+@Label("State Machine Lock Wait")
+@Category("State Machine")
+@Description("Wait for the lock of a state machine before processing an event or a batch")
+final class LockWaitEvent extends Event {
+    static final String NAME = "shisha.statemachine.LockWait";
+
+    @Label("State")
+    @Description("State of the state machine once the lock was acquired")
+    String state;
+
+    @Label("Wait Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long waitDuration;
+
+    @Label("Wait Threshold")
+    @Description("Record waits at least this long")
+    @Name("waitThreshold")
+    @SettingDefinition
+    protected boolean waitThreshold(Threshold threshold) {
+        return threshold.isExceededBy(waitDuration);
+    }
+
+    public static final class Threshold extends DurationThreshold {
+        static final String DEFAULT = "10 ms";
+
+        public Threshold() {
+            super(DEFAULT);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One transition of a state machine. There can be millions per second, so it
+ * is disabled unless the recording settings enable it, usually along with a
+ * <code>durationThreshold</code>.
+ */
+@Name(TransitionEvent.NAME)
+@Label("State Machine Transition")
+@Category("State Machine")
+@Description("Transition of a state machine, with the duration of its phases")
+@Enabled(false)
+@StackTrace(false)
+final class TransitionEvent extends Event {
+    static final String NAME = "shisha.statemachine.Transition";
+
+    @Label("Source")
+    String source;
+
+    @Label("Event")
+    String event;
+
+    @Label("Target")
+    String target;
+
+    @Label("Cancelled")
+    @Description("The exit state controller cancelled the transition")
+    boolean cancelled;
+
+    @Label("Exit Duration")
+    @Description("Duration of the exit phase, -1 without exit state controller")
+    @Timespan(Timespan.NANOSECONDS)
+    long exitDuration;
+
+    @Label("Transition Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long transitionDuration;
+
+    @Label("Enter Duration")
+    @Description("Duration of the enter phase, -1 without enter state controller")
+    @Timespan(Timespan.NANOSECONDS)
+    long enterDuration;
+
+    @Label("Duration Threshold")
+    @Description("Record transitions whose phases took at least this long")
+    @Name("durationThreshold")
+    @SettingDefinition
+    protected boolean durationThreshold(Threshold threshold) {
+        return threshold.isExceededBy(Math.max(exitDuration, 0) + transitionDuration + Math.max(enterDuration, 0));
+    }
+
+    public static final class Threshold extends DurationThreshold {
+        public Threshold() {
+            super("0 ns");
+        }
+    }
+}
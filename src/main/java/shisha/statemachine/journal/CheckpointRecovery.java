@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.journal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachineDefinition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineStrategy;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+
+/**
+ * Reads the checkpoints written by a {@link Checkpointer}: the last full
+ * checkpoint and the incremental ones written after it, in order. No event
+ * is replayed, state machines are created directly in their saved state.
+ *
+ * <p>
+ * Transitions after the last checkpoint are recovered from the
+ * {@link TransitionJournal} segments that were kept, restoring every state
+ * machine with {@link JournalRecovery#restore(long, StateMachineImpl)}
+ * afterwards.
+ */
+public final class CheckpointRecovery {
+    private static Logger l = LoggerFactory.getLogger(CheckpointRecovery.class);
+
+    private static final int STATE_ID_BITS = 24;
+    private static final long STATE_ID_MASK = (1L << STATE_ID_BITS) - 1;
+
+    /**
+     * Receives the state machines saved in the checkpoints
+     */
+    public interface Visitor {
+        /**
+         * Called once per state machine and checkpoint, a state machine
+         * changed after the full checkpoint is visited again with its later
+         * state
+         */
+        void visit(long machineId, int stateId, long sequence);
+    }
+
+    private CheckpointRecovery() {
+    }
+
+    /**
+     * Visits the state machines saved in the checkpoints in
+     * <code>directory</code>, without keeping them in memory
+     * 
+     * @return the number of records visited
+     * @throws IOException
+     *             if a checkpoint cannot be read, or was written for a
+     *             definition with another fingerprint
+     */
+    public static long scan(File directory, StateMachineDefinition definition, Visitor visitor) throws IOException {
+        CompiledStateMachineDefinition compiled = CompiledStateMachineDefinition.of(definition);
+        long records = 0;
+        for (File file : chain(directory))
+            records += scan(file, compiled, visitor);
+
+        if (l.isDebugEnabled())
+            l.debug("#scan: " + records + " records in " + directory);
+
+        return records;
+    }
+
+    /**
+     * Creates the state machines saved in the checkpoints in
+     * <code>directory</code>, in their saved state and with their sequence.
+     * All of them share <code>strategy</code>, which must support it, like
+     * {@link shisha.statemachine.strategy.FlyweightStrategy#SHARED} or an
+     * {@link shisha.statemachine.strategy.OptimisticStrategy}.
+     * 
+     * @return the state machines by id
+     */
+    public static Map<Long, StateMachineImpl> restore(File directory, final StateMachineDefinition definition,
+            final StateMachineStrategy strategy) throws IOException, StateMachineDefinitionException {
+        final Map<Long, StateMachineImpl> statemachines = new HashMap<Long, StateMachineImpl>();
+        // Fails here if the definition has no start state, not for every
+        // state machine
+        new StateMachineImpl(definition, strategy);
+
+        scan(directory, definition, new Visitor() {
+            public void visit(long machineId, int stateId, long sequence) {
+                StateMachineImpl statemachine = statemachines.get(machineId);
+                if (statemachine == null) {
+                    try {
+                        statemachine = new StateMachineImpl(definition, strategy);
+                    } catch (StateMachineDefinitionException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    statemachines.put(machineId, statemachine);
+                }
+                statemachine.restore(stateId, sequence);
+            }
+        });
+        return statemachines;
+    }
+
+    /**
+     * The last full checkpoint and the incremental ones following it
+     */
+    static List<File> chain(File directory) {
+        File[] checkpoints = Checkpointer.checkpoints(directory);
+        List<File> chain = new ArrayList<File>();
+        for (int i = checkpoints.length - 1; i >= 0; i--) {
+            long base = base(checkpoints[i]);
+            if (base != -1)
+                continue;
+
+            long index = Checkpointer.index(checkpoints[i]);
+            chain.add(checkpoints[i]);
+            for (int j = i + 1; j < checkpoints.length; j++) {
+                // A missing incremental checkpoint loses the changes it had,
+                // the following ones are not enough
+                if (Checkpointer.index(checkpoints[j]) != index + chain.size() || base(checkpoints[j]) != index) {
+                    l.warn("#chain: checkpoint " + checkpoints[j] + " does not follow " + chain.get(chain.size() - 1)
+                            + ", ignoring it and the following ones");
+                    break;
+                }
+                chain.add(checkpoints[j]);
+            }
+            break;
+        }
+        return chain;
+    }
+
+    // Index of the full checkpoint an incremental one is based on, -1 for
+    // full ones and -2 for unreadable files
+    private static long base(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readInt();
+                in.readInt();
+                in.readLong();
+                in.readLong();
+                return in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            l.warn("#base: cannot read " + file, e);
+            return -2;
+        }
+    }
+
+    private static long scan(File file, CompiledStateMachineDefinition definition, Visitor visitor)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != Checkpointer.MAGIC || in.readInt() != Checkpointer.VERSION)
+                throw new IOException("Not a checkpoint: " + file);
+            if (in.readLong() != definition.getFingerprint())
+                throw new IOException("Checkpoint " + file + " was written with another definition");
+
+            in.readLong();
+            in.readLong();
+            long records = in.readLong();
+            int stateCount = definition.getStateCount();
+            for (long i = 0; i < records; i++) {
+                long machineId = in.readLong();
+                long state = in.readLong();
+                int stateId = (int) (state & STATE_ID_MASK);
+                if (stateId >= stateCount)
+                    throw new IOException("Checkpoint " + file + " has an unknown state ordinal " + stateId);
+
+                visitor.visit(machineId, stateId, state >>> STATE_ID_BITS);
+            }
+            return records;
+        } catch (EOFException e) {
+            throw new IOException("Checkpoint " + file + " is truncated", e);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachineDefinition;
+import shisha.statemachine.StateMachineImpl;
+
+/**
+ * Writes checkpoints of the state of a set of state machines sharing a
+ * definition, so they can be restored with {@link CheckpointRecovery} without
+ * replaying their events.
+ *
+ * <p>
+ * A checkpoint is a file with the id, the state ordinal and the sequence of
+ * every state machine, 16 bytes each, and the fingerprint of the definition.
+ * The first checkpoint, and every one requested with
+ * {@link #fullCheckpoint()}, holds all the state machines; the following
+ * ones only the state machines whose state changed since the previous
+ * checkpoint. Writing a full checkpoint deletes the older ones.
+ *
+ * <p>
+ * State machines keep processing events while a checkpoint is written. Every
+ * state machine is saved as it was when the checkpoint reached it, so a
+ * checkpoint covers all the transitions completed before it started. With a
+ * {@link TransitionJournal}, the segments before
+ * {@link TransitionJournal#roll()} can be deleted once the following
+ * checkpoint has been written.
+ */
+public class Checkpointer {
+    private static Logger l = LoggerFactory.getLogger(Checkpointer.class);
+
+    static final int MAGIC = 0x534d4350;
+    static final int VERSION = 1;
+    static final String PREFIX = "checkpoint-";
+    static final String SUFFIX = ".ckpt";
+
+    private static final int STATE_ID_BITS = 24;
+
+    private final File directory;
+    private final CompiledStateMachineDefinition definition;
+
+    // Registered state machines, and the state written by the last checkpoint
+    private long[] ids = new long[1024];
+    private StateMachineImpl[] machines = new StateMachineImpl[1024];
+    private long[] saved = new long[1024];
+    // Reused by every checkpoint, it becomes saved once written
+    private long[] pending = new long[1024];
+    private int count;
+
+    private long lastIndex;
+    private long lastFull = -1;
+
+    public Checkpointer(File directory, StateMachineDefinition definition) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create the checkpoint directory " + directory);
+
+        this.directory = directory;
+        this.definition = CompiledStateMachineDefinition.of(definition);
+
+        lastIndex = -1;
+        for (File file : checkpoints(directory))
+            lastIndex = Math.max(lastIndex, index(file));
+    }
+
+    /**
+     * Adds the state machine to the next checkpoints. Ids are chosen by the
+     * caller and must be unique.
+     */
+    public synchronized void register(long machineId, StateMachineImpl statemachine) {
+        if (CompiledStateMachineDefinition.of(statemachine.getDefinition()).getFingerprint() != definition
+                .getFingerprint())
+            throw new IllegalArgumentException("The state machine and the checkpoints have different definitions");
+
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            machines = Arrays.copyOf(machines, count * 2);
+            saved = Arrays.copyOf(saved, count * 2);
+            pending = new long[count * 2];
+        }
+        ids[count] = machineId;
+        machines[count] = statemachine;
+        // Never matches a real state, so it is written by the next checkpoint
+        saved[count] = -1;
+        count++;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Writes the state machines changed since the last checkpoint, or all of
+     * them if there is no full checkpoint yet
+     * 
+     * @return the checkpoint file
+     */
+    public synchronized File checkpoint() throws IOException {
+        return write(lastFull < 0);
+    }
+
+    /**
+     * Writes all the state machines and deletes the older checkpoints
+     * 
+     * @return the checkpoint file
+     */
+    public synchronized File fullCheckpoint() throws IOException {
+        return write(true);
+    }
+
+    private File write(boolean full) throws IOException {
+        long index = lastIndex + 1;
+        File file = new File(directory, String.format("%s%020d%s", PREFIX, index, SUFFIX));
+        File temporary = new File(directory, file.getName() + ".tmp");
+
+        // Only the state machines that changed, unless full
+        long[] states = pending;
+        int written = 0;
+        for (int i = 0; i < count; i++) {
+            states[i] = state(machines[i]);
+            if (full || states[i] != saved[i])
+                written++;
+        }
+
+        FileOutputStream fos = new FileOutputStream(temporary);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(definition.getFingerprint());
+            out.writeLong(index);
+            out.writeLong(full ? -1 : lastFull);
+            out.writeLong(written);
+            for (int i = 0; i < count; i++) {
+                if (full || states[i] != saved[i]) {
+                    out.writeLong(ids[i]);
+                    out.writeLong(states[i]);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temporary.renameTo(file))
+            throw new IOException("Cannot rename " + temporary + " to " + file);
+        // The rename is only durable once the directory is on disk
+        TransitionJournal.syncDirectory(directory);
+
+        pending = saved;
+        saved = states;
+        lastIndex = index;
+        if (full) {
+            lastFull = index;
+            for (File old : checkpoints(directory)) {
+                if (index(old) < index && !old.delete())
+                    l.warn("#write: cannot delete the old checkpoint " + old);
+            }
+        }
+
+        if (l.isDebugEnabled())
+            l.debug("#write: " + file + " with " + written + " of " + count + " state machines");
+
+        return file;
+    }
+
+    /**
+     * The state ordinal and the sequence of the state machine, read
+     * consistently without locking it
+     */
+    private static long state(StateMachineImpl statemachine) {
+        while (true) {
+            long sequence = statemachine.getSequence();
+            int stateId = statemachine.getCurrentStateId();
+            if (statemachine.getSequence() == sequence)
+                return (sequence << STATE_ID_BITS) | stateId;
+        }
+    }
+
+    static File[] checkpoints(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return new File[0];
+
+        int count = 0;
+        for (File file : files) {
+            if (index(file) >= 0)
+                files[count++] = file;
+        }
+        File[] checkpoints = Arrays.copyOf(files, count);
+        Arrays.sort(checkpoints);
+        return checkpoints;
+    }
+
+    static long index(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+            return -1;
+
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
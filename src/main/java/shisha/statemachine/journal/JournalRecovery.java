@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachineDefinition;
+import shisha.statemachine.StateMachineImpl;
+
+/**
+ * Rebuilds the state of the state machines recorded in a
+ * {@link TransitionJournal} by scanning all its segments. The last state of a
+ * state machine is the target of its record with the highest sequence, so
+ * the order of the records does not matter. Records that were not completely
+ * written before a crash are ignored.
+ */
+public final class JournalRecovery {
+    private static Logger l = LoggerFactory.getLogger(JournalRecovery.class);
+
+    // State ordinal in the lower bits, sequence in the upper ones
+    private static final int STATE_ID_BITS = 24;
+    private static final long STATE_ID_MASK = (1L << STATE_ID_BITS) - 1;
+
+    private final CompiledStateMachineDefinition definition;
+    private final Map<Long, Long> states;
+
+    private JournalRecovery(CompiledStateMachineDefinition definition, Map<Long, Long> states) {
+        this.definition = definition;
+        this.states = states;
+    }
+
+    /**
+     * Scans the journal in <code>directory</code>
+     * 
+     * @throws IOException
+     *             if the journal cannot be read, or was written for a
+     *             definition with another fingerprint
+     */
+    public static JournalRecovery scan(File directory, StateMachineDefinition definition) throws IOException {
+        CompiledStateMachineDefinition compiled = CompiledStateMachineDefinition.of(definition);
+        Map<Long, Long> states = new HashMap<Long, Long>();
+        long records = 0;
+
+        for (File file : TransitionJournal.segments(directory)) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < TransitionJournal.HEADER_SIZE)
+                    continue;
+
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt(0) != TransitionJournal.MAGIC || buffer.getInt(4) != TransitionJournal.VERSION)
+                    throw new IOException("Not a journal segment: " + file);
+                if (buffer.getLong(8) != compiled.getFingerprint())
+                    throw new IOException("Journal segment " + file + " was written with another definition");
+
+                records += scan(buffer, compiled, states);
+            } finally {
+                raf.close();
+            }
+        }
+
+        if (l.isDebugEnabled())
+            l.debug("#scan: " + records + " records, " + states.size() + " state machines");
+
+        return new JournalRecovery(compiled, states);
+    }
+
+    private static long scan(MappedByteBuffer buffer, CompiledStateMachineDefinition definition,
+            Map<Long, Long> states) {
+        long records = 0;
+        int stateCount = definition.getStateCount();
+        int end = buffer.limit() - TransitionJournal.RECORD_SIZE;
+        for (int at = TransitionJournal.HEADER_SIZE; at <= end; at += TransitionJournal.RECORD_SIZE) {
+            int checksum = buffer.getInt(at + 36);
+            if (checksum == 0)
+                continue;
+
+            long machineId = buffer.getLong(at);
+            long sequence = buffer.getLong(at + 8);
+            int target = buffer.getInt(at + 32);
+            if (checksum != TransitionJournal.checksum(machineId, sequence, buffer.getLong(at + 16),
+                    buffer.getInt(at + 24), buffer.getInt(at + 28), target) || target < 0 || target >= stateCount)
+                continue;
+
+            records++;
+            Long previous = states.get(machineId);
+            if (previous == null || (previous >>> STATE_ID_BITS) <= sequence)
+                states.put(machineId, (sequence << STATE_ID_BITS) | target);
+        }
+        return records;
+    }
+
+    /**
+     * Ids of the state machines found in the journal
+     */
+    public Set<Long> getMachineIds() {
+        return Collections.unmodifiableSet(states.keySet());
+    }
+
+    /**
+     * Last state of the state machine, or null if it is not in the journal
+     */
+    public String getState(long machineId) {
+        Long value = states.get(machineId);
+        return value == null ? null : definition.getStateName((int) (value & STATE_ID_MASK));
+    }
+
+    /**
+     * Sequence of the last state of the state machine, or -1 if it is not in
+     * the journal
+     */
+    public long getSequence(long machineId) {
+        Long value = states.get(machineId);
+        return value == null ? -1 : value >>> STATE_ID_BITS;
+    }
+
+    /**
+     * Puts the state machine in the last state recorded for
+     * <code>machineId</code>, with its sequence, so the transitions it records
+     * from now on follow the recovered ones. A state machine restored from a
+     * {@link CheckpointRecovery} checkpoint newer than its last record is left
+     * as it is.
+     * 
+     * @return false if the state machine is not in the journal or is already
+     *         past its last record, it is left untouched
+     */
+    public boolean restore(long machineId, StateMachineImpl statemachine) {
+        if (CompiledStateMachineDefinition.of(statemachine.getDefinition()).getFingerprint() != definition
+                .getFingerprint())
+            throw new IllegalArgumentException("The state machine and the journal have different definitions");
+
+        Long value = states.get(machineId);
+        if (value == null || statemachine.getSequence() >= value >>> STATE_ID_BITS)
+            return false;
+
+        statemachine.restore((int) (value & STATE_ID_MASK), value >>> STATE_ID_BITS);
+        return true;
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.CompiledTransition;
+import shisha.statemachine.StateMachineDefinition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionListener;
+
+/**
+ * Append-only journal of the transitions of a set of state machines sharing
+ * a definition, so their states can be recovered after a crash with
+ * {@link JournalRecovery}.
+ *
+ * <p>
+ * Every transition is a fixed size binary record with the id of the state
+ * machine, the ordinals of the source, the event and the target, the
+ * sequence of the new state and a timestamp. Records are appended to
+ * memory-mapped segment files in a directory; appending takes no lock, the
+ * writers reserve their slot with an atomic increment. A new segment is
+ * started every time the journal is opened and when the current one is full.
+ *
+ * <p>
+ * Once appended, a record survives a crash of the process. Surviving a crash
+ * of the operating system depends on the {@link FsyncPolicy}. With
+ * {@link FsyncPolicy#ALWAYS} concurrent transitions share the same fsync
+ * (group commit): while one thread writes the segment to disk, the others
+ * queue and are all covered by the next write. With
+ * {@link FsyncPolicy#INTERVAL} a segment that has been rolled is written to
+ * disk once the writers that reserved a record in it are done.
+ *
+ * <p>
+ * State machines are attached with {@link #attach(StateMachineImpl, long)}.
+ */
+public class TransitionJournal implements Closeable {
+    private static Logger l = LoggerFactory.getLogger(TransitionJournal.class);
+
+    public enum FsyncPolicy {
+        /**
+         * The operating system writes the segments when it sees fit
+         */
+        NEVER,
+        /**
+         * The segments are written to disk periodically, transitions of the
+         * last interval may be lost
+         */
+        INTERVAL,
+        /**
+         * A transition completes once its record is on disk
+         */
+        ALWAYS
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+
+    static final int MAGIC = 0x534d4a31;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 40;
+    static final String PREFIX = "journal-";
+    static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final CompiledStateMachineDefinition definition;
+    private final FsyncPolicy fsyncPolicy;
+    private final int segmentSize;
+    private final Thread flusher;
+    // Rolled segments not yet written to disk, only with INTERVAL
+    private final Queue<Segment> unsynced = new ConcurrentLinkedQueue<Segment>();
+    private volatile Segment current;
+    private volatile boolean closed;
+
+    /**
+     * Journal flushed every {@link #DEFAULT_FSYNC_INTERVAL_MILLIS}
+     */
+    public TransitionJournal(File directory, StateMachineDefinition definition) throws IOException {
+        this(directory, definition, FsyncPolicy.INTERVAL, DEFAULT_FSYNC_INTERVAL_MILLIS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param fsyncIntervalMillis
+     *            only used by {@link FsyncPolicy#INTERVAL}
+     * @param segmentSize
+     *            size in bytes of the segment files
+     */
+    public TransitionJournal(File directory, StateMachineDefinition definition, FsyncPolicy fsyncPolicy,
+            final long fsyncIntervalMillis, int segmentSize) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE)
+            throw new IllegalArgumentException("Segments must hold at least one record");
+        if (fsyncPolicy == FsyncPolicy.INTERVAL && fsyncIntervalMillis <= 0)
+            throw new IllegalArgumentException("The fsync interval must be positive");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create the journal directory " + directory);
+
+        this.directory = directory;
+        this.definition = CompiledStateMachineDefinition.of(definition);
+        this.fsyncPolicy = fsyncPolicy;
+        this.segmentSize = segmentSize - (segmentSize - HEADER_SIZE) % RECORD_SIZE;
+
+        long last = -1;
+        for (File file : segments(directory))
+            last = Math.max(last, segmentIndex(file));
+        this.current = newSegment(last + 1);
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            flusher = new Thread("statemachine-journal-flusher") {
+                public void run() {
+                    while (!closed) {
+                        try {
+                            Thread.sleep(fsyncIntervalMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        syncRolled(false);
+                        current.sync();
+                    }
+                }
+            };
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    public CompiledStateMachineDefinition getDefinition() {
+        return definition;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Records the transitions of the state machine with the given id,
+     * replacing its {@link TransitionListener}. Ids are chosen by the caller
+     * and must be unique in the journal.
+     */
+    public void attach(StateMachineImpl statemachine, final long machineId) {
+        if (CompiledStateMachineDefinition.of(statemachine.getDefinition()).getFingerprint() != definition
+                .getFingerprint())
+            throw new IllegalArgumentException("The state machine and the journal have different definitions");
+
+        statemachine.setTransitionListener(new TransitionListener() {
+            public void onTransition(StateMachineImpl statemachine, CompiledTransition transition, long sequence) {
+                append(machineId, transition, sequence);
+            }
+        });
+    }
+
+    /**
+     * Appends the record of a transition
+     * 
+     * @throws UncheckedIOException
+     *             if a new segment cannot be created. The transition has
+     *             already happened
+     */
+    public void append(long machineId, CompiledTransition transition, long sequence) {
+        if (closed)
+            throw new IllegalStateException("Journal closed");
+
+        // Only the flusher needs to know when the writers of a rolled segment
+        // are done
+        boolean tracked = fsyncPolicy == FsyncPolicy.INTERVAL;
+        Segment segment = current;
+        long position;
+        while (true) {
+            if (tracked)
+                segment.writers.incrementAndGet();
+            if ((position = segment.tail.getAndAdd(RECORD_SIZE)) + RECORD_SIZE <= segmentSize)
+                break;
+            if (tracked)
+                segment.writers.decrementAndGet();
+            segment = roll(segment);
+        }
+
+        try {
+            MappedByteBuffer buffer = segment.buffer;
+            int at = (int) position;
+            long timestamp = System.currentTimeMillis();
+            buffer.putLong(at, machineId);
+            buffer.putLong(at + 8, sequence);
+            buffer.putLong(at + 16, timestamp);
+            buffer.putInt(at + 24, transition.getSourceId());
+            buffer.putInt(at + 28, transition.getEventId());
+            buffer.putInt(at + 32, transition.getTargetId());
+            // Written last: a record without checksum has not been appended
+            buffer.putInt(at + 36, checksum(machineId, sequence, timestamp, transition.getSourceId(),
+                    transition.getEventId(), transition.getTargetId()));
+        } finally {
+            if (tracked)
+                segment.writers.decrementAndGet();
+        }
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS)
+            segment.sync();
+    }
+
+    /**
+     * Writes everything appended so far to disk
+     */
+    public void sync() {
+        syncRolled(true);
+        current.sync();
+    }
+
+    /**
+     * Starts a new segment. Records appended from now on go to it or to later
+     * segments.
+     * 
+     * @return the index of the new segment
+     */
+    public long roll() {
+        if (closed)
+            throw new IllegalStateException("Journal closed");
+
+        return roll(current).index;
+    }
+
+    /**
+     * Deletes the segments with an index lower than <code>index</code>, once a
+     * {@link Checkpointer} checkpoint started after {@link #roll()} returned
+     * it has been written
+     * 
+     * @return the number of segments deleted
+     */
+    public int deleteSegmentsBefore(long index) {
+        int deleted = 0;
+        for (File file : segments(directory)) {
+            if (segmentIndex(file) >= Math.min(index, current.index))
+                continue;
+
+            if (file.delete())
+                deleted++;
+            else
+                l.warn("#deleteSegmentsBefore: cannot delete " + file);
+        }
+        return deleted;
+    }
+
+    /**
+     * Stops the journal, writing everything appended so far to disk
+     */
+    public void close() {
+        closed = true;
+        if (flusher != null)
+            flusher.interrupt();
+        syncRolled(true);
+        current.sync();
+    }
+
+    // Never zero, so an unwritten record is never valid
+    static int checksum(long machineId, long sequence, long timestamp, int source, int event, int target) {
+        long hash = machineId * 0x9e3779b97f4a7c15L;
+        hash = (hash ^ sequence) * 0x9e3779b97f4a7c15L;
+        hash = (hash ^ timestamp) * 0x9e3779b97f4a7c15L;
+        hash = (hash ^ source) * 0x9e3779b97f4a7c15L;
+        hash = (hash ^ event) * 0x9e3779b97f4a7c15L;
+        hash = (hash ^ target) * 0x9e3779b97f4a7c15L;
+        int checksum = (int) (hash ^ (hash >>> 32));
+        return checksum == 0 ? 1 : checksum;
+    }
+
+    static File[] segments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return new File[0];
+
+        int count = 0;
+        for (File file : files) {
+            if (segmentIndex(file) >= 0)
+                files[count++] = file;
+        }
+        File[] segments = new File[count];
+        System.arraycopy(files, 0, segments, 0, count);
+        Arrays.sort(segments, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = segmentIndex(a) - segmentIndex(b);
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        return segments;
+    }
+
+    static long segmentIndex(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+            return -1;
+
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private synchronized Segment roll(Segment full) {
+        if (current != full)
+            return current;
+
+        try {
+            Segment next = newSegment(full.index + 1);
+            // Writers still holding the full segment reserve their record in
+            // the next one. With ALWAYS every record has been written to disk
+            // by its writer.
+            full.tail.set(segmentSize);
+            if (fsyncPolicy == FsyncPolicy.INTERVAL)
+                unsynced.add(full);
+            current = next;
+            return next;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create a new journal segment", e);
+        }
+    }
+
+    /**
+     * Writes the rolled segments to disk, in order, once their writers are
+     * done
+     * 
+     * @param wait
+     *            whether to wait for the writers, otherwise the segments
+     *            still written are left to the next call
+     */
+    private void syncRolled(boolean wait) {
+        Segment segment;
+        while ((segment = unsynced.peek()) != null) {
+            while (segment.writers.get() > 0) {
+                if (!wait)
+                    return;
+                Thread.yield();
+            }
+            segment.sync();
+            unsynced.remove(segment);
+        }
+    }
+
+    int unsyncedSegments() {
+        return unsynced.size();
+    }
+
+    private Segment newSegment(long index) throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", PREFIX, index, SUFFIX));
+        if (l.isDebugEnabled())
+            l.debug("#newSegment: " + file);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(segmentSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, definition.getFingerprint());
+            buffer.putLong(16, index);
+            buffer.putInt(24, RECORD_SIZE);
+        } finally {
+            raf.close();
+        }
+        // Otherwise the segment may not be found after a crash
+        if (fsyncPolicy != FsyncPolicy.NEVER)
+            syncDirectory(directory);
+        return new Segment(index, buffer);
+    }
+
+    /**
+     * Writes the entries of the directory to disk, so files created or
+     * renamed in it survive a crash of the operating system. Does nothing on
+     * the platforms where directories cannot be opened.
+     */
+    static void syncDirectory(File directory) {
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            if (l.isDebugEnabled())
+                l.debug("#syncDirectory: cannot sync " + directory, e);
+        }
+    }
+
+    private static class Segment {
+        private final long index;
+        private final MappedByteBuffer buffer;
+        // Next free position
+        private final AtomicLong tail = new AtomicLong(HEADER_SIZE);
+        // Writers between reserving their record and writing it, only with
+        // INTERVAL
+        private final AtomicInteger writers = new AtomicInteger();
+        // Writes to disk started and completed, see sync
+        private volatile long syncsStarted;
+        private volatile long syncsCompleted;
+
+        Segment(long index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns once everything written by the calling thread is on disk.
+         * Only a write that started after ours covers it; threads waiting
+         * for the lock while another one writes are covered by the next write.
+         */
+        void sync() {
+            long needed = syncsStarted + 1;
+            synchronized (this) {
+                if (syncsCompleted >= needed)
+                    return;
+
+                long started = syncsStarted + 1;
+                syncsStarted = started;
+                buffer.force();
+                syncsCompleted = started;
+            }
+        }
+    }
+}
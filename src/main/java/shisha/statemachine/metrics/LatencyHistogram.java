@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of durations in nanoseconds, in the spirit of HdrHistogram:
+ * buckets are linear within every power of two, so any value is reported
+ * with an error below 1/{@value #SUB_BUCKETS} whatever its magnitude, and
+ * recording is a couple of shifts and one atomic increment. Counts are
+ * striped by thread, so threads recording at the same time rarely update the
+ * same cache line.
+ */
+public class LatencyHistogram {
+    // Sub-buckets per power of two, values below it are exact
+    static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++)
+            counts[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    private static int stripes() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64)
+            stripes <<= 1;
+        return stripes;
+    }
+
+    /**
+     * Records a duration, negative ones count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts[stripe].incrementAndGet(bucket(nanos));
+
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+            ;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Highest value falling in the bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Counts recorded so far. Durations recorded while it is taken might be
+     * missing from it.
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        for (AtomicLongArray stripe : counts) {
+            for (int i = 0; i < BUCKETS; i++)
+                buckets[i] += stripe.get(i);
+        }
+        return new Snapshot(buckets, max.get());
+    }
+
+    /**
+     * Immutable copy of the counts of a {@link LatencyHistogram}
+     */
+    public static final class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long max;
+        private final double mean;
+
+        Snapshot(long[] buckets, long max) {
+            this.buckets = buckets;
+            long count = 0;
+            double total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i];
+                // The middle of the bucket
+                total += buckets[i] * (double) (highestValue(i) + (i == 0 ? 0 : highestValue(i - 1) + 1)) / 2;
+            }
+            this.count = count;
+            this.max = count == 0 ? 0 : max;
+            this.mean = count == 0 ? 0 : total / count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * Value below which <code>percentile</code>% of the durations fall,
+         * with the precision of the buckets
+         * 
+         * @param percentile
+         *            between 0 and 100
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("Percentile out of range: " + percentile);
+            if (count == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank)
+                    return Math.min(highestValue(i), max);
+            }
+            return max;
+        }
+
+        public String toString() {
+            return "count=" + count + " mean=" + (long) mean + " p50=" + getValueAtPercentile(50) + " p99="
+                    + getValueAtPercentile(99) + " max=" + max;
+        }
+    }
+}
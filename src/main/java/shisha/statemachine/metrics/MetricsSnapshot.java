@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Figures of a {@link TransitionMetrics} at some point, for exporting them to
+ * a monitoring system
+ */
+public final class MetricsSnapshot {
+    private final LatencyHistogram.Snapshot lockWait;
+    private final LatencyHistogram.Snapshot exit;
+    private final LatencyHistogram.Snapshot transition;
+    private final LatencyHistogram.Snapshot enter;
+    private final List<TransitionCount> transitionCounts;
+
+    MetricsSnapshot(LatencyHistogram.Snapshot lockWait, LatencyHistogram.Snapshot exit,
+            LatencyHistogram.Snapshot transition, LatencyHistogram.Snapshot enter,
+            List<TransitionCount> transitionCounts) {
+        this.lockWait = lockWait;
+        this.exit = exit;
+        this.transition = transition;
+        this.enter = enter;
+        this.transitionCounts = Collections.unmodifiableList(transitionCounts);
+    }
+
+    /**
+     * Time waited for the state machine lock, per event or batch
+     */
+    public LatencyHistogram.Snapshot getLockWait() {
+        return lockWait;
+    }
+
+    /**
+     * Duration of the exit phase, cancelled transitions included
+     */
+    public LatencyHistogram.Snapshot getExit() {
+        return exit;
+    }
+
+    public LatencyHistogram.Snapshot getTransition() {
+        return transition;
+    }
+
+    public LatencyHistogram.Snapshot getEnter() {
+        return enter;
+    }
+
+    /**
+     * One entry per transition used at least once, in no particular order
+     */
+    public List<TransitionCount> getTransitionCounts() {
+        return transitionCounts;
+    }
+
+    /**
+     * Number of times a source - event - target transition has been applied,
+     * and cancelled by the exit state controller
+     */
+    public static final class TransitionCount {
+        private final String source;
+        private final String event;
+        private final String target;
+        private final long applied;
+        private final long cancelled;
+
+        TransitionCount(String source, String event, String target, long applied, long cancelled) {
+            this.source = source;
+            this.event = event;
+            this.target = target;
+            this.applied = applied;
+            this.cancelled = cancelled;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public long getApplied() {
+            return applied;
+        }
+
+        public long getCancelled() {
+            return cancelled;
+        }
+
+        public String toString() {
+            return "[" + source + " + " + event + " -> " + target + "] applied=" + applied + " cancelled="
+                    + cancelled;
+        }
+    }
+}
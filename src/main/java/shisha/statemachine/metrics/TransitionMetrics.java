@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.CompiledTransition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineMetrics;
+
+/**
+ * Default {@link StateMachineMetrics}: a {@link LatencyHistogram} for the
+ * lock waits and for each phase of the transitions, the exit and enter ones
+ * only when the state has a controller for them, and the number of times
+ * every source - event - target transition has been applied or cancelled.
+ * Transitions are counted by the fingerprint of their definition and their
+ * ordinals, so the definitions bound to each instance of an annotated class
+ * share their counters. One instance can be shared by any number of strategies and state machines,
+ * {@link #snapshot()} returns the figures of all of them.
+ */
+public class TransitionMetrics implements StateMachineMetrics {
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LatencyHistogram exit = new LatencyHistogram();
+    private final LatencyHistogram transition = new LatencyHistogram();
+    private final LatencyHistogram enter = new LatencyHistogram();
+
+    // By definition fingerprint. The last one used is cached, most
+    // applications have a single definition per metrics
+    private final ConcurrentHashMap<Long, Counters> counters = new ConcurrentHashMap<Long, Counters>();
+    private volatile Counters last;
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public void onLockAcquired(StateMachineImpl statemachine, long waitNanos) {
+        lockWait.record(waitNanos);
+    }
+
+    public void onTransition(StateMachineImpl statemachine, CompiledTransition transition, long exitNanos,
+            long transitionNanos, long enterNanos) {
+        if (exitNanos >= 0)
+            exit.record(exitNanos);
+        this.transition.record(transitionNanos);
+        if (enterNanos >= 0)
+            enter.record(enterNanos);
+        counter(statemachine, transition).applied.increment();
+    }
+
+    public void onCancelled(StateMachineImpl statemachine, CompiledTransition transition, long exitNanos) {
+        exit.record(exitNanos);
+        counter(statemachine, transition).cancelled.increment();
+    }
+
+    private Counter counter(StateMachineImpl statemachine, CompiledTransition transition) {
+        CompiledStateMachineDefinition definition = CompiledStateMachineDefinition.of(statemachine.getDefinition());
+        Counters table = last;
+        if (table == null || table.fingerprint != definition.getFingerprint()) {
+            table = counters.get(definition.getFingerprint());
+            if (table == null) {
+                Counters created = new Counters(definition);
+                table = counters.putIfAbsent(definition.getFingerprint(), created);
+                if (table == null)
+                    table = created;
+            }
+            last = table;
+        }
+        return table.counter(transition);
+    }
+
+    /**
+     * Figures recorded so far, they keep growing afterwards
+     */
+    public MetricsSnapshot snapshot() {
+        List<MetricsSnapshot.TransitionCount> counts = new ArrayList<MetricsSnapshot.TransitionCount>();
+        for (Counters table : counters.values()) {
+            for (int i = 0; i < table.counters.length(); i++) {
+                Counter counter = table.counters.get(i);
+                if (counter != null)
+                    counts.add(new MetricsSnapshot.TransitionCount(counter.source, counter.event, counter.target,
+                            counter.applied.sum(), counter.cancelled.sum()));
+            }
+        }
+        return new MetricsSnapshot(lockWait.snapshot(), exit.snapshot(), transition.snapshot(), enter.snapshot(),
+                counts);
+    }
+
+    // The counters of a definition, by source and event ordinals
+    private static class Counters {
+        private final long fingerprint;
+        private final int eventCount;
+        private final AtomicReferenceArray<Counter> counters;
+
+        Counters(CompiledStateMachineDefinition definition) {
+            this.fingerprint = definition.getFingerprint();
+            this.eventCount = definition.getEventCount();
+            this.counters = new AtomicReferenceArray<Counter>(definition.getStateCount() * eventCount);
+        }
+
+        Counter counter(CompiledTransition transition) {
+            int index = transition.getSourceId() * eventCount + transition.getEventId();
+            Counter counter = counters.get(index);
+            if (counter == null) {
+                counters.compareAndSet(index, null, new Counter(transition));
+                counter = counters.get(index);
+            }
+            return counter;
+        }
+    }
+
+    private static class Counter {
+        private final String source;
+        private final String event;
+        private final String target;
+        private final LongAdder applied = new LongAdder();
+        private final LongAdder cancelled = new LongAdder();
+
+        Counter(CompiledTransition transition) {
+            this.source = transition.getSource();
+            this.event = transition.getEvent();
+            this.target = transition.getTarget();
+        }
+    }
+}
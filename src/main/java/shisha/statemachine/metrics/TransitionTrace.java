@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.CompiledTransition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineMetrics;
+
+/**
+ * {@link StateMachineMetrics} keeping the last transitions and lock waits as
+ * binary records in a ring buffer, instead of formatting log lines. Recording
+ * does not allocate: a record is eight longs written in place, and the
+ * oldest ones are overwritten once the buffer is full. Records hold the
+ * ordinals of the states and events and the fingerprint of the
+ * {@link CompiledStateMachineDefinition} they belong to; the reader turns
+ * them into names with the definition of that fingerprint.
+ *
+ * <p>
+ * The buffer is striped by thread like the {@link LatencyHistogram}, so
+ * threads recording at the same time rarely touch the same counter. Records
+ * are in order within a stripe; across stripes, order them by timestamp.
+ * Reading never blocks the writers, records overwritten while being read are
+ * skipped. A writer claims its slot before writing it; when the writer a full
+ * lap earlier in the same stripe has not finished writing the slot yet, the
+ * record is dropped rather than mixed with the other one.
+ */
+public class TransitionTrace implements StateMachineMetrics {
+    public enum Kind {
+        TRANSITION, CANCELLED, LOCK_WAIT
+    }
+
+    /**
+     * Receives the records of the trace
+     */
+    public interface Visitor {
+        /**
+         * @param timestamp
+         *            {@link System#nanoTime()} when the record was written
+         * @param machine
+         *            identity hash code of the state machine
+         * @param fingerprint
+         *            fingerprint of the definition of the state machine, see
+         *            {@link CompiledStateMachineDefinition#getFingerprint()}
+         * @param sourceId
+         *            source state, or current state for a lock wait
+         * @param eventId
+         *            -1 for a lock wait
+         * @param targetId
+         *            -1 for a lock wait
+         * @param exitNanos
+         *            -1 without exit state controller or for a lock wait
+         * @param nanos
+         *            transition phase, or time waited for the lock
+         * @param enterNanos
+         *            -1 without enter state controller, for a cancelled
+         *            transition or for a lock wait
+         */
+        void visit(long timestamp, int machine, long fingerprint, Kind kind, int sourceId, int eventId,
+                int targetId, long exitNanos, long nanos, long enterNanos);
+    }
+
+    // Stamp, timestamp, machine and event, kind with source and target,
+    // definition fingerprint, exit, transition or lock wait, enter: a cache
+    // line per record
+    private static final int RECORD_LONGS = 8;
+    // Stamp of a slot being written. Complete records are stamped with their
+    // index + 1, so never written slots are 0
+    private static final long WRITING = -1;
+    // State ordinals + 1, -1 becoming 0, fit in 24 bits, see
+    // StateMachineImpl#MAX_STATES
+    private static final int STATE_BITS = 24;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+    private static final Kind[] KINDS = Kind.values();
+    private static final int STRIPES = stripes();
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int stripeCapacity;
+
+    /**
+     * @param capacity
+     *            number of records kept, rounded up to a power of two per
+     *            stripe
+     */
+    public TransitionTrace(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        int perStripe = 1;
+        while (perStripe * STRIPES < capacity && perStripe < (1 << 24))
+            perStripe <<= 1;
+        this.stripeCapacity = perStripe;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(perStripe);
+    }
+
+    private static int stripes() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64)
+            stripes <<= 1;
+        return stripes;
+    }
+
+    /**
+     * Number of records kept
+     */
+    public int getCapacity() {
+        return stripeCapacity * STRIPES;
+    }
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public void onLockAcquired(StateMachineImpl statemachine, long waitNanos) {
+        record(statemachine, Kind.LOCK_WAIT, statemachine.getCurrentStateId(), -1, -1, -1, waitNanos, -1);
+    }
+
+    public void onTransition(StateMachineImpl statemachine, CompiledTransition transition, long exitNanos,
+            long transitionNanos, long enterNanos) {
+        record(statemachine, Kind.TRANSITION, transition.getSourceId(), transition.getEventId(),
+                transition.getTargetId(), exitNanos, transitionNanos, enterNanos);
+    }
+
+    public void onCancelled(StateMachineImpl statemachine, CompiledTransition transition, long exitNanos) {
+        record(statemachine, Kind.CANCELLED, transition.getSourceId(), transition.getEventId(),
+                transition.getTargetId(), exitNanos, 0, -1);
+    }
+
+    private void record(StateMachineImpl statemachine, Kind kind, int sourceId, int eventId, int targetId,
+            long exitNanos, long nanos, long enterNanos) {
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        long index = stripe.next.getAndIncrement();
+        AtomicLongArray records = stripe.records;
+        int at = (int) (index & (stripeCapacity - 1)) * RECORD_LONGS;
+
+        // Claims the slot, readers skip it meanwhile. It is still being
+        // written by the previous lap or already holds a later record when
+        // the writers of a stripe are a lap apart
+        long stamp = records.get(at);
+        if (stamp == WRITING || stamp > index || !records.compareAndSet(at, stamp, WRITING))
+            return;
+
+        records.lazySet(at + 1, System.nanoTime());
+        records.lazySet(at + 2, ((long) System.identityHashCode(statemachine) << 32) | (eventId & 0xffffffffL));
+        records.lazySet(at + 3, ((long) kind.ordinal() << (2 * STATE_BITS)) | ((sourceId + 1L) << STATE_BITS)
+                | (targetId + 1L));
+        records.lazySet(at + 4, CompiledStateMachineDefinition.of(statemachine.getDefinition()).getFingerprint());
+        records.lazySet(at + 5, exitNanos);
+        records.lazySet(at + 6, nanos);
+        records.lazySet(at + 7, enterNanos);
+        records.lazySet(at, index + 1);
+    }
+
+    /**
+     * Visits the records kept, stripe by stripe, oldest first
+     * 
+     * @return the number of records visited
+     */
+    public int forEach(Visitor visitor) {
+        int visited = 0;
+        for (Stripe stripe : stripes) {
+            long end = stripe.next.get();
+            for (long index = Math.max(0, end - stripeCapacity); index < end; index++) {
+                AtomicLongArray records = stripe.records;
+                int at = (int) (index & (stripeCapacity - 1)) * RECORD_LONGS;
+                if (records.get(at) != index + 1)
+                    continue;
+
+                long timestamp = records.get(at + 1);
+                long machineAndEvent = records.get(at + 2);
+                long kindSourceAndTarget = records.get(at + 3);
+                long fingerprint = records.get(at + 4);
+                long exitNanos = records.get(at + 5);
+                long nanos = records.get(at + 6);
+                long enterNanos = records.get(at + 7);
+                if (records.get(at) != index + 1)
+                    continue;
+
+                visitor.visit(timestamp, (int) (machineAndEvent >>> 32), fingerprint,
+                        KINDS[(int) (kindSourceAndTarget >>> (2 * STATE_BITS))],
+                        (int) ((kindSourceAndTarget >>> STATE_BITS) & STATE_MASK) - 1, (int) machineAndEvent,
+                        (int) (kindSourceAndTarget & STATE_MASK) - 1, exitNanos, nanos, enterNanos);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    private static class Stripe {
+        private final AtomicLong next = new AtomicLong();
+        private final AtomicLongArray records;
+
+        Stripe(int capacity) {
+            records = new AtomicLongArray(capacity * RECORD_LONGS);
+        }
+    }
+}
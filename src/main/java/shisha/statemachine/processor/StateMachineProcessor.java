@@ -0,0 +1,598 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.EnterState;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.ExitState;
+import shisha.statemachine.annotations.State;
+import shisha.statemachine.annotations.Transition;
+import shisha.statemachine.annotations.Transitions;
+
+/**
+ * Compile time counterpart of the annotation processing done by
+ * {@link shisha.statemachine.StateMachines}.
+ *
+ * <p>
+ * For every class annotated with {@link AStateMachine} it reports as
+ * compilation errors the problems that would be thrown at runtime as
+ * {@link shisha.statemachine.exceptions.IllegalStateAnnotationException},
+ * {@link shisha.statemachine.exceptions.IllegalEventAnnotationException},
+ * {@link shisha.statemachine.exceptions.IllegalTransitionAnnotationException}
+ * and the rest of definition errors, and generates the
+ * <code>XxxStateMachineDefinition</code> class. The generated class defines
+ * the state machine calling the annotated methods directly, so
+ * {@link shisha.statemachine.StateMachines#newReentrant(Object)} and
+ * {@link shisha.statemachine.StateMachines#newNonReentrant(Object)} do not
+ * need any reflection for it. Unless states or events are instance fields,
+ * the definition is built once per class and every instance only binds its
+ * controllers, see {@link shisha.statemachine.BindableController}.
+ *
+ * <p>
+ * Nested classes generate <code>Outer_InnerStateMachineDefinition</code>.
+ * Private classes cannot be reached from the generated code, so they are only
+ * validated.
+ */
+public class StateMachineProcessor extends AbstractProcessor {
+    public static final String SUFFIX = "StateMachineDefinition";
+
+    private static final String TRANSITION_INFO = "shisha.statemachine.TransitionInfo";
+    private static final String EVENT_INFO = "shisha.statemachine.EventInfo";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> result = new HashSet<String>();
+        result.add(AStateMachine.class.getCanonicalName());
+        return result;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(AStateMachine.class))) {
+            AnnotatedType annotated = new AnnotatedType(type);
+            annotated.check();
+
+            if (!annotated.hasErrors && isGenerationRequired(type))
+                generate(annotated);
+        }
+        return false;
+    }
+
+    private boolean isGenerationRequired(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT))
+            return false;
+
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            TypeElement t = (TypeElement) e;
+            if (t.getModifiers().contains(Modifier.PRIVATE) || t.getNestingKind() == NestingKind.LOCAL
+                    || t.getNestingKind() == NestingKind.ANONYMOUS) {
+                processingEnv.getMessager().printMessage(Kind.WARNING,
+                        "State machine definition not generated: the class is not accessible from its package",
+                        type);
+                return false;
+            }
+            if (t.getNestingKind() == NestingKind.MEMBER && !t.getModifiers().contains(Modifier.STATIC))
+                return false;
+        }
+        return true;
+    }
+
+    private static String generatedSimpleName(String packageName, String binaryName) {
+        String name = packageName.length() == 0 ? binaryName : binaryName.substring(packageName.length() + 1);
+        return name.replace('$', '_') + SUFFIX;
+    }
+
+    private void generate(AnnotatedType annotated) {
+        TypeElement type = annotated.type;
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = generatedSimpleName(packageName, binaryName);
+        String qualifiedName = packageName.length() == 0 ? simpleName : packageName + "." + simpleName;
+        String typeName = type.getQualifiedName().toString();
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+            PrintWriter out = new PrintWriter(file.openWriter());
+            try {
+                new Writer(out, annotated, typeName, simpleName).write(packageName);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR,
+                    "Cannot generate " + qualifiedName + ": " + e.getMessage(), type);
+        }
+    }
+
+    /**
+     * Reads and validates the annotations of one class following the same
+     * rules as {@link shisha.statemachine.StateMachines}.
+     */
+    private class AnnotatedType {
+        private final TypeElement type;
+        private final Messager messager = processingEnv.getMessager();
+        private boolean hasErrors;
+
+        private final List<VariableElement> states = new ArrayList<VariableElement>();
+        private final List<VariableElement> events = new ArrayList<VariableElement>();
+        private final List<Phase> phases = new ArrayList<Phase>();
+
+        // Known values for the cross checks. Fields without constant value
+        // cannot be checked at compile time
+        private final HashMap<String, State> stateValues = new HashMap<String, State>();
+        private final Set<String> eventValues = new LinkedHashSet<String>();
+        private boolean allValuesKnown = true;
+        // States or events declared in instance fields
+        private boolean perInstance;
+
+        AnnotatedType(TypeElement type) {
+            this.type = type;
+        }
+
+        void check() {
+            String startState = null;
+
+            for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                State state = field.getAnnotation(State.class);
+                if (state != null && checkField(field, "@State")) {
+                    states.add(field);
+                    perInstance |= !field.getModifiers().contains(Modifier.STATIC);
+                    String value = constantValue(field);
+                    if (state.isStart() && state.isFinal())
+                        error(field, "Cannot define state " + field.getSimpleName()
+                                + " as start and end. It does not make sense");
+                    if (state.isStart()) {
+                        if (startState != null)
+                            error(field, "A state machine can only have one start state. Cannot define state "
+                                    + field.getSimpleName() + " as start state because " + startState
+                                    + " was already defined as the one and only");
+                        startState = field.getSimpleName().toString();
+                    }
+                    if (value != null && stateValues.put(value, state) != null)
+                        error(field, "State " + value + " already defined");
+                }
+
+                if (field.getAnnotation(Event.class) != null && checkField(field, "@Event")) {
+                    events.add(field);
+                    perInstance |= !field.getModifiers().contains(Modifier.STATIC);
+                    String value = constantValue(field);
+                    if (value != null && !eventValues.add(value))
+                        error(field, "@Event " + field.getSimpleName() + " has been declared twice");
+                }
+            }
+
+            if (startState == null)
+                error(type, "Start state has not been defined for the state machine");
+
+            for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(
+                    type))) {
+                checkMethod(method);
+            }
+        }
+
+        /**
+         * States in ordinal order, sorted by field name like the runtime
+         * processing does, so both assign the same ordinals
+         */
+        List<VariableElement> orderedStates() {
+            return byName(states);
+        }
+
+        List<VariableElement> orderedEvents() {
+            return byName(events);
+        }
+
+        private List<VariableElement> byName(List<VariableElement> fields) {
+            List<VariableElement> result = new ArrayList<VariableElement>(fields);
+            Collections.sort(result, new Comparator<VariableElement>() {
+                public int compare(VariableElement a, VariableElement b) {
+                    return a.getSimpleName().toString().compareTo(b.getSimpleName().toString());
+                }
+            });
+            return result;
+        }
+
+        private boolean checkField(VariableElement field, String annotation) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (!isType(field.asType(), String.class.getName()) || !modifiers.contains(Modifier.FINAL)
+                    || !modifiers.contains(Modifier.PUBLIC)) {
+                error(field, annotation + " " + field.getSimpleName() + " must be declared as public static final");
+                return false;
+            }
+            return true;
+        }
+
+        private String constantValue(VariableElement field) {
+            Object value = field.getConstantValue();
+            if (value == null)
+                allValuesKnown = false;
+            return (String) value;
+        }
+
+        private void checkMethod(ExecutableElement method) {
+            Transitions transitions = method.getAnnotation(Transitions.class);
+            Transition transition = method.getAnnotation(Transition.class);
+            EnterState enter = method.getAnnotation(EnterState.class);
+            ExitState exit = method.getAnnotation(ExitState.class);
+            if (transitions == null && transition == null && enter == null && exit == null)
+                return;
+
+            if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+                messager.printMessage(Kind.WARNING, "Method " + method.getSimpleName()
+                        + " is ignored by the state machine because it is not public", method);
+                return;
+            }
+
+            List<? extends VariableElement> params = method.getParameters();
+            if (params.size() != 1 || !isType(params.get(0).asType(), TRANSITION_INFO)) {
+                error(method, "Transition for method " + method.getSimpleName()
+                        + " is not well defined. It should have one and only TransitionEvent paramter");
+                return;
+            }
+
+            // Same precedence as the runtime processing
+            TypeMirror result = method.getReturnType();
+            if (transitions != null) {
+                for (Transition t : transitions.value())
+                    checkTransition(method, t);
+            } else if (transition != null) {
+                checkTransition(method, transition);
+            } else if (enter != null) {
+                if (result.getKind() != TypeKind.VOID && !isType(result, EVENT_INFO))
+                    error(method, "Transition for method " + method.getSimpleName()
+                            + " is not well defined. Enter phase must return a EventInfo or void");
+                checkState(method, enter.value());
+                phases.add(new Phase(Phase.ENTER, method, enter.value(), null, null));
+            } else {
+                if (result.getKind() != TypeKind.VOID && !isType(result, Boolean.class.getName()))
+                    error(method, "Transition for method " + method.getSimpleName()
+                            + " is not well defined. Exit phase must return a boolean or void");
+                checkState(method, exit.value());
+                phases.add(new Phase(Phase.EXIT, method, exit.value(), null, null));
+            }
+        }
+
+        private void checkTransition(ExecutableElement method, Transition transition) {
+            checkState(method, transition.source());
+            checkState(method, transition.target());
+            if (allValuesKnown && !eventValues.contains(transition.event()))
+                error(method, "Event " + transition.event() + " does not exist");
+
+            State source = stateValues.get(transition.source());
+            if (source != null && source.isFinal() && !transition.source().equals(transition.target()))
+                error(method, "Cannot create transitions from the final state " + transition.source());
+
+            phases.add(new Phase(Phase.TRANSITION, method, transition.source(), transition.event(), transition
+                    .target()));
+        }
+
+        private void checkState(ExecutableElement method, String state) {
+            if (allValuesKnown && !stateValues.containsKey(state))
+                error(method, "State " + state + " does not exist");
+        }
+
+        private boolean isType(TypeMirror mirror, String name) {
+            return mirror.getKind() == TypeKind.DECLARED
+                    && processingEnv.getTypeUtils().erasure(mirror).toString().equals(name);
+        }
+
+        private void error(Element element, String msg) {
+            hasErrors = true;
+            messager.printMessage(Kind.ERROR, msg, element);
+        }
+    }
+
+    /**
+     * One annotated method bound to a transition phase
+     */
+    private static class Phase {
+        static final int TRANSITION = 0;
+        static final int ENTER = 1;
+        static final int EXIT = 2;
+
+        private final int kind;
+        private final ExecutableElement method;
+        private final String state;
+        private final String event;
+        private final String target;
+
+        Phase(int kind, ExecutableElement method, String state, String event, String target) {
+            this.kind = kind;
+            this.method = method;
+            this.state = state;
+            this.event = event;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Writes the source of the generated definition
+     */
+    private static class Writer {
+        private final PrintWriter out;
+        private final AnnotatedType annotated;
+        private final String typeName;
+        private final String simpleName;
+
+        Writer(PrintWriter out, AnnotatedType annotated, String typeName, String simpleName) {
+            this.out = out;
+            this.annotated = annotated;
+            this.typeName = typeName;
+            this.simpleName = simpleName;
+        }
+
+        void write(String packageName) {
+            // One controller per annotated method, shared by all its
+            // transitions
+            LinkedHashMap<ExecutableElement, Phase> controllers = new LinkedHashMap<ExecutableElement, Phase>();
+            for (Phase phase : annotated.phases) {
+                if (!controllers.containsKey(phase.method))
+                    controllers.put(phase.method, phase);
+            }
+            List<ExecutableElement> methods = new ArrayList<ExecutableElement>(controllers.keySet());
+
+            if (packageName.length() > 0) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * State machine definition of {@link " + typeName + "}.");
+            out.println(" * Generated by " + StateMachineProcessor.class.getName() + ", do not edit.");
+            out.println(" */");
+            out.println("@SuppressWarnings({ \"rawtypes\", \"static-access\" })");
+            out.println("public final class " + simpleName + " {");
+            out.println("    private static final org.slf4j.Logger l = org.slf4j.LoggerFactory.getLogger("
+                    + simpleName + ".class);");
+            out.println();
+            if (!annotated.perInstance) {
+                out.println("    // Shared by all the instances, which only bind the controllers");
+                out.println("    private static volatile shisha.statemachine.CompiledStateMachineDefinition template;");
+                out.println();
+            }
+            out.println("    private " + simpleName + "() {");
+            out.println("    }");
+            out.println();
+            out.println("    public static shisha.statemachine.CompiledStateMachineDefinition newDefinition(final "
+                    + typeName + " instance)");
+            out.println("            throws shisha.statemachine.exceptions.StateMachineDefinitionException {");
+            if (annotated.perInstance) {
+                out.println("        return define(instance);");
+            } else {
+                out.println("        shisha.statemachine.CompiledStateMachineDefinition result = template;");
+                out.println("        if (result == null) {");
+                out.println("            result = define(null);");
+                out.println("            template = result;");
+                out.println("        }");
+                out.println("        return result.bind(instance);");
+            }
+            out.println("    }");
+            out.println();
+            out.println("    private static shisha.statemachine.CompiledStateMachineDefinition define(final " + typeName
+                    + " instance)");
+            out.println("            throws shisha.statemachine.exceptions.StateMachineDefinitionException {");
+            out.println("        shisha.statemachine.StateMachineDefinitionImpl definition = "
+                    + "new shisha.statemachine.StateMachineDefinitionImpl();");
+
+            for (VariableElement field : annotated.orderedStates()) {
+                State state = field.getAnnotation(State.class);
+                out.println("        definition.defineState(" + fieldRef(field) + ", " + state.isStart() + ", "
+                        + state.isFinal() + ");");
+            }
+            for (VariableElement field : annotated.orderedEvents())
+                out.println("        definition.defineEvent(" + fieldRef(field) + ");");
+
+            for (int i = 0; i < methods.size(); i++) {
+                Phase phase = controllers.get(methods.get(i));
+                out.println("        " + controllerType(phase) + " controller" + i + " = new Controller" + i
+                        + "(instance);");
+            }
+
+            for (Phase phase : annotated.phases) {
+                String controller = "controller" + methods.indexOf(phase.method);
+                switch (phase.kind) {
+                case Phase.TRANSITION:
+                    out.println("        definition.defineTransition(" + literal(phase.state) + ", "
+                            + literal(phase.event) + ", " + literal(phase.target) + ", " + controller + ");");
+                    break;
+                case Phase.ENTER:
+                    out.println("        definition.defineEnterState(" + literal(phase.state) + ", " + controller
+                            + ");");
+                    break;
+                default:
+                    out.println("        definition.defineExitState(" + literal(phase.state) + ", " + controller
+                            + ");");
+                }
+            }
+
+            out.println("        return definition.freeze();");
+            out.println("    }");
+
+            for (int i = 0; i < methods.size(); i++)
+                writeController(controllers.get(methods.get(i)), "Controller" + i);
+
+            out.println("}");
+        }
+
+        private static String controllerType(Phase phase) {
+            switch (phase.kind) {
+            case Phase.TRANSITION:
+                return "shisha.statemachine.TransitionController";
+            case Phase.ENTER:
+                return "shisha.statemachine.EnterStateController";
+            default:
+                return "shisha.statemachine.ExitStateController";
+            }
+        }
+
+        /**
+         * Controller invoking the method of the phase on the instance it holds,
+         * null for the template
+         */
+        private void writeController(Phase phase, String name) {
+            boolean isStatic = phase.method.getModifiers().contains(Modifier.STATIC);
+            out.println();
+            out.println("    private static final class " + name + " implements " + controllerType(phase)
+                    + ", shisha.statemachine.BindableController {");
+            out.println("        private final " + typeName + " instance;");
+            out.println();
+            out.println("        " + name + "(" + typeName + " instance) {");
+            out.println("            this.instance = instance;");
+            out.println("        }");
+            out.println();
+            out.println("        public Object bind(Object callee) {");
+            if (isStatic) {
+                out.println("            return this;");
+            } else {
+                out.println("            return new " + name + "((" + typeName + ") callee);");
+            }
+            out.println("        }");
+            out.println();
+
+            switch (phase.kind) {
+            case Phase.TRANSITION:
+                writeTransition(phase);
+                break;
+            case Phase.ENTER:
+                writeEnterState(phase);
+                break;
+            default:
+                writeExitState(phase);
+            }
+            out.println("    }");
+        }
+
+        private void writeTransition(Phase phase) {
+            out.println("        public void execute(shisha.statemachine.TransitionInfo info) {");
+            out.println("            try {");
+            out.println("                " + call(phase) + ";");
+            out.println("            } catch (Exception swallow) {");
+            out.println("                l.error(\"Exceptions should be treated in the controller. "
+                    + "Swallowing it\", swallow);");
+            out.println("            }");
+            out.println("        }");
+        }
+
+        private void writeEnterState(Phase phase) {
+            boolean isVoid = phase.method.getReturnType().getKind() == TypeKind.VOID;
+            out.println("        public shisha.statemachine.EventInfo execute("
+                    + "shisha.statemachine.TransitionInfo info) {");
+            out.println("            try {");
+            if (isVoid) {
+                out.println("                " + call(phase) + ";");
+            } else {
+                out.println("                return " + call(phase) + ";");
+            }
+            out.println("            } catch (Exception swallow) {");
+            out.println("                l.error(\"Exceptions should be treated in the controller. "
+                    + "Swallowing it\", swallow);");
+            out.println("            }");
+            out.println("            return null;");
+            out.println("        }");
+        }
+
+        private void writeExitState(Phase phase) {
+            boolean isVoid = phase.method.getReturnType().getKind() == TypeKind.VOID;
+            out.println("        public Boolean execute(shisha.statemachine.TransitionInfo info) {");
+            out.println("            try {");
+            if (isVoid) {
+                out.println("                " + call(phase) + ";");
+                out.println("                return true;");
+            } else {
+                out.println("                Boolean result = " + call(phase) + ";");
+                out.println("                return result == null ? Boolean.TRUE : result;");
+            }
+            out.println("            } catch (Exception swallow) {");
+            out.println("                l.error(\"Exceptions should be treated in the controller. "
+                    + "Swallowing it\", swallow);");
+            out.println("                return null;");
+            out.println("            }");
+            out.println("        }");
+        }
+
+        private String call(Phase phase) {
+            String callee = phase.method.getModifiers().contains(Modifier.STATIC) ? typeName : "instance";
+            return callee + "." + phase.method.getSimpleName() + "(info)";
+        }
+
+        private String fieldRef(VariableElement field) {
+            String owner = field.getModifiers().contains(Modifier.STATIC) ? typeName : "instance";
+            return owner + "." + field.getSimpleName();
+        }
+
+        private static String literal(String value) {
+            StringBuilder sb = new StringBuilder("\"");
+            for (char c : value.toCharArray()) {
+                switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+                }
+            }
+            return sb.append('"').toString();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import shisha.statemachine.StateMachineMetrics;
+import shisha.statemachine.TransitionInfoCache;
+
+/**
+ * Runs the state machines using an {@link ActorStrategy} on a shared pool of
+ * threads. Any number of state machines can share the same scheduler, idle
+ * ones do not use any thread.
+ */
+public class ActorScheduler {
+    public static final int DEFAULT_THROUGHPUT = 64;
+
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int throughput;
+    private final TransitionInfoCache transitionInfos;
+    private volatile int maxRedirects = ReentrantStrategy.DEFAULT_MAX_REDIRECTS;
+    private volatile StateMachineMetrics metrics;
+
+    /**
+     * Scheduler with its own pool of <code>threads</code> daemon threads
+     */
+    public ActorScheduler(int threads) {
+        this(threads, DEFAULT_THROUGHPUT);
+    }
+
+    public ActorScheduler(int threads, int throughput) {
+        this(Executors.newFixedThreadPool(threads, new ActorThreadFactory()), throughput, true,
+                TransitionInfoCache.Mode.PER_THREAD);
+    }
+
+    /**
+     * Scheduler running the state machines on <code>executor</code>, which is
+     * not shut down by {@link #shutdown()}
+     *
+     * @param throughput
+     *            number of events a state machine processes before giving the
+     *            thread to the next one
+     */
+    public ActorScheduler(Executor executor, int throughput) {
+        this(executor, throughput, false, TransitionInfoCache.Mode.PER_THREAD);
+    }
+
+    private ActorScheduler(Executor executor, int throughput, boolean owned, TransitionInfoCache.Mode reuse) {
+        if (throughput <= 0)
+            throw new IllegalArgumentException("Throughput must be positive");
+
+        this.executor = executor;
+        this.ownedExecutor = owned ? (ExecutorService) executor : null;
+        this.throughput = throughput;
+        this.transitionInfos = new TransitionInfoCache(reuse);
+    }
+
+    /**
+     * Scheduler running every state machine drain in a new virtual thread, so
+     * controllers can block on I/O without holding a platform thread. See
+     * {@link VirtualThreads} for the runtimes without virtual threads.
+     */
+    public static ActorScheduler newVirtualThreadScheduler() {
+        // Virtual threads are not pooled, reusing the TransitionInfo per thread
+        // would allocate a thread local for every drain
+        return new ActorScheduler(VirtualThreads.newExecutor(), DEFAULT_THROUGHPUT, true,
+                TransitionInfoCache.Mode.NONE);
+    }
+
+    public int getThroughput() {
+        return throughput;
+    }
+
+    public int getMaxRedirects() {
+        return maxRedirects;
+    }
+
+    /**
+     * Maximum number of consecutive redirections for the state machines of
+     * this scheduler, see {@link ReentrantStrategy#setMaxRedirects(int)}
+     */
+    public void setMaxRedirects(int maxRedirects) {
+        if (maxRedirects < 0)
+            throw new IllegalArgumentException("The maximum number of redirects cannot be negative");
+
+        this.maxRedirects = maxRedirects;
+    }
+
+    public StateMachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Instrumentation notified of the duration of the transition phases of
+     * the state machines of this scheduler, null for none. There is no lock,
+     * so it is never notified of lock waits.
+     */
+    public void setMetrics(StateMachineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Stops the threads created by this scheduler. Events queued afterwards
+     * fail with a {@link java.util.concurrent.RejectedExecutionException}
+     */
+    public void shutdown() {
+        if (ownedExecutor != null)
+            ownedExecutor.shutdown();
+    }
+
+    TransitionInfoCache getTransitionInfos() {
+        return transitionInfos;
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    private static class ActorThreadFactory implements ThreadFactory {
+        private static final AtomicInteger schedulers = new AtomicInteger();
+
+        private final int scheduler = schedulers.incrementAndGet();
+        private final AtomicInteger threads = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "statemachine-actor-" + scheduler + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
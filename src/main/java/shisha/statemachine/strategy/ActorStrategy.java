@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.AsyncStateMachineStrategy;
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+
+/**
+ * Actor like strategy for applications with a huge number of mostly idle
+ * state machines. Each state machine has its own lock-free mailbox, and an
+ * {@link ActorScheduler} shared by all of them drains the mailboxes with a
+ * small pool of threads. A state machine is run by at most one thread at a
+ * time, in arrival order, and nobody blocks on a lock.
+ *
+ * <p>
+ * The per state machine cost is kept to the minimum: the mailbox is a single
+ * reference to a stack of pending events, which the scheduler thread takes
+ * in one go and reverses. There is no lock, and the {@link
+ * shisha.statemachine.TransitionInfo}s are reused per scheduler thread.
+ *
+ * <p>
+ * Nothing in the path is <code>synchronized</code>, so with
+ * {@link ActorScheduler#newVirtualThreadScheduler()} controllers blocking on
+ * I/O park their virtual thread without pinning the carrier thread.
+ *
+ * <p>
+ * Every state machine needs its own strategy instance. Controllers queue
+ * follow-up events with
+ * {@link shisha.statemachine.StateMachine#processEventAsync(String, Object)};
+ * the synchronous {@link #processEvent(StateMachineImpl, String, Object)}
+ * would park a scheduler thread, so it is not allowed from them.
+ */
+public class ActorStrategy implements AsyncStateMachineStrategy {
+    private static Logger l = LoggerFactory.getLogger(ActorStrategy.class);
+
+    private static final AtomicReferenceFieldUpdater<ActorStrategy, Mail> INBOX = AtomicReferenceFieldUpdater
+            .newUpdater(ActorStrategy.class, Mail.class, "inbox");
+    private static final AtomicIntegerFieldUpdater<ActorStrategy> SCHEDULED = AtomicIntegerFieldUpdater.newUpdater(
+            ActorStrategy.class, "scheduled");
+
+    // The actor being drained by the current thread, if any
+    private static final ThreadLocal<ActorStrategy> RUNNING = new ThreadLocal<ActorStrategy>();
+
+    private final ActorScheduler scheduler;
+    // Pending events, the last one first
+    private volatile Mail inbox;
+    private volatile int scheduled;
+
+    public ActorStrategy(ActorScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public CompletableFuture<String> processEventAsync(StateMachineImpl statemachine, String event, Object object) {
+        Mail mail = new Mail(statemachine, event, object);
+        Mail head;
+        do {
+            head = inbox;
+            mail.next = head;
+        } while (!INBOX.compareAndSet(this, head, mail));
+
+        schedule();
+        return mail.result;
+    }
+
+    /**
+     * Queues the event and waits until it has been processed. Not allowed from
+     * the threads of the scheduler.
+     */
+    public void processEvent(StateMachineImpl statemachine, String event, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        if (RUNNING.get() != null)
+            throw new ReentrantTransitionNotAllowed(
+                    "Events cannot be processed synchronously from an actor, use processEventAsync");
+
+        try {
+            processEventAsync(statemachine, event, object).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StateMachineExecutionException("Interrupted while waiting for event " + event, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StateMachineExecutionException)
+                throw (StateMachineExecutionException) cause;
+            if (cause instanceof StateMachineDefinitionException)
+                throw (StateMachineDefinitionException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new StateMachineExecutionException("Event " + event + " failed", cause);
+        }
+    }
+
+    private void schedule() {
+        if (inbox == null || scheduled != 0 || !SCHEDULED.compareAndSet(this, 0, 1))
+            return;
+
+        try {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scheduled = 0;
+            l.warn("#schedule: scheduler rejected the state machine, failing the queued events");
+
+            for (Mail mail = INBOX.getAndSet(this, null); mail != null; mail = mail.next)
+                mail.result.completeExceptionally(e);
+        }
+    }
+
+    private void drain() {
+        RUNNING.set(this);
+        // Events taken from the inbox and not processed yet, oldest first
+        Mail mail = null;
+        try {
+            int throughput = scheduler.getThroughput();
+            for (int processed = 0; processed < throughput; processed++) {
+                if (mail == null) {
+                    mail = reverse(INBOX.getAndSet(this, null));
+                    if (mail == null)
+                        break;
+                }
+
+                Mail current = mail;
+                mail = current.next;
+                current.next = null;
+                process(current);
+            }
+        } finally {
+            // Left by the throughput limit or by an Error, they go before the
+            // events queued in the meantime
+            if (mail != null)
+                requeue(mail);
+
+            RUNNING.set(null);
+            scheduled = 0;
+            // Events queued after the last take, or left by the throughput limit
+            schedule();
+        }
+    }
+
+    /**
+     * Puts back the events at the bottom of the inbox, so they are still the
+     * first ones taken. Only the draining thread takes events, so nobody else
+     * touches the bottom of the stack.
+     */
+    private void requeue(Mail oldest) {
+        Mail chain = reverse(oldest);
+        while (true) {
+            Mail head = inbox;
+            if (head == null) {
+                if (INBOX.compareAndSet(this, null, chain))
+                    return;
+            } else {
+                Mail bottom = head;
+                while (bottom.next != null)
+                    bottom = bottom.next;
+                bottom.next = chain;
+                return;
+            }
+        }
+    }
+
+    private void process(Mail mail) {
+        StateMachineImpl statemachine = mail.statemachine;
+        try {
+            CompiledStateMachineDefinition definition = CompiledStateMachineDefinition.of(statemachine
+                    .getDefinition());
+            Transitions.process(statemachine, definition, mail.event, Transitions.eventId(definition, mail.event),
+                    mail.object, scheduler.getTransitionInfos(), scheduler.getMaxRedirects(),
+                    Transitions.enabled(scheduler.getMetrics()));
+            mail.result.complete(statemachine.getCurrentState());
+        } catch (StateMachineException e) {
+            mail.result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            l.warn("#process: unexpected exception processing event " + mail.event, e);
+            mail.result.completeExceptionally(e);
+        } catch (Error e) {
+            // The caller waiting for the result must not hang
+            mail.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static Mail reverse(Mail mail) {
+        Mail reversed = null;
+        while (mail != null) {
+            Mail next = mail.next;
+            mail.next = reversed;
+            reversed = mail;
+            mail = next;
+        }
+        return reversed;
+    }
+
+    /**
+     * A queued event and the future returned to the caller
+     */
+    private static class Mail {
+        private final StateMachineImpl statemachine;
+        private final String event;
+        private final Object object;
+        private final CompletableFuture<String> result = new CompletableFuture<String>();
+        private Mail next;
+
+        Mail(StateMachineImpl statemachine, String event, Object object) {
+            this.statemachine = statemachine;
+            this.event = event;
+            this.object = object;
+        }
+    }
+}
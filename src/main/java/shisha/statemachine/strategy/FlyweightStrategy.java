@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.List;
+
+import shisha.statemachine.BatchStateMachineStrategy;
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.EventOutcome;
+import shisha.statemachine.OrdinalStateMachineStrategy;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineMetrics;
+import shisha.statemachine.TransitionInfoCache;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+
+/**
+ * Non reentrant strategy without any state per state machine, meant to be
+ * shared by millions of them. Instead of a {@link java.util.concurrent.locks.ReentrantLock}
+ * per state machine, transitions run synchronized on the state machine
+ * itself, so the lock is the word the JVM already keeps in the header of
+ * every object. The {@link shisha.statemachine.TransitionInfo}s are not
+ * reused: looking one up in a thread local costs more than allocating it.
+ *
+ * <p>
+ * There is no timeout nor fairness, callers wait for the lock as long as
+ * needed. Code synchronizing on the state machine object takes the same
+ * lock. On runtimes where virtual threads are pinned while holding a
+ * monitor, prefer the {@link VirtualThreadStrategy} for controllers blocking
+ * on I/O.
+ */
+public class FlyweightStrategy implements BatchStateMachineStrategy, OrdinalStateMachineStrategy {
+    /**
+     * Instance with the default maximum number of redirections
+     */
+    public static final FlyweightStrategy SHARED = new FlyweightStrategy(ReentrantStrategy.DEFAULT_MAX_REDIRECTS);
+
+    private static final TransitionInfoCache TRANSITION_INFOS = new TransitionInfoCache(
+            TransitionInfoCache.Mode.NONE);
+
+    private final int maxRedirects;
+    private final StateMachineMetrics metrics;
+
+    /**
+     * @param maxRedirects
+     *            maximum number of consecutive redirections, see
+     *            {@link ReentrantStrategy#setMaxRedirects(int)}
+     */
+    public FlyweightStrategy(int maxRedirects) {
+        this(maxRedirects, null);
+    }
+
+    /**
+     * @param metrics
+     *            notified of the lock waits and the duration of the transition
+     *            phases of all the state machines sharing the strategy, null
+     *            for none
+     */
+    public FlyweightStrategy(int maxRedirects, StateMachineMetrics metrics) {
+        if (maxRedirects < 0)
+            throw new IllegalArgumentException("The maximum number of redirects cannot be negative");
+
+        this.maxRedirects = maxRedirects;
+        this.metrics = metrics;
+    }
+
+    public int getMaxRedirects() {
+        return maxRedirects;
+    }
+
+    public StateMachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void processEvent(StateMachineImpl statemachine, String event, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        CompiledStateMachineDefinition definition = CompiledStateMachineDefinition.of(statemachine.getDefinition());
+        process(statemachine, definition, event, Transitions.eventId(definition, event), object);
+    }
+
+    public void processEvent(StateMachineImpl statemachine, int eventId, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        CompiledStateMachineDefinition definition = CompiledStateMachineDefinition.of(statemachine.getDefinition());
+        process(statemachine, definition, Transitions.eventName(definition, eventId), eventId, object);
+    }
+
+    private void process(StateMachineImpl statemachine, CompiledStateMachineDefinition definition, String event,
+            int eventId, Object object) throws StateMachineExecutionException, StateMachineDefinitionException {
+        StateMachineMetrics metrics = Transitions.enabled(this.metrics);
+        long started = metrics == null ? 0 : System.nanoTime();
+
+        synchronized (statemachine) {
+            enterTransition(statemachine);
+            try {
+                if (metrics != null)
+                    metrics.onLockAcquired(statemachine, System.nanoTime() - started);
+                Transitions.process(statemachine, definition, event, eventId, object, TRANSITION_INFOS,
+                        maxRedirects, metrics);
+            } finally {
+                statemachine.exitTransition();
+            }
+        }
+    }
+
+    public List<EventOutcome> processEvents(StateMachineImpl statemachine, Iterable<EventInfo> events,
+            boolean continueOnFailure) throws StateMachineExecutionException {
+        CompiledStateMachineDefinition definition = CompiledStateMachineDefinition.of(statemachine.getDefinition());
+        StateMachineMetrics metrics = Transitions.enabled(this.metrics);
+        long started = metrics == null ? 0 : System.nanoTime();
+
+        synchronized (statemachine) {
+            enterTransition(statemachine);
+            try {
+                if (metrics != null)
+                    metrics.onLockAcquired(statemachine, System.nanoTime() - started);
+                return Transitions.processAll(statemachine, definition, events, continueOnFailure,
+                        TRANSITION_INFOS, maxRedirects, metrics);
+            } finally {
+                statemachine.exitTransition();
+            }
+        }
+    }
+
+    // The monitor is reentrant, the flag tells whether this thread is already
+    // in a transition of the state machine
+    private static void enterTransition(StateMachineImpl statemachine) throws ReentrantTransitionNotAllowed {
+        if (!statemachine.enterTransition())
+            throw new ReentrantTransitionNotAllowed("Reentrance from the same thread is not allowed");
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link ReentrantStrategy} acquires the lock of the state machine before
+ * running a transition. Immutable.
+ */
+public final class LockPolicy {
+    public enum Mode {
+        /**
+         * Waits as long as needed
+         */
+        BLOCK,
+        /**
+         * Fails immediately if another thread is running a transition
+         */
+        TRY_ONCE,
+        /**
+         * Waits up to the configured timeout
+         */
+        TIMEOUT
+    }
+
+    private static final LockPolicy BLOCK = new LockPolicy(Mode.BLOCK, 0, false);
+    private static final LockPolicy TRY_ONCE = new LockPolicy(Mode.TRY_ONCE, 0, false);
+
+    private final Mode mode;
+    private final long timeoutNanos;
+    private final boolean fair;
+
+    private LockPolicy(Mode mode, long timeoutNanos, boolean fair) {
+        this.mode = mode;
+        this.timeoutNanos = timeoutNanos;
+        this.fair = fair;
+    }
+
+    /**
+     * The default policy: wait for the lock as long as needed
+     */
+    public static LockPolicy block() {
+        return BLOCK;
+    }
+
+    public static LockPolicy tryOnce() {
+        return TRY_ONCE;
+    }
+
+    public static LockPolicy timeout(long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Timeout cannot be negative");
+
+        return new LockPolicy(Mode.TIMEOUT, unit.toNanos(timeout), false);
+    }
+
+    /**
+     * Same policy with a fair lock: waiting threads get the lock in arrival
+     * order, at the price of throughput
+     */
+    public LockPolicy fair() {
+        return new LockPolicy(mode, timeoutNanos, true);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getTimeout(TimeUnit unit) {
+        return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isFair() {
+        return fair;
+    }
+
+    @Override
+    public String toString() {
+        return mode + (mode == Mode.TIMEOUT ? "(" + timeoutNanos + " ns)" : "") + (fair ? " fair" : "");
+    }
+}
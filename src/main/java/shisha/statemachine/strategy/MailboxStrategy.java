@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.AsyncStateMachineStrategy;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineMetrics;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+
+/**
+ * Asynchronous strategy: events are queued in a mailbox and the transitions
+ * run on an {@link Executor}, one event at a time and in arrival order. The
+ * callers never wait for a lock.
+ *
+ * <p>
+ * A strategy instance is the mailbox of one state machine, so it must not be
+ * shared. Only one task per state machine is submitted to the executor at a
+ * time; it processes up to <code>throughput</code> events before giving the
+ * thread back to the executor.
+ *
+ * <p>
+ * Controllers can queue new events with
+ * {@link shisha.statemachine.StateMachine#processEventAsync(String, Object)}.
+ * Processing an event synchronously from a controller would wait for itself,
+ * so it throws {@link ReentrantTransitionNotAllowed}.
+ */
+public class MailboxStrategy implements AsyncStateMachineStrategy {
+    private static Logger l = LoggerFactory.getLogger(MailboxStrategy.class);
+
+    public static final int DEFAULT_THROUGHPUT = 64;
+
+    private final Executor executor;
+    private final int throughput;
+    // Runs the transitions. Only the drain task uses it, so its lock is never
+    // contended
+    private final ReentrantStrategy delegate = new NonReentrantStrategy();
+
+    private final ConcurrentLinkedQueue<Mail> mailbox = new ConcurrentLinkedQueue<Mail>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Thread drainer;
+
+    public MailboxStrategy(Executor executor) {
+        this(executor, DEFAULT_THROUGHPUT);
+    }
+
+    public MailboxStrategy(Executor executor, int throughput) {
+        if (throughput <= 0)
+            throw new IllegalArgumentException("Throughput must be positive");
+
+        this.executor = executor;
+        this.throughput = throughput;
+    }
+
+    /**
+     * Maximum number of consecutive redirections, see
+     * {@link ReentrantStrategy#setMaxRedirects(int)}
+     */
+    public void setMaxRedirects(int maxRedirects) {
+        delegate.setMaxRedirects(maxRedirects);
+    }
+
+    /**
+     * Instrumentation of the transitions, see
+     * {@link ReentrantStrategy#setMetrics(StateMachineMetrics)}. The lock is
+     * never contended, lock waits do not include the time queued.
+     */
+    public void setMetrics(StateMachineMetrics metrics) {
+        delegate.setMetrics(metrics);
+    }
+
+    public CompletableFuture<String> processEventAsync(StateMachineImpl statemachine, String event, Object object) {
+        Mail mail = new Mail(statemachine, event, object);
+        mailbox.offer(mail);
+        schedule();
+        return mail.result;
+    }
+
+    /**
+     * Queues the event and waits until it has been processed
+     */
+    public void processEvent(StateMachineImpl statemachine, String event, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        if (drainer == Thread.currentThread())
+            throw new ReentrantTransitionNotAllowed(
+                    "Events cannot be processed synchronously from a transition, use processEventAsync");
+
+        try {
+            processEventAsync(statemachine, event, object).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StateMachineExecutionException("Interrupted while waiting for event " + event, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StateMachineExecutionException)
+                throw (StateMachineExecutionException) cause;
+            if (cause instanceof StateMachineDefinitionException)
+                throw (StateMachineDefinitionException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new StateMachineExecutionException("Event " + event + " failed", cause);
+        }
+    }
+
+    private void schedule() {
+        if (mailbox.isEmpty() || !scheduled.compareAndSet(false, true))
+            return;
+
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            l.warn("#schedule: executor rejected the state machine, failing the queued events");
+
+            Mail mail;
+            while ((mail = mailbox.poll()) != null)
+                mail.result.completeExceptionally(e);
+        }
+    }
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            drainer = Thread.currentThread();
+            try {
+                for (int i = 0; i < throughput; i++) {
+                    Mail mail = mailbox.poll();
+                    if (mail == null)
+                        break;
+
+                    process(mail);
+                }
+            } finally {
+                drainer = null;
+                scheduled.set(false);
+                // Events queued after the last poll, or left by the throughput limit
+                schedule();
+            }
+        }
+    };
+
+    private void process(Mail mail) {
+        try {
+            delegate.processEvent(mail.statemachine, mail.event, mail.object);
+            mail.result.complete(mail.statemachine.getCurrentState());
+        } catch (StateMachineException e) {
+            mail.result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            l.warn("#process: unexpected exception processing event " + mail.event, e);
+            mail.result.completeExceptionally(e);
+        } catch (Error e) {
+            // The caller waiting for the result must not hang
+            mail.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static class Mail {
+        private final StateMachineImpl statemachine;
+        private final String event;
+        private final Object object;
+        private final CompletableFuture<String> result = new CompletableFuture<String>();
+
+        Mail(StateMachineImpl statemachine, String event, Object object) {
+            this.statemachine = statemachine;
+            this.event = event;
+            this.object = object;
+        }
+    }
+}
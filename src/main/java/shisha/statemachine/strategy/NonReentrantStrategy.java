@@ -15,8 +15,18 @@
  */ 
 package shisha.statemachine.strategy;
 
+import shisha.statemachine.TransitionInfoCache;
+
 public class NonReentrantStrategy extends ReentrantStrategy {
     public NonReentrantStrategy() {
         super();
     }
+    
+    public NonReentrantStrategy(TransitionInfoCache.Mode reuse) {
+        super(false, reuse);
+    }
+    
+    public NonReentrantStrategy(LockPolicy lockPolicy) {
+        super(false, lockPolicy, TransitionInfoCache.Mode.NONE);
+    }
 }
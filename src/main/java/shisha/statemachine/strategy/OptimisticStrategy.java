@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.CompiledTransition;
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.OrdinalStateMachineStrategy;
+import shisha.statemachine.StateMachineDefinition;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.TransitionListener;
+import shisha.statemachine.exceptions.ConstraintException;
+import shisha.statemachine.exceptions.RedirectLimitExceededException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+/**
+ * Lock-free strategy for state machines that mostly record their state. The
+ * target state is looked up in the {@link CompiledStateMachineDefinition} and
+ * committed with a compare and set on the current state, retrying from the
+ * new state if another thread moved the state machine in between. Any number
+ * of threads can process events on the same state machine without waiting
+ * for each other.
+ *
+ * <p>
+ * As nothing is locked, the controllers run only after the state has been
+ * committed:
+ * <ul>
+ * <li>exit state controllers are not supported, they could cancel a
+ * transition other threads have already seen. Transitions leaving a state
+ * with an exit controller throw {@link ConstraintException}, use
+ * {@link #checkDefinition(StateMachineDefinition)} to reject such
+ * definitions up front</li>
+ * <li>transition and enter state controllers run once the transition has been
+ * committed, concurrently with the transitions of other threads. They must be
+ * thread safe, and the state machine may have already left the target state
+ * when they run</li>
+ * <li>a redirection returned by an enter controller is processed from the
+ * state the state machine is in at that moment</li>
+ * </ul>
+ * Transitions without controllers do not allocate anything.
+ *
+ * <p>
+ * The strategy has no state of its own and can be shared by any number of
+ * state machines. It needs a definition that can be compiled.
+ */
+public class OptimisticStrategy implements OrdinalStateMachineStrategy {
+    private static Logger l = LoggerFactory.getLogger(OptimisticStrategy.class);
+
+    private volatile int maxRedirects = ReentrantStrategy.DEFAULT_MAX_REDIRECTS;
+
+    public int getMaxRedirects() {
+        return maxRedirects;
+    }
+
+    /**
+     * Maximum number of consecutive redirections, see
+     * {@link ReentrantStrategy#setMaxRedirects(int)}
+     */
+    public void setMaxRedirects(int maxRedirects) {
+        if (maxRedirects < 0)
+            throw new IllegalArgumentException("The maximum number of redirects cannot be negative");
+
+        this.maxRedirects = maxRedirects;
+    }
+
+    /**
+     * Checks that the definition can be run by this strategy
+     * 
+     * @throws ConstraintException
+     *             if any state has an exit state controller
+     */
+    public static void checkDefinition(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        CompiledStateMachineDefinition compiled = CompiledStateMachineDefinition.of(definition);
+        for (int i = 0; i < compiled.getStateCount(); i++) {
+            String state = compiled.getStateName(i);
+            if (compiled.getExitStateController(state) != null)
+                throw new ConstraintException("State " + state
+                        + " has an exit state controller, not supported by the optimistic strategy");
+        }
+    }
+
+    public void processEvent(StateMachineImpl statemachine, String event, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        CompiledStateMachineDefinition definition = CompiledStateMachineDefinition.of(statemachine.getDefinition());
+        process(statemachine, definition, event, Transitions.eventId(definition, event), object);
+    }
+
+    public void processEvent(StateMachineImpl statemachine, int eventId, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        CompiledStateMachineDefinition definition = CompiledStateMachineDefinition.of(statemachine.getDefinition());
+        process(statemachine, definition, Transitions.eventName(definition, eventId), eventId, object);
+    }
+
+    private void process(StateMachineImpl statemachine, CompiledStateMachineDefinition definition, String event,
+            int eventId, Object object) throws StateMachineExecutionException, StateMachineDefinitionException {
+        int redirects = 0;
+        while (true) {
+            CompiledTransition transition = commit(statemachine, definition, event, eventId);
+
+            TransitionController transitionController = transition.getTransitionController();
+            EnterStateController enterController = transition.getEnterStateController();
+            if (transitionController == null && enterController == null)
+                return;
+
+            TransitionInfo tEvent = new TransitionInfo(transition.getSource(), event, transition.getTarget(), object);
+            if (transitionController != null)
+                transitionController.execute(tEvent);
+
+            EventInfo result = enterController != null ? enterController.execute(tEvent) : null;
+            if (result == null)
+                return;
+
+            if (++redirects > maxRedirects)
+                throw new RedirectLimitExceededException("Redirect chain longer than " + maxRedirects
+                        + " events. Last redirection to event " + result.getEvent() + " from state "
+                        + transition.getTarget());
+
+            if (l.isDebugEnabled())
+                l.debug("#processEvent: Redirecting forced by controller to event " + result.getEvent());
+
+            event = result.getEvent();
+            object = result.getObject();
+            eventId = Transitions.eventId(definition, event);
+        }
+    }
+
+    /**
+     * Moves the state machine with the event, retrying until no other thread
+     * changes the state between the lookup and the commit
+     */
+    private static CompiledTransition commit(StateMachineImpl statemachine, CompiledStateMachineDefinition definition,
+            String event, int eventId) throws StateMachineDefinitionException {
+        while (true) {
+            int sourceId = statemachine.getCurrentStateId();
+            if (sourceId < 0)
+                throw new StateNotDefinedException("State " + statemachine.getCurrentState() + " does not exist");
+
+            CompiledTransition transition = definition.getTransition(sourceId, eventId);
+            if (transition == null)
+                throw new TransitionNotDefinedException("Transition from state "
+                        + definition.getStateName(sourceId) + " with event " + event + " not defined");
+
+            if (transition.getExitStateController() != null)
+                throw new ConstraintException("State " + transition.getSource()
+                        + " has an exit state controller, not supported by the optimistic strategy");
+
+            long sequence = statemachine.compareAndAdvance(sourceId, transition.getTargetId());
+            if (sequence >= 0) {
+                TransitionListener listener = statemachine.getTransitionListener();
+                if (listener != null)
+                    listener.onTransition(statemachine, transition, sequence);
+                return transition;
+            }
+        }
+    }
+}
@@ -15,34 +15,52 @@
  */ 
 package shisha.statemachine.strategy;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import shisha.statemachine.EnterStateController;
+import shisha.statemachine.BatchStateMachineStrategy;
+import shisha.statemachine.CompiledStateMachineDefinition;
 import shisha.statemachine.EventInfo;
-import shisha.statemachine.ExitStateController;
-import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.EventOutcome;
+import shisha.statemachine.OrdinalStateMachineStrategy;
 import shisha.statemachine.StateMachineImpl;
-import shisha.statemachine.StateMachineStrategy;
-import shisha.statemachine.TransitionController;
+import shisha.statemachine.StateMachineMetrics;
+import shisha.statemachine.TimedStateMachineStrategy;
 import shisha.statemachine.TransitionInfo;
-import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.TransitionInfoCache;
+import shisha.statemachine.exceptions.LockTimeoutException;
 import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
 
 /**
  * Single-thread implementation which user can configure whether it allows reentrant 
  * transitions
+ * 
+ * <p>Transitions run with the state machine lock acquired as configured by the
+ * {@link LockPolicy}. By default callers wait for the lock as long as needed.
  */
-public class ReentrantStrategy implements StateMachineStrategy {
+public class ReentrantStrategy implements TimedStateMachineStrategy, BatchStateMachineStrategy,
+        OrdinalStateMachineStrategy {
     private static Logger l = LoggerFactory.getLogger(ReentrantStrategy.class);
     
-    private ReentrantLock lock = new ReentrantLock();
+    /**
+     * Default maximum number of consecutive redirections returned by the
+     * {@link shisha.statemachine.EnterStateController}s for a single event
+     */
+    public static final int DEFAULT_MAX_REDIRECTS = 1000;
+    
+    private final ReentrantLock lock;
+    private final LockPolicy lockPolicy;
     private boolean allowsReentrantTransitions;
     private boolean inTransition = false;
+    private final TransitionInfoCache transitionInfos;
+    private volatile int maxRedirects = DEFAULT_MAX_REDIRECTS;
+    private volatile StateMachineMetrics metrics;
     
     /**
      * By default, we don't allow reentrant transitions. That means that if there
@@ -54,68 +72,221 @@ public class ReentrantStrategy implements StateMachineStrategy {
         this(false);
     }
     
+    /**
+     * Same as {@link #ReentrantStrategy()}, reusing the {@link TransitionInfo}
+     * as configured by <code>reuse</code>
+     */
+    public ReentrantStrategy(TransitionInfoCache.Mode reuse) {
+        this(false, reuse);
+    }
+    
+    /**
+     * Same as {@link #ReentrantStrategy()}, acquiring the lock as configured
+     * by <code>lockPolicy</code>
+     */
+    public ReentrantStrategy(LockPolicy lockPolicy) {
+        this(false, lockPolicy, TransitionInfoCache.Mode.NONE);
+    }
+    
     protected ReentrantStrategy(boolean allowsReentrant) {
+        this(allowsReentrant, TransitionInfoCache.Mode.NONE);
+    }
+    
+    protected ReentrantStrategy(boolean allowsReentrant, TransitionInfoCache.Mode reuse) {
+        this(allowsReentrant, LockPolicy.block(), reuse);
+    }
+    
+    protected ReentrantStrategy(boolean allowsReentrant, LockPolicy lockPolicy, TransitionInfoCache.Mode reuse) {
         this.allowsReentrantTransitions = allowsReentrant;
+        this.lockPolicy = lockPolicy;
+        this.lock = new ReentrantLock(lockPolicy.isFair());
+        this.transitionInfos = new TransitionInfoCache(reuse);
     }
     
+    public LockPolicy getLockPolicy() {
+        return lockPolicy;
+    }
+    
+    public int getMaxRedirects() {
+        return maxRedirects;
+    }
+    
+    /**
+     * Maximum number of consecutive redirections processed for a single event.
+     * Exceeding it throws a
+     * {@link shisha.statemachine.exceptions.RedirectLimitExceededException}, leaving the
+     * state machine in the state reached by the last transition. Useful for
+     * detecting redirection loops.
+     */
+    public void setMaxRedirects(int maxRedirects) {
+        if (maxRedirects < 0)
+            throw new IllegalArgumentException("The maximum number of redirects cannot be negative");
+        
+        this.maxRedirects = maxRedirects;
+    }
+    
+    public StateMachineMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Instrumentation notified of the lock waits and the duration of the
+     * transition phases, null for none
+     */
+    public void setMetrics(StateMachineMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Processes the event acquiring the lock as configured by the
+     * {@link LockPolicy}
+     * 
+     * @throws LockTimeoutException
+     *             if the policy does not block and the lock could not be
+     *             acquired in time
+     */
     public void processEvent(StateMachineImpl statemachine,
                              String event, Object object)
-            throws ReentrantTransitionNotAllowed, StateMachineDefinitionException
+            throws StateMachineExecutionException, StateMachineDefinitionException
     {
-        StateMachineDefinitionImpl stateMachineDefinition = (StateMachineDefinitionImpl) statemachine.getDefinition();
-        if (!stateMachineDefinition.isEvent(event))
-            throw new EventNotDefinedException("Event " + event + " not defined");
+        processEvent(statemachine, event, object, policyTimeoutNanos());
+    }
+    
+    public void processEvent(StateMachineImpl statemachine, int eventId, Object object)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        CompiledStateMachineDefinition stateMachineDefinition = CompiledStateMachineDefinition.of(statemachine
+                .getDefinition());
+        process(statemachine, stateMachineDefinition, Transitions.eventName(stateMachineDefinition, eventId),
+                eventId, object, policyTimeoutNanos());
+    }
+    
+    public void processEvent(StateMachineImpl statemachine, String event, Object object, long timeout, TimeUnit unit)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        processEvent(statemachine, event, object, Math.max(0, unit.toNanos(timeout)));
+    }
+    
+    /**
+     * @param timeoutNanos
+     *            negative for waiting as long as needed
+     */
+    private void processEvent(StateMachineImpl statemachine, String event, Object object, long timeoutNanos)
+            throws StateMachineExecutionException, StateMachineDefinitionException {
+        CompiledStateMachineDefinition stateMachineDefinition = CompiledStateMachineDefinition.of(statemachine
+                .getDefinition());
+        process(statemachine, stateMachineDefinition, event, Transitions.eventId(stateMachineDefinition, event),
+                object, timeoutNanos);
+    }
+    
+    private void process(StateMachineImpl statemachine, CompiledStateMachineDefinition stateMachineDefinition,
+            String event, int eventId, Object object, long timeoutNanos) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        StateMachineMetrics metrics = Transitions.enabled(this.metrics);
         
+        acquire(statemachine, event, timeoutNanos, metrics);
+        boolean entered = false;
         try {
-            // More fair approach when locking resources than
-            // the normal tryLock one
-            lock.tryLock(0, TimeUnit.SECONDS); 
-            
             if (!allowsReentrantTransitions) {
                 if (inTransition) {
                     throw new ReentrantTransitionNotAllowed("Reentrance from the same thread is not allowed");
                 } else {
                     inTransition = true;
+                    entered = true;
                 }    
             } 
         
-            String source = statemachine.getCurrentState();
-            String target = stateMachineDefinition.getTargetState(source, event);
-            TransitionInfo tEvent = new TransitionInfo(source, event, target, object);
-            
-            ExitStateController exitController = stateMachineDefinition.getExitStateController(source);
-            EnterStateController enterController = stateMachineDefinition.getEnterStateController(target);
-            TransitionController transitionController = stateMachineDefinition.getTransitionController(source, event);
-            
-            if (exitController != null) {
-                if (!exitController.execute(tEvent)) {
-                    l.debug("The controller cancelled the event propagation");
-                    return;
+            // Redirections returned by the enter phase are processed by the
+            // same call, with the lock already acquired
+            Transitions.process(statemachine, stateMachineDefinition, event, eventId, object, transitionInfos,
+                    maxRedirects, metrics);
+        } finally {
+            // A rejected reentrant call must not clear the flag of the
+            // transition in progress
+            if (entered)
+                inTransition = false;
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Processes the events with the lock acquired once, as configured by the
+     * {@link LockPolicy}. Redirections are processed as part of the event that
+     * caused them.
+     * 
+     * @throws LockTimeoutException
+     *             if the policy does not block and the lock could not be
+     *             acquired in time
+     */
+    public List<EventOutcome> processEvents(StateMachineImpl statemachine, Iterable<EventInfo> events,
+            boolean continueOnFailure) throws StateMachineExecutionException {
+        CompiledStateMachineDefinition stateMachineDefinition = CompiledStateMachineDefinition.of(statemachine
+                .getDefinition());
+        StateMachineMetrics metrics = Transitions.enabled(this.metrics);
+        
+        acquire(statemachine, null, policyTimeoutNanos(), metrics);
+        boolean entered = false;
+        try {
+            if (!allowsReentrantTransitions) {
+                if (inTransition) {
+                    throw new ReentrantTransitionNotAllowed("Reentrance from the same thread is not allowed");
+                } else {
+                    inTransition = true;
+                    entered = true;
                 }
-            } 
-            
-            if (transitionController != null) {
-                transitionController.execute(tEvent);
-            }
-            statemachine.setCurrentState(target);
-            EventInfo result = null;
-            if (enterController != null) {
-                result = enterController.execute(tEvent);
             }
             
-            if (result != null) {
-                l.debug("#processEvent: Redirecting forced by controller to event " + result.getEvent());
-                inTransition = false; 
-                
-                this.processEvent(statemachine, 
-                                  result.getEvent(), 
-                                  result.getObject());
-            }
-        } catch (InterruptedException ie) {
-            l.warn("#processEvent: interrupted exception might not happen");
+            return Transitions.processAll(statemachine, stateMachineDefinition, events, continueOnFailure,
+                    transitionInfos, maxRedirects, metrics);
         } finally {
-            inTransition = false;
+            if (entered)
+                inTransition = false;
             lock.unlock();
         }
     }
+    
+    /**
+     * Lock timeout of the policy, negative for waiting as long as needed
+     */
+    private long policyTimeoutNanos() {
+        switch (lockPolicy.getMode()) {
+        case BLOCK:
+            return -1;
+        case TRY_ONCE:
+            return 0;
+        default:
+            return lockPolicy.getTimeout(TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    /**
+     * @param event
+     *            the event waiting for the lock, null for a batch
+     */
+    private void acquire(StateMachineImpl statemachine, String event, long timeoutNanos,
+            StateMachineMetrics metrics) throws StateMachineExecutionException {
+        if (metrics != null && !lockPolicy.isFair() && lock.tryLock()) {
+            // Not contended, no need to read the clock
+            metrics.onLockAcquired(statemachine, 0);
+            return;
+        }
+        
+        long started = metrics == null ? 0 : System.nanoTime();
+        if (timeoutNanos < 0) {
+            lock.lock();
+        } else {
+            try {
+                // tryLock with a timeout, even 0, honours the fairness of the lock
+                if (!lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS))
+                    throw new LockTimeoutException((event == null ? "Batch" : "Event " + event)
+                            + " rejected, the state machine lock could not be acquired in "
+                            + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StateMachineExecutionException("Interrupted while waiting for the lock to process "
+                        + (event == null ? "a batch" : "event " + event), e);
+            }
+        }
+        
+        if (metrics != null)
+            metrics.onLockAcquired(statemachine, System.nanoTime() - started);
+    }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.CompiledTransition;
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.EventOutcome;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineMetrics;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.TransitionInfoCache;
+import shisha.statemachine.TransitionListener;
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.RedirectLimitExceededException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+/**
+ * The transition itself, shared by the strategies: the three phases of the
+ * transition for an event and the redirections returned by the enter phase.
+ * It does not synchronize anything, every strategy guarantees in its own way
+ * that only one thread runs it for a given state machine.
+ */
+final class Transitions {
+    private static Logger l = LoggerFactory.getLogger(Transitions.class);
+
+    private Transitions() {
+    }
+
+    /**
+     * Returns the ordinal of the event
+     * 
+     * @throws EventNotDefinedException
+     *             if the event has not been defined
+     */
+    static int eventId(CompiledStateMachineDefinition definition, String event) throws EventNotDefinedException {
+        int eventId = definition.getEventId(event);
+        if (eventId < 0)
+            throw new EventNotDefinedException("Event " + event + " not defined");
+
+        return eventId;
+    }
+
+    /**
+     * Returns the name of the event with ordinal <code>eventId</code>
+     * 
+     * @throws EventNotDefinedException
+     *             if there is no such event
+     */
+    static String eventName(CompiledStateMachineDefinition definition, int eventId) throws EventNotDefinedException {
+        if (eventId < 0 || eventId >= definition.getEventCount())
+            throw new EventNotDefinedException("Event ordinal " + eventId + " not defined");
+
+        return definition.getEventName(eventId);
+    }
+
+    /**
+     * The metrics if they are enabled for the next event, null otherwise
+     */
+    static StateMachineMetrics enabled(StateMachineMetrics metrics) {
+        return metrics != null && metrics.isEnabled() ? metrics : null;
+    }
+
+    /**
+     * Processes the event and its redirections, returning false if an exit
+     * controller cancelled the transition
+     * 
+     * @param metrics
+     *            notified of the duration of the phases, null for not timing
+     *            them
+     */
+    static boolean process(StateMachineImpl statemachine, CompiledStateMachineDefinition definition, String event,
+            int eventId, Object object, TransitionInfoCache transitionInfos, int maxRedirects,
+            StateMachineMetrics metrics) throws StateMachineExecutionException, StateMachineDefinitionException {
+        TransitionInfo tEvent = null;
+        try {
+            int redirects = 0;
+            while (true) {
+                int sourceId = statemachine.getCurrentStateId();
+                if (sourceId < 0)
+                    throw new StateNotDefinedException("State " + statemachine.getCurrentState() + " does not exist");
+
+                // One table access resolves the target and the controllers of the
+                // three phases
+                CompiledTransition transition = definition.getTransition(sourceId, eventId);
+                if (transition == null)
+                    throw new TransitionNotDefinedException("Transition from state " + statemachine.getCurrentState()
+                            + " with event " + event + " not defined");
+
+                tEvent = transitionInfos.acquire(transition.getSource(), event, transition.getTarget(), object);
+
+                ExitStateController exitController = transition.getExitStateController();
+                EnterStateController enterController = transition.getEnterStateController();
+                TransitionController transitionController = transition.getTransitionController();
+                // Every phase starts when the previous one ends, so timing
+                // them takes one clock read per phase
+                long mark = metrics == null ? 0 : System.nanoTime();
+
+                long exitNanos = -1;
+                if (exitController != null) {
+                    boolean proceed = exitController.execute(tEvent);
+                    if (metrics != null) {
+                        long now = System.nanoTime();
+                        exitNanos = now - mark;
+                        mark = now;
+                    }
+                    if (!proceed) {
+                        l.debug("The controller cancelled the event propagation");
+                        if (metrics != null)
+                            metrics.onCancelled(statemachine, transition, exitNanos);
+                        return false;
+                    }
+                }
+
+                if (transitionController != null) {
+                    transitionController.execute(tEvent);
+                }
+                statemachine.setCurrentState(transition.getTarget(), transition.getTargetId());
+                TransitionListener listener = statemachine.getTransitionListener();
+                if (listener != null)
+                    listener.onTransition(statemachine, transition, statemachine.getSequence());
+                long transitionNanos = 0;
+                if (metrics != null) {
+                    long now = System.nanoTime();
+                    transitionNanos = now - mark;
+                    mark = now;
+                }
+
+                EventInfo result = null;
+                long enterNanos = -1;
+                if (enterController != null) {
+                    result = enterController.execute(tEvent);
+                    if (metrics != null)
+                        enterNanos = System.nanoTime() - mark;
+                }
+                if (metrics != null)
+                    metrics.onTransition(statemachine, transition, exitNanos, transitionNanos, enterNanos);
+                transitionInfos.release(tEvent);
+                tEvent = null;
+
+                if (result == null)
+                    return true;
+
+                if (++redirects > maxRedirects)
+                    throw new RedirectLimitExceededException("Redirect chain longer than " + maxRedirects
+                            + " events. Last redirection to event " + result.getEvent() + " from state "
+                            + transition.getTarget());
+
+                if (l.isDebugEnabled())
+                    l.debug("#process: Redirecting forced by controller to event " + result.getEvent());
+
+                event = result.getEvent();
+                object = result.getObject();
+                eventId = eventId(definition, event);
+            }
+        } finally {
+            transitionInfos.release(tEvent);
+        }
+    }
+
+    /**
+     * Processes the events in order, reporting the outcome of each one
+     * instead of throwing. The definition is resolved once for the batch.
+     */
+    static List<EventOutcome> processAll(StateMachineImpl statemachine, CompiledStateMachineDefinition definition,
+            Iterable<EventInfo> events, boolean continueOnFailure, TransitionInfoCache transitionInfos,
+            int maxRedirects, StateMachineMetrics metrics) {
+        List<EventOutcome> outcomes = new ArrayList<EventOutcome>();
+        boolean failed = false;
+        for (EventInfo event : events) {
+            EventOutcome outcome;
+            if (failed) {
+                outcome = new EventOutcome(event, EventOutcome.Status.SKIPPED, null);
+            } else {
+                try {
+                    boolean applied = process(statemachine, definition, event.getEvent(),
+                            eventId(definition, event.getEvent()), event.getObject(), transitionInfos, maxRedirects, metrics);
+                    outcome = new EventOutcome(event, applied ? EventOutcome.Status.APPLIED
+                            : EventOutcome.Status.CANCELLED, null);
+                } catch (StateMachineException e) {
+                    outcome = EventOutcome.failed(event, e);
+                } catch (RuntimeException e) {
+                    l.warn("#processAll: unexpected exception processing event " + event.getEvent(), e);
+                    outcome = EventOutcome.failed(event, e);
+                }
+                failed = outcome.isFailure() && !continueOnFailure;
+            }
+            outcomes.add(outcome);
+        }
+        return outcomes;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+/**
+ * {@link ActorStrategy} running on virtual threads, meant for controllers that
+ * call blocking services. While a controller waits, only its virtual thread
+ * is parked: thousands of state machines waiting on I/O hold neither platform
+ * threads nor locks.
+ *
+ * <p>
+ * All the instances share a scheduler created the first time it is needed and
+ * never shut down. Use {@link ActorScheduler#newVirtualThreadScheduler()} with
+ * {@link ActorStrategy} for a scheduler with its own lifecycle. On runtimes
+ * without virtual threads, see {@link VirtualThreads}.
+ */
+public class VirtualThreadStrategy extends ActorStrategy {
+    private static class SharedScheduler {
+        private static final ActorScheduler INSTANCE = ActorScheduler.newVirtualThreadScheduler();
+    }
+
+    public VirtualThreadStrategy() {
+        super(SharedScheduler.INSTANCE);
+    }
+}
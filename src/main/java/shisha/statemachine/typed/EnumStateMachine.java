@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.typed;
+
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineStrategy;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+
+/**
+ * State machine of an {@link EnumStateMachineDefinition}. Events are
+ * dispatched by ordinal, see
+ * {@link StateMachineImpl#processEvent(int, Object)}, and the current state
+ * is the enum constant of the current state ordinal.
+ *
+ * <p>
+ * It is a {@link StateMachineImpl}, so the String API is still available,
+ * for instance to share code with untyped state machines.
+ */
+public class EnumStateMachine<S extends Enum<S>, E extends Enum<E>> extends StateMachineImpl {
+    private final EnumStateMachineDefinition<S, E> enumDefinition;
+
+    public EnumStateMachine(EnumStateMachineDefinition<S, E> definition, StateMachineStrategy strategy)
+            throws StateMachineDefinitionException {
+        super(definition.getDefinition(), strategy);
+        this.enumDefinition = definition;
+    }
+
+    public EnumStateMachineDefinition<S, E> getEnumDefinition() {
+        return enumDefinition;
+    }
+
+    public void processEvent(E event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        processEvent(event.ordinal(), object);
+    }
+
+    public S getState() {
+        return enumDefinition.state(getCurrentStateId());
+    }
+}
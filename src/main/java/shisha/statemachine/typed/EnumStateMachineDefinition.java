@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.typed;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.CompiledTransition;
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachineDefinition;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+/**
+ * Definition of a state machine whose states and events are enums, so typos
+ * are compile errors instead of a
+ * {@link shisha.statemachine.exceptions.StateNotDefinedException} at run
+ * time.
+ *
+ * <p>
+ * Every enum constant is defined, in declaration order, so the ordinal of a
+ * constant is its ordinal in the {@link CompiledStateMachineDefinition} and
+ * dispatching an event is a single access to the transition table:
+ * <code>table[state.ordinal() * events + event.ordinal()]</code>. No name is
+ * hashed nor compared.
+ *
+ * <p>
+ * {@link #getDefinition()} is the same definition seen with the names of the
+ * constants, for the String API: controllers receive them in the
+ * {@link shisha.statemachine.TransitionInfo}, and enter state controllers
+ * redirect to an event by its name.
+ */
+public class EnumStateMachineDefinition<S extends Enum<S>, E extends Enum<E>> {
+    private final Class<S> stateType;
+    private final Class<E> eventType;
+    private final S[] states;
+    private final E[] events;
+    private final S startState;
+    private final Set<S> finalStates;
+    private final StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+
+    public EnumStateMachineDefinition(Class<S> stateType, Class<E> eventType, S startState)
+            throws StateMachineDefinitionException {
+        this(stateType, eventType, startState, EnumSet.noneOf(stateType));
+    }
+
+    public EnumStateMachineDefinition(Class<S> stateType, Class<E> eventType, S startState, Set<S> finalStates)
+            throws StateMachineDefinitionException {
+        this.stateType = stateType;
+        this.eventType = eventType;
+        this.states = stateType.getEnumConstants();
+        this.events = eventType.getEnumConstants();
+        this.startState = startState;
+        this.finalStates = Collections.unmodifiableSet(finalStates.isEmpty() ? EnumSet.noneOf(stateType) : EnumSet
+                .copyOf(finalStates));
+
+        for (S state : states)
+            definition.defineState(state.name(), state == startState, this.finalStates.contains(state));
+        for (E event : events)
+            definition.defineEvent(event.name());
+    }
+
+    public Class<S> getStateType() {
+        return stateType;
+    }
+
+    public Class<E> getEventType() {
+        return eventType;
+    }
+
+    public void defineTransition(S source, E event, S target) throws StateMachineDefinitionException {
+        defineTransition(source, event, target, null);
+    }
+
+    public void defineTransition(S source, E event, S target, TransitionController controller)
+            throws StateMachineDefinitionException {
+        definition.defineTransition(source.name(), event.name(), target.name(), controller);
+    }
+
+    public void defineExitState(S state, ExitStateController controller) throws StateMachineDefinitionException {
+        definition.defineExitState(state.name(), controller);
+    }
+
+    public void defineEnterState(S state, EnterStateController controller) throws StateMachineDefinitionException {
+        definition.defineEnterState(state.name(), controller);
+    }
+
+    public S getStartState() {
+        return startState;
+    }
+
+    public Set<S> getFinalStates() {
+        return finalStates;
+    }
+
+    /**
+     * The events with a transition from <code>state</code>
+     */
+    public Set<E> getApplicableEvents(S state) {
+        CompiledStateMachineDefinition compiled = compile();
+        EnumSet<E> applicable = EnumSet.noneOf(eventType);
+        for (E event : events) {
+            if (compiled.getTransition(state.ordinal(), event.ordinal()) != null)
+                applicable.add(event);
+        }
+        return applicable;
+    }
+
+    public S getTargetState(S source, E event) throws TransitionNotDefinedException {
+        CompiledTransition transition = compile().getTransition(source.ordinal(), event.ordinal());
+        if (transition == null)
+            throw new TransitionNotDefinedException("Transition from state " + source + " with event " + event
+                    + " not defined");
+
+        return states[transition.getTargetId()];
+    }
+
+    /**
+     * The same definition with the names of the constants as states and
+     * events. Transitions defined later on through this class are seen by it.
+     */
+    public StateMachineDefinition getDefinition() {
+        return definition;
+    }
+
+    /**
+     * The transition table of the definition as it is now, see
+     * {@link StateMachineDefinitionImpl#compile()}
+     */
+    public CompiledStateMachineDefinition compile() {
+        return definition.compile();
+    }
+
+    /**
+     * Finishes the definition, see {@link StateMachineDefinitionImpl#freeze()}
+     */
+    public CompiledStateMachineDefinition freeze() {
+        return definition.freeze();
+    }
+
+    S state(int stateId) {
+        return states[stateId];
+    }
+}
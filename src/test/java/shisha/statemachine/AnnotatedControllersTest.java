@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+
+import org.testng.annotations.Test;
+
+public class AnnotatedControllersTest {
+    private static final TransitionInfo INFO = new TransitionInfo("A", "E", "B", null);
+
+    public static class Callee {
+        private int calls;
+
+        public EventInfo transitionReturningEventInfo(TransitionInfo info) {
+            calls++;
+            return new EventInfo("IGNORED", null);
+        }
+
+        public void voidPhase(TransitionInfo info) {
+            calls++;
+        }
+
+        public Boolean exitReturningNull(TransitionInfo info) {
+            calls++;
+            return null;
+        }
+
+        public Boolean exitReturningFalse(TransitionInfo info) {
+            calls++;
+            return false;
+        }
+
+        public EventInfo enterRedirecting(TransitionInfo info) {
+            calls++;
+            return new EventInfo("REDIRECT", info.getObject());
+        }
+
+        public void failingPhase(TransitionInfo info) throws Exception {
+            calls++;
+            throw new Exception("Controller failure");
+        }
+
+        public void errorPhase(TransitionInfo info) {
+            calls++;
+            throw new AssertionError("Controller error");
+        }
+
+        public static void staticPhase(TransitionInfo info) {
+            info.getTransitionContext().put("static", true);
+        }
+    }
+
+    // Not visible for the metafactory, it forces the method handle fallback
+    static class HiddenCallee {
+        private int calls;
+
+        public void voidPhase(TransitionInfo info) {
+            calls++;
+        }
+    }
+
+    @Test
+    public void testTransitionIgnoresTheReturnedValue() throws Exception {
+        Callee callee = new Callee();
+        AnnotatedControllers.transitionController(Callee.class.getMethod("transitionReturningEventInfo",
+                TransitionInfo.class), callee).execute(INFO);
+
+        assertEquals(callee.calls, 1);
+    }
+
+    @Test
+    public void testVoidExitStateContinuesTheTransition() throws Exception {
+        Callee callee = new Callee();
+        ExitStateController controller = AnnotatedControllers.exitStateController(
+                Callee.class.getMethod("voidPhase", TransitionInfo.class), callee);
+
+        assertTrue(controller.execute(INFO));
+        assertEquals(callee.calls, 1);
+    }
+
+    @Test
+    public void testExitStateReturningNullContinuesTheTransition() throws Exception {
+        ExitStateController controller = AnnotatedControllers.exitStateController(
+                Callee.class.getMethod("exitReturningNull", TransitionInfo.class), new Callee());
+
+        assertTrue(controller.execute(INFO));
+    }
+
+    @Test
+    public void testExitStateCancelsTheTransition() throws Exception {
+        ExitStateController controller = AnnotatedControllers.exitStateController(
+                Callee.class.getMethod("exitReturningFalse", TransitionInfo.class), new Callee());
+
+        assertEquals(controller.execute(INFO), Boolean.FALSE);
+    }
+
+    @Test
+    public void testEnterStateRedirects() throws Exception {
+        EnterStateController controller = AnnotatedControllers.enterStateController(
+                Callee.class.getMethod("enterRedirecting", TransitionInfo.class), new Callee());
+
+        assertEquals(controller.execute(INFO).getEvent(), "REDIRECT");
+    }
+
+    @Test
+    public void testVoidEnterStateDoesNotRedirect() throws Exception {
+        Callee callee = new Callee();
+        EnterStateController controller = AnnotatedControllers.enterStateController(
+                Callee.class.getMethod("voidPhase", TransitionInfo.class), callee);
+
+        assertNull(controller.execute(INFO));
+        assertEquals(callee.calls, 1);
+    }
+
+    @Test
+    public void testExceptionsAreSwallowed() throws Exception {
+        Callee callee = new Callee();
+        AnnotatedControllers.transitionController(Callee.class.getMethod("failingPhase", TransitionInfo.class),
+                callee).execute(INFO);
+
+        assertEquals(callee.calls, 1);
+    }
+
+    @Test
+    public void testErrorsAreSwallowed() throws Exception {
+        Callee callee = new Callee();
+        Method method = Callee.class.getMethod("errorPhase", TransitionInfo.class);
+        AnnotatedControllers.transitionController(method, callee).execute(INFO);
+
+        assertNull(AnnotatedControllers.exitStateController(method, callee).execute(INFO));
+        assertNull(AnnotatedControllers.enterStateController(method, callee).execute(INFO));
+        assertEquals(callee.calls, 3);
+    }
+
+    @Test
+    public void testSameMethodBoundToSeveralPhases() throws Exception {
+        Callee callee = new Callee();
+        Method exit = Callee.class.getMethod("exitReturningFalse", TransitionInfo.class);
+        Method enter = Callee.class.getMethod("enterRedirecting", TransitionInfo.class);
+        AnnotatedControllers.transitionController(exit, callee).execute(INFO);
+        AnnotatedControllers.transitionController(enter, callee).execute(INFO);
+
+        assertEquals(AnnotatedControllers.exitStateController(exit, callee).execute(INFO), Boolean.FALSE);
+        assertEquals(AnnotatedControllers.enterStateController(enter, callee).execute(INFO).getEvent(), "REDIRECT");
+        assertEquals(callee.calls, 4);
+    }
+
+    @Test
+    public void testStaticMethodsCanBeBound() throws Exception {
+        TransitionInfo info = new TransitionInfo("A", "E", "B", null);
+        AnnotatedControllers.transitionController(Callee.class.getMethod("staticPhase", TransitionInfo.class),
+                new Callee()).execute(info);
+
+        assertEquals(info.getTransitionContext().get("static"), true);
+    }
+
+    @Test
+    public void testNonPublicClassesAreBoundWithAMethodHandle() throws Exception {
+        HiddenCallee callee = new HiddenCallee();
+        TransitionController controller = AnnotatedControllers.transitionController(
+                HiddenCallee.class.getMethod("voidPhase", TransitionInfo.class), callee);
+        controller.execute(INFO);
+        controller.execute(INFO);
+
+        assertEquals(callee.calls, 2);
+    }
+
+    @Test
+    public void testEachInstanceGetsItsOwnBinding() throws Exception {
+        Callee first = new Callee();
+        Callee second = new Callee();
+        AnnotatedControllers.transitionController(Callee.class.getMethod("voidPhase", TransitionInfo.class), first)
+                .execute(INFO);
+        AnnotatedControllers.transitionController(Callee.class.getMethod("voidPhase", TransitionInfo.class), second)
+                .execute(INFO);
+
+        assertEquals(first.calls, 1);
+        assertEquals(second.calls, 1);
+    }
+}
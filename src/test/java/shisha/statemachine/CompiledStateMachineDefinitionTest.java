@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+
+import org.mockito.Matchers;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class CompiledStateMachineDefinitionTest {
+    public static String STATE_A = "STATE_A";
+    public static String STATE_B = "STATE_B";
+    public static String STATE_C = "STATE_C";
+
+    public static String EVENT_AB = "EVENT_AB";
+    public static String EVENT_BC = "EVENT_BC";
+    public static String EVENT_BA = "EVENT_BA";
+
+    private StateMachineDefinitionImpl definition;
+    private TransitionController transitionController;
+    private ExitStateController exitController;
+    private EnterStateController enterController;
+
+    @BeforeMethod
+    public void beforeAnyMethod() throws StateMachineDefinitionException {
+        transitionController = mock(TransitionController.class);
+        exitController = mock(ExitStateController.class);
+        enterController = mock(EnterStateController.class);
+
+        definition = new StateMachineDefinitionImpl();
+        definition.defineEvent(EVENT_AB);
+        definition.defineEvent(EVENT_BC);
+        definition.defineEvent(EVENT_BA);
+
+        definition.defineState(STATE_A, true, false);
+        definition.defineState(STATE_B);
+        definition.defineState(STATE_C, false, true);
+
+        definition.defineTransition(STATE_A, EVENT_AB, STATE_B, transitionController);
+        definition.defineTransition(STATE_B, EVENT_BC, STATE_C, null);
+        definition.defineTransition(STATE_B, EVENT_BA, STATE_A, null);
+        definition.defineExitState(STATE_A, exitController);
+        definition.defineEnterState(STATE_B, enterController);
+    }
+
+    @Test
+    public void testOrdinalsFollowDefinitionOrder() {
+        CompiledStateMachineDefinition compiled = definition.compile();
+
+        assertEquals(compiled.getStateCount(), 3);
+        assertEquals(compiled.getEventCount(), 3);
+        assertEquals(compiled.getStateId(STATE_A), 0);
+        assertEquals(compiled.getStateId(STATE_C), 2);
+        assertEquals(compiled.getEventId(EVENT_BA), 2);
+        assertEquals(compiled.getStateId("DOHH"), -1);
+        assertEquals(compiled.getEventId("DOHH"), -1);
+        assertEquals(compiled.getStateName(1), STATE_B);
+        assertEquals(compiled.getEventName(1), EVENT_BC);
+    }
+
+    @Test
+    public void testTransitionIsResolvedWithAllItsControllers() {
+        CompiledStateMachineDefinition compiled = definition.compile();
+        CompiledTransition transition = compiled.getTransition(compiled.getStateId(STATE_A),
+                compiled.getEventId(EVENT_AB));
+
+        assertEquals(transition.getSource(), STATE_A);
+        assertEquals(transition.getEvent(), EVENT_AB);
+        assertEquals(transition.getTarget(), STATE_B);
+        assertEquals(transition.getTargetId(), compiled.getStateId(STATE_B));
+        assertSame(transition.getExitStateController(), exitController);
+        assertSame(transition.getTransitionController(), transitionController);
+        assertSame(transition.getEnterStateController(), enterController);
+
+        assertNull(compiled.getTransition(compiled.getStateId(STATE_A), compiled.getEventId(EVENT_BC)));
+    }
+
+    @Test
+    public void testCompiledDefinitionAnswersLikeTheOriginal() throws StateMachineException {
+        CompiledStateMachineDefinition compiled = definition.compile();
+
+        assertEquals(compiled.getStartState(), definition.getStartState());
+        assertEquals(compiled.getFinalStates(), definition.getFinalStates());
+        assertEquals(compiled.getEvents(), definition.getEvents());
+        assertEquals(compiled.getStates().size(), definition.getStates().size());
+        assertEquals(compiled.getTargetState(STATE_B, EVENT_BA), definition.getTargetState(STATE_B, EVENT_BA));
+        assertEquals(compiled.getApplicableEvents(STATE_B).size(), 2);
+        assertTrue(compiled.isStartState(STATE_A));
+        assertTrue(compiled.isFinalState(STATE_C));
+        assertFalse(compiled.isFinalState(null));
+    }
+
+    @Test(expectedExceptions = TransitionNotDefinedException.class)
+    public void testTargetStateOfNonDefinedTransition() throws StateMachineException {
+        definition.compile().getTargetState(STATE_A, EVENT_BC);
+    }
+
+    @Test(expectedExceptions = StateNotDefinedException.class)
+    public void testTargetStateOfNonDefinedState() throws StateMachineException {
+        definition.compile().getTargetState("DOHH", EVENT_AB);
+    }
+
+    @Test
+    public void testCompiledDefinitionIsCachedUntilTheDefinitionChanges() throws StateMachineException {
+        CompiledStateMachineDefinition compiled = definition.compile();
+        assertSame(definition.compile(), compiled);
+
+        definition.defineTransition(STATE_C, EVENT_BC, STATE_C, null);
+
+        assertNotSame(definition.compile(), compiled);
+        assertNull(compiled.getTransition(compiled.getStateId(STATE_C), compiled.getEventId(EVENT_BC)));
+    }
+
+    @Test
+    public void testFrozenDefinitionCannotChange() throws StateMachineException {
+        CompiledStateMachineDefinition frozen = definition.freeze();
+        assertTrue(definition.isFrozen());
+        assertSame(definition.compile(), frozen);
+
+        try {
+            definition.defineTransition(STATE_C, EVENT_BC, STATE_C, null);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        try {
+            definition.defineEvent("OTHER");
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        try {
+            definition.defineState("OTHER");
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertSame(definition.compile(), frozen);
+        assertFalse(definition.isState("OTHER"));
+    }
+
+    @Test
+    public void testQueriesAreComputedOnce() throws StateMachineException {
+        CompiledStateMachineDefinition compiled = definition.freeze();
+
+        assertEquals(compiled.getStates(), Arrays.asList(STATE_A, STATE_B, STATE_C));
+        assertSame(compiled.getStates(), compiled.getStates());
+        assertSame(compiled.getFinalStates(), compiled.getFinalStates());
+        assertEquals(compiled.getApplicableEvents(STATE_B), Arrays.asList(EVENT_BC, EVENT_BA));
+        assertSame(compiled.getApplicableEvents(STATE_B), compiled.getApplicableEvents(STATE_B));
+        assertTrue(compiled.getApplicableEvents("DOHH").isEmpty());
+
+        try {
+            compiled.getStates().add("OTHER");
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void testStateMachineRunsOnTheCompiledDefinition() throws StateMachineException {
+        StateMachine sm = StateMachines.newNonReentrant(definition.compile());
+        when(exitController.execute(Matchers.any(TransitionInfo.class))).thenReturn(true);
+
+        sm.processEvent(EVENT_AB, null);
+        sm.processEvent(EVENT_BA, null);
+        sm.processEvent(EVENT_AB, null);
+        sm.processEvent(EVENT_BC, null);
+
+        assertEquals(sm.getCurrentState(), STATE_C);
+        verify(transitionController, times(2)).execute(Matchers.any(TransitionInfo.class));
+        verify(enterController, times(2)).execute(Matchers.any(TransitionInfo.class));
+    }
+}
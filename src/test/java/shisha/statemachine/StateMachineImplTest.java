@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.MailboxStrategy;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+public class StateMachineImplTest {
+    private static final String NEXT = "NEXT";
+
+    private StateMachineDefinitionImpl ring(int states) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        for (int i = 1; i < states; i++)
+            definition.defineState("S" + i);
+
+        definition.defineEvent(NEXT);
+        for (int i = 0; i < states; i++)
+            definition.defineTransition("S" + i, NEXT, "S" + ((i + 1) % states), null);
+
+        return definition;
+    }
+
+    @Test
+    public void testSnapshotCountsTheTransitions() throws StateMachineException {
+        StateMachineImpl sm = new StateMachineImpl(ring(3), new NonReentrantStrategy());
+        StateSnapshot snapshot = sm.getStateSnapshot();
+        assertEquals(snapshot.getState(), "S0");
+        assertEquals(snapshot.getStateId(), 0);
+        assertEquals(snapshot.getSequence(), 0);
+
+        for (int i = 0; i < 4; i++)
+            sm.processEvent(NEXT, null);
+
+        snapshot = sm.getStateSnapshot();
+        assertEquals(snapshot.getState(), "S1");
+        assertEquals(snapshot.getStateId(), 1);
+        assertEquals(snapshot.getSequence(), 4);
+    }
+
+    @Test
+    public void testUnknownStatesKeepTheirName() throws StateMachineException {
+        StateMachineImpl sm = new StateMachineImpl(ring(3), new NonReentrantStrategy());
+        sm.setCurrentState("UNKNOWN");
+
+        StateSnapshot snapshot = sm.getStateSnapshot();
+        assertEquals(snapshot.getState(), "UNKNOWN");
+        assertEquals(snapshot.getStateId(), -1);
+        assertEquals(snapshot.getSequence(), 1);
+    }
+
+    @Test
+    public void testCompareAndSetChecksTheCurrentState() throws StateMachineException {
+        StateMachineImpl sm = new StateMachineImpl(ring(3), new NonReentrantStrategy());
+        assertFalse(sm.compareAndSetCurrentState(1, 2));
+        assertTrue(sm.compareAndSetCurrentState(0, 2));
+        assertEquals(sm.getCurrentState(), "S2");
+        assertEquals(sm.getStateSnapshot().getSequence(), 1);
+    }
+
+    @Test
+    public void testReadersSeeConsistentSnapshots() throws Exception {
+        final int states = 5;
+        final StateMachineImpl sm = new StateMachineImpl(ring(states), new NonReentrantStrategy());
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean consistent = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Thread reader = new Thread() {
+            public void run() {
+                long last = 0;
+                started.countDown();
+                while (!done.get()) {
+                    StateSnapshot snapshot = sm.getStateSnapshot();
+                    // Every transition moves one state forward in the ring
+                    if (snapshot.getSequence() < last || snapshot.getStateId() != snapshot.getSequence() % states
+                            || !snapshot.getState().equals("S" + snapshot.getStateId()))
+                        consistent.set(false);
+                    last = snapshot.getSequence();
+                }
+            }
+        };
+        reader.start();
+        started.await();
+
+        for (int i = 0; i < 200000; i++)
+            sm.processEvent(NEXT, null);
+
+        done.set(true);
+        reader.join();
+        assertTrue(consistent.get());
+    }
+
+    @Test
+    public void testProcessEventByHandle() throws StateMachineException {
+        StateMachineDefinitionImpl definition = ring(3);
+        EventRef next = definition.event(NEXT);
+        StateRef s2 = definition.state("S2");
+        assertEquals(next.getId(), 0);
+        assertEquals(s2.getId(), 2);
+
+        StateMachine sm = new StateMachineImpl(definition, new NonReentrantStrategy());
+        sm.processEvent(next, null);
+        sm.processEvent(next, null);
+        assertTrue(sm.isInState(s2));
+        assertEquals(sm.getStateSnapshot().getSequence(), 2);
+
+        // Handles survive changes to the definition
+        definition.defineEvent("OTHER");
+        sm.processEvent(next, null);
+        assertTrue(sm.isInState(definition.state("S0")));
+        assertFalse(sm.isInState(s2));
+    }
+
+    @Test
+    public void testHandlesWithStringStrategies() throws Exception {
+        StateMachineDefinitionImpl definition = ring(3);
+        StateMachine sm = new StateMachineImpl(definition, new MailboxStrategy(new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }));
+        sm.processEvent(definition.event(NEXT), null);
+        assertEquals(sm.getCurrentState(), "S1");
+    }
+
+    @Test
+    public void testHandlesOfOtherDefinitions() throws StateMachineException {
+        StateMachineDefinitionImpl other = new StateMachineDefinitionImpl();
+        other.defineState("S0", true, false);
+        other.defineEvent("PREVIOUS");
+
+        StateMachine sm = new StateMachineImpl(ring(3), new NonReentrantStrategy());
+        try {
+            sm.processEvent(other.event("PREVIOUS"), null);
+            fail();
+        } catch (EventNotDefinedException e) {
+        }
+        // Same ordinal and name, so it is the same state
+        assertTrue(sm.isInState(other.state("S0")));
+        assertEquals(sm.getStateSnapshot().getSequence(), 0);
+
+        try {
+            ring(3).event("PREVIOUS");
+            fail();
+        } catch (EventNotDefinedException e) {
+        }
+    }
+}
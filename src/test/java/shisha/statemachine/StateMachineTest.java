@@ -0,0 +1,213 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * The default methods of {@link StateMachine}, for implementations that only
+ * provide the original ones
+ */
+public class StateMachineTest {
+    private static final String NEXT = "NEXT";
+    private static final String UNUSED = "UNUSED";
+
+    private static StateMachine ring(int states) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        for (int i = 1; i < states; i++)
+            definition.defineState("S" + i);
+
+        definition.defineEvent(NEXT);
+        definition.defineEvent(UNUSED);
+        for (int i = 0; i < states; i++)
+            definition.defineTransition("S" + i, NEXT, "S" + ((i + 1) % states), null);
+
+        return new Delegating(new StateMachineImpl(definition, new NonReentrantStrategy()));
+    }
+
+    @Test
+    public void testHandlesResolvedByName() throws Exception {
+        StateMachine sm = ring(3);
+        EventRef next = sm.getDefinition().event(NEXT);
+        StateRef s1 = sm.getDefinition().state("S1");
+        assertEquals(next.getId(), -1);
+        assertEquals(s1.getId(), -1);
+
+        sm.processEvent(next, null);
+        assertTrue(sm.isInState(s1));
+
+        // State machines with ordinals fall back to the names too
+        StateMachineImpl impl = new StateMachineImpl(((DelegatingDefinition) sm.getDefinition()).definition,
+                new NonReentrantStrategy());
+        impl.processEvent(next, null);
+        assertTrue(impl.isInState(s1));
+        assertFalse(impl.isInState(sm.getDefinition().state("S0")));
+    }
+
+    @Test(expectedExceptions = EventNotDefinedException.class)
+    public void testUnknownEventsHaveNoHandle() throws Exception {
+        ring(3).getDefinition().event("PREVIOUS");
+    }
+
+    @Test
+    public void testProcessEventAsyncCompletesImmediately() throws Exception {
+        StateMachine sm = ring(3);
+
+        CompletableFuture<String> result = sm.processEventAsync(NEXT, null);
+        assertTrue(result.isDone());
+        assertEquals(result.get(), "S1");
+
+        try {
+            sm.processEventAsync(UNUSED, null).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransitionNotDefinedException, e.getCause().toString());
+        }
+    }
+
+    @Test
+    public void testTimedProcessEventIgnoresTheTimeout() throws Exception {
+        StateMachine sm = ring(3);
+        sm.processEvent(NEXT, null, 1, TimeUnit.NANOSECONDS);
+        assertEquals(sm.getCurrentState(), "S1");
+    }
+
+    @Test
+    public void testSnapshotWithoutSequence() throws Exception {
+        StateMachine sm = ring(3);
+        sm.processEvent(NEXT, null);
+
+        StateSnapshot snapshot = sm.getStateSnapshot();
+        assertEquals(snapshot.getState(), "S1");
+        assertEquals(snapshot.getStateId(), -1);
+        assertEquals(snapshot.getSequence(), -1);
+    }
+
+    @Test
+    public void testBatchesAreProcessedOneByOne() throws Exception {
+        StateMachine sm = ring(3);
+
+        List<EventOutcome> outcomes = sm.processEvents(Arrays.asList(new EventInfo(NEXT, null), new EventInfo(
+                UNUSED, null), new EventInfo(NEXT, null)));
+        assertEquals(outcomes.size(), 3);
+        assertEquals(outcomes.get(0).getStatus(), EventOutcome.Status.APPLIED);
+        assertTrue(outcomes.get(1).isFailure());
+        assertEquals(outcomes.get(2).getStatus(), EventOutcome.Status.SKIPPED);
+        assertEquals(sm.getCurrentState(), "S1");
+
+        outcomes = sm.processEvents(Arrays.asList(new EventInfo(UNUSED, null), new EventInfo(NEXT, null)), true);
+        assertTrue(outcomes.get(0).isFailure());
+        assertEquals(outcomes.get(1).getStatus(), EventOutcome.Status.APPLIED);
+        assertEquals(sm.getCurrentState(), "S2");
+    }
+
+    /**
+     * Only implements the abstract methods
+     */
+    private static class Delegating implements StateMachine {
+        private final StateMachine statemachine;
+
+        private final StateMachineDefinition definition;
+
+        Delegating(StateMachine statemachine) {
+            this.statemachine = statemachine;
+            this.definition = new DelegatingDefinition(statemachine.getDefinition());
+        }
+
+        public String getCurrentState() {
+            return statemachine.getCurrentState();
+        }
+
+        public StateMachineDefinition getDefinition() {
+            return definition;
+        }
+
+        public void processEvent(String event, Object object) throws StateMachineExecutionException,
+                StateMachineDefinitionException {
+            statemachine.processEvent(event, object);
+        }
+    }
+
+    private static class DelegatingDefinition implements StateMachineDefinition {
+        private final StateMachineDefinition definition;
+
+        DelegatingDefinition(StateMachineDefinition definition) {
+            this.definition = definition;
+        }
+
+        public boolean isState(String state) {
+            return definition.isState(state);
+        }
+
+        public boolean isStartState(String state) {
+            return definition.isStartState(state);
+        }
+
+        public boolean isFinalState(String state) {
+            return definition.isFinalState(state);
+        }
+
+        public List<String> getStates() {
+            return definition.getStates();
+        }
+
+        public List<String> getFinalStates() {
+            return definition.getFinalStates();
+        }
+
+        public String getStartState() {
+            return definition.getStartState();
+        }
+
+        public boolean isEvent(String event) {
+            return definition.isEvent(event);
+        }
+
+        public Set<String> getEvents() {
+            return definition.getEvents();
+        }
+
+        public List<String> getApplicableEvents(String state) {
+            return definition.getApplicableEvents(state);
+        }
+
+        public String getTargetState(String source, String event) throws TransitionNotDefinedException,
+                StateNotDefinedException {
+            return definition.getTargetState(source, event);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package shisha.statemachine;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
 
 import org.testng.annotations.Test;
 
@@ -9,8 +10,10 @@ import shisha.statemachine.annotations.util.IllegalEventAnnotationNotPublic;
 import shisha.statemachine.annotations.util.IllegalStateAnnotationNotAString;
 import shisha.statemachine.annotations.util.IllegalStateDefinitionNotFinal;
 import shisha.statemachine.annotations.util.IllegalTransitionAnnotationWrongParameter;
+import shisha.statemachine.annotations.util.StateMachineCountingTransitions;
 import shisha.statemachine.annotations.util.StateMachineWithEnterStateMethodReturningVoid;
 import shisha.statemachine.annotations.util.StateMachineWithExitStateReturningVoid;
+import shisha.statemachine.annotations.util.StateMachineWithInstanceFields;
 import shisha.statemachine.annotations.util.StateMachineWithNoStartState;
 import shisha.statemachine.annotations.util.StateMachineWithRedirectInEnterPhase;
 import shisha.statemachine.annotations.util.StateMachineWithRedirectOnEnterPhase;
@@ -95,4 +98,43 @@ public class StateMachinesTest {
         
         assertEquals(sm.getCurrentState(), StateMachineWithEnterStateMethodReturningVoid.STATE_B);
     }
+    
+    @Test
+    public void testMachinesOfTheSameClassAreBoundToTheirOwnInstance() throws StateMachineException {
+        StateMachineCountingTransitions first = new StateMachineCountingTransitions();
+        StateMachineCountingTransitions second = new StateMachineCountingTransitions();
+        StateMachine firstSm = StateMachines.newNonReentrant(first);
+        StateMachine secondSm = StateMachines.newReentrant(second);
+        
+        firstSm.processEvent(StateMachineCountingTransitions.EVENT_AB, null);
+        firstSm.processEvent(StateMachineCountingTransitions.EVENT_BA, null);
+        secondSm.processEvent(StateMachineCountingTransitions.EVENT_AB, null);
+        
+        assertEquals(first.exits, 1);
+        assertEquals(first.transitions, 2);
+        assertEquals(first.enters, 1);
+        assertEquals(second.exits, 1);
+        assertEquals(second.transitions, 1);
+        assertEquals(second.enters, 1);
+        assertEquals(firstSm.getCurrentState(), StateMachineCountingTransitions.STATE_A);
+        assertEquals(secondSm.getCurrentState(), StateMachineCountingTransitions.STATE_B);
+    }
+    
+    @Test
+    public void testDefinitionErrorsAreReportedForEveryInstance() throws StateMachineException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                StateMachines.newNonReentrant(new IllegalEventAnnotationNotFinal());
+                fail("The definition error should have been reported");
+            } catch (IllegalEventAnnotationException e) {
+                // expected
+            }
+        }
+    }
+    
+    @Test
+    public void testStatesDeclaredInInstanceFieldsAreReadPerInstance() throws StateMachineException {
+        assertEquals(StateMachines.newNonReentrant(new StateMachineWithInstanceFields("ONE")).getCurrentState(), "ONE");
+        assertEquals(StateMachines.newNonReentrant(new StateMachineWithInstanceFields("TWO")).getCurrentState(), "TWO");
+    }
 }
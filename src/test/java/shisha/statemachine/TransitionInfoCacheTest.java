@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.TransitionInfoCache.Mode;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+public class TransitionInfoCacheTest {
+    @Test
+    public void testNoReuse() {
+        TransitionInfoCache cache = new TransitionInfoCache(Mode.NONE);
+        TransitionInfo first = cache.acquire("A", "E", "B", null);
+        cache.release(first);
+
+        assertNotSame(cache.acquire("A", "E", "B", null), first);
+    }
+
+    @Test
+    public void testPerMachineReusesAndResets() {
+        TransitionInfoCache cache = new TransitionInfoCache(Mode.PER_MACHINE);
+        Object object = new Object();
+        TransitionInfo first = cache.acquire("A", "E", "B", object);
+        first.getTransitionContext().put("key", "value");
+        assertSame(first.getObject(), object);
+        cache.release(first);
+        assertNull(first.getObject());
+
+        TransitionInfo second = cache.acquire("B", "F", "C", null);
+        assertSame(second, first);
+        assertEquals(second.getSource(), "B");
+        assertEquals(second.getEvent(), "F");
+        assertEquals(second.getTarget(), "C");
+        assertTrue(second.getTransitionContext().isEmpty());
+    }
+
+    @Test
+    public void testNestedTransitionsGetTheirOwnInstance() {
+        TransitionInfoCache cache = new TransitionInfoCache(Mode.PER_MACHINE);
+        TransitionInfo outer = cache.acquire("A", "E", "B", null);
+        TransitionInfo inner = cache.acquire("B", "F", "C", null);
+
+        assertNotSame(inner, outer);
+        assertEquals(outer.getSource(), "A");
+
+        cache.release(inner);
+        cache.release(outer);
+        assertSame(cache.acquire("A", "E", "B", null), outer);
+    }
+
+    @Test
+    public void testPerThreadIsSharedByCachesOfTheSameThread() throws InterruptedException {
+        TransitionInfoCache cache = new TransitionInfoCache(Mode.PER_THREAD);
+        TransitionInfo first = cache.acquire("A", "E", "B", null);
+        cache.release(first);
+        assertSame(new TransitionInfoCache(Mode.PER_THREAD).acquire("A", "E", "B", null), first);
+
+        final TransitionInfoCache other = new TransitionInfoCache(Mode.PER_THREAD);
+        final AtomicReference<TransitionInfo> fromOtherThread = new AtomicReference<TransitionInfo>();
+        Thread thread = new Thread() {
+            public void run() {
+                fromOtherThread.set(other.acquire("A", "E", "B", null));
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertNotSame(fromOtherThread.get(), first);
+    }
+
+    @Test
+    public void testStrategyReusesTransitionInfo() throws Exception {
+        final List<TransitionInfo> infos = new ArrayList<TransitionInfo>();
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        TransitionController controller = new TransitionController() {
+            public void execute(TransitionInfo info) {
+                infos.add(info);
+            }
+        };
+        definition.defineTransition("A", "AB", "B", controller);
+        definition.defineTransition("B", "BA", "A", controller);
+
+        StateMachine sm = new StateMachineImpl(definition, new NonReentrantStrategy(Mode.PER_MACHINE));
+        sm.processEvent("AB", null);
+        sm.processEvent("BA", null);
+
+        assertEquals(infos.size(), 2);
+        assertSame(infos.get(0), infos.get(1));
+        assertEquals(infos.get(1).getSource(), "B");
+    }
+}
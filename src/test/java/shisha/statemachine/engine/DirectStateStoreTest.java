@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.engine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class DirectStateStoreTest {
+    @Test
+    public void testNewStoreIsZeroed() {
+        DirectStateStore store = DirectStateStore.allocate(1000);
+        assertEquals(store.capacity(), 1000);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(store.get(i), 0);
+    }
+
+    @Test
+    public void testCompareAndSet() {
+        DirectStateStore store = DirectStateStore.allocate(10);
+        store.set(3, 7);
+        assertFalse(store.compareAndSet(3, 6, 8));
+        assertTrue(store.compareAndSet(3, 7, 8));
+        assertEquals(store.get(3), 8);
+        assertEquals(store.get(2), 0);
+        assertEquals(store.get(4), 0);
+    }
+
+    @Test
+    public void testCompareAndSetWithLocks() {
+        // As on runtimes without var handles
+        DirectStateStore store = new DirectStateStore(ByteBuffer.allocateDirect(40), 10, true);
+        store.set(3, 7);
+        assertFalse(store.compareAndSet(3, 6, 8));
+        assertTrue(store.compareAndSet(3, 7, 8));
+        assertEquals(store.get(3), 8);
+        assertEquals(store.get(2), 0);
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testOutOfBounds() {
+        DirectStateStore.allocate(10).get(10);
+    }
+
+    @Test
+    public void testMappedStoreKeepsTheStates() throws Exception {
+        File file = File.createTempFile("states", ".bin");
+        file.deleteOnExit();
+
+        DirectStateStore store = DirectStateStore.map(file, 100);
+        store.set(0, 5);
+        store.set(99, 0x80000003);
+        store.flush();
+
+        DirectStateStore reopened = DirectStateStore.map(file, 200);
+        assertEquals(reopened.get(0), 5);
+        // Left in a transition, released on open
+        assertEquals(reopened.get(99), 3);
+        assertEquals(reopened.get(199), 0);
+    }
+
+    @Test
+    public void testEngineRestartsFromAMappedStore() throws Exception {
+        File file = File.createTempFile("engine", ".bin");
+        file.deleteOnExit();
+
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A");
+        definition.defineState("B", true, false);
+        definition.defineState("C");
+        definition.defineEvent("GO");
+        definition.defineTransition("B", "GO", "C", null);
+        definition.defineTransition("C", "GO", "A", null);
+
+        StateMachineEngine engine = new StateMachineEngine(definition, DirectStateStore.map(file, 10), 2);
+        engine.processEvent(1, "GO", null);
+        engine.processEvent(2, "GO", null);
+        engine.processEvent(2, "GO", null);
+        ((DirectStateStore) engine.getStore()).flush();
+
+        StateMachineEngine restarted = new StateMachineEngine(definition, DirectStateStore.map(file, 10), 4);
+        assertEquals(restarted.getState(0), "B");
+        assertEquals(restarted.getState(1), "C");
+        assertEquals(restarted.getState(2), "A");
+    }
+
+    @Test
+    public void testUnknownStatesAreRejected() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        StateMachineEngine engine = new StateMachineEngine(definition, DirectStateStore.allocate(1), 1);
+        try {
+            engine.setState(0, "Z");
+            assertFalse(true, "Unknown state accepted");
+        } catch (StateMachineException e) {
+            assertEquals(engine.getState(0), "A");
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.engine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class StateMachineEngineTest {
+    private static final String NEXT = "NEXT";
+    private static final String JUMP = "JUMP";
+
+    /**
+     * S0 -NEXT-> S1 -NEXT-> ... -NEXT-> S0
+     */
+    private StateMachineDefinitionImpl ring(int states, TransitionController controller)
+            throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        for (int i = 1; i < states; i++)
+            definition.defineState("S" + i);
+
+        definition.defineEvent(NEXT);
+        definition.defineEvent(JUMP);
+        for (int i = 0; i < states; i++)
+            definition.defineTransition("S" + i, NEXT, "S" + ((i + 1) % states), controller);
+
+        return definition;
+    }
+
+    @Test
+    public void testEntitiesHaveTheirOwnState() throws StateMachineException {
+        StateMachineEngine engine = new StateMachineEngine(ring(3, null), 10, 3);
+        assertEquals(engine.getShardCount(), 4);
+
+        for (int entity = 0; entity < 10; entity++) {
+            for (int i = 0; i < entity; i++)
+                engine.processEvent(entity, NEXT, null);
+        }
+
+        for (int entity = 0; entity < 10; entity++)
+            assertEquals(engine.getState(entity), "S" + (entity % 3));
+    }
+
+    @Test
+    public void testStartStateIsNotTheFirstOne() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A");
+        definition.defineState("B", true, false);
+        definition.defineEvent(NEXT);
+        definition.defineTransition("B", NEXT, "A", null);
+
+        StateMachineEngine engine = new StateMachineEngine(definition, 5, 2);
+        assertEquals(engine.getState(4), "B");
+        engine.processEvent(4, NEXT, null);
+        assertEquals(engine.getState(4), "A");
+        assertEquals(engine.getState(3), "B");
+    }
+
+    @Test
+    public void testRedirections() throws StateMachineException {
+        StateMachineDefinitionImpl definition = ring(4, null);
+        definition.defineEnterState("S1", new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                return new EventInfo(NEXT, null);
+            }
+        });
+
+        StateMachineEngine engine = new StateMachineEngine(definition, 2);
+        engine.processEvent(1, NEXT, null);
+        assertEquals(engine.getState(1), "S2");
+        assertEquals(engine.getState(0), "S0");
+    }
+
+    @Test
+    public void testFailedTransitionKeepsTheState() throws StateMachineException {
+        StateMachineEngine engine = new StateMachineEngine(ring(3, null), 2);
+        engine.processEvent(0, NEXT, null);
+        try {
+            engine.processEvent(0, JUMP, null);
+        } catch (TransitionNotDefinedException e) {
+            // Expected
+        }
+        assertEquals(engine.getState(0), "S1");
+        engine.processEvent(0, NEXT, null);
+        assertEquals(engine.getState(0), "S2");
+    }
+
+    @Test
+    public void testControllersCanOnlyMoveOtherEntities() throws StateMachineException {
+        final AtomicReference<StateMachineEngine> engine = new AtomicReference<StateMachineEngine>();
+        final List<Exception> errors = new ArrayList<Exception>();
+        TransitionController forward = new TransitionController() {
+            public void execute(TransitionInfo info) {
+                try {
+                    engine.get().processEvent((Integer) info.getObject(), NEXT, -1);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        StateMachineDefinitionImpl definition = ring(3, null);
+        definition.defineTransition("S0", JUMP, "S2", forward);
+        // A single shard, so the entities share the lock
+        engine.set(new StateMachineEngine(definition, 2, 1));
+
+        engine.get().processEvent(0, JUMP, 1);
+        assertTrue(errors.isEmpty());
+        assertEquals(engine.get().getState(0), "S2");
+        assertEquals(engine.get().getState(1), "S1");
+
+        engine.get().setState(0, "S0");
+        engine.get().processEvent(0, JUMP, 0);
+        assertEquals(errors.size(), 1);
+        assertTrue(errors.get(0) instanceof ReentrantTransitionNotAllowed);
+    }
+
+    @Test
+    public void testControllersCannotMoveEntitiesOfOtherShards() throws StateMachineException {
+        final AtomicReference<StateMachineEngine> engine = new AtomicReference<StateMachineEngine>();
+        final List<Exception> errors = new ArrayList<Exception>();
+        TransitionController forward = new TransitionController() {
+            public void execute(TransitionInfo info) {
+                int other = (Integer) info.getObject();
+                try {
+                    engine.get().processEvent(other, NEXT, null);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+                try {
+                    engine.get().setState(other, "S2");
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        StateMachineDefinitionImpl definition = ring(3, null);
+        definition.defineTransition("S0", JUMP, "S2", forward);
+        engine.set(new StateMachineEngine(definition, 4, 2));
+        assertEquals(engine.get().getShard(0), 0);
+        assertEquals(engine.get().getShard(2), 0);
+        assertEquals(engine.get().getShard(3), 1);
+
+        // Entity 2 shares the shard of entity 0
+        engine.get().processEvent(0, JUMP, 2);
+        assertTrue(errors.isEmpty());
+        assertEquals(engine.get().getState(2), "S2");
+
+        // Entity 3 does not, moving entity 0 would take a second lock
+        engine.get().processEvent(3, JUMP, 0);
+        assertEquals(errors.size(), 2);
+        assertTrue(errors.get(0) instanceof ReentrantTransitionNotAllowed);
+        assertTrue(errors.get(1) instanceof IllegalStateException);
+        assertEquals(engine.get().getState(3), "S2");
+        assertEquals(engine.get().getState(0), "S2");
+
+        // Outside of the transition it can be moved again
+        engine.get().processEvent(0, NEXT, null);
+        assertEquals(engine.get().getState(0), "S0");
+    }
+
+    @Test(timeOut = 10000)
+    public void testOppositeCrossShardCallsDoNotDeadlock() throws Exception {
+        final AtomicReference<StateMachineEngine> engine = new AtomicReference<StateMachineEngine>();
+        final CountDownLatch bothInTransition = new CountDownLatch(2);
+        final AtomicInteger rejected = new AtomicInteger();
+        TransitionController forward = new TransitionController() {
+            public void execute(TransitionInfo info) {
+                bothInTransition.countDown();
+                try {
+                    bothInTransition.await();
+                    engine.get().processEvent((Integer) info.getObject(), NEXT, null);
+                } catch (ReentrantTransitionNotAllowed e) {
+                    rejected.incrementAndGet();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        StateMachineDefinitionImpl definition = ring(3, null);
+        definition.defineTransition("S0", JUMP, "S2", forward);
+        engine.set(new StateMachineEngine(definition, 2, 2));
+
+        Thread other = new Thread() {
+            public void run() {
+                try {
+                    engine.get().processEvent(1, JUMP, 0);
+                } catch (StateMachineException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        other.start();
+        engine.get().processEvent(0, JUMP, 1);
+        other.join();
+
+        assertEquals(rejected.get(), 2);
+        assertEquals(engine.get().getState(0), "S2");
+        assertEquals(engine.get().getState(1), "S2");
+    }
+
+    @Test
+    public void testConcurrentEntities() throws Exception {
+        final int entities = 1000;
+        final int threads = 8;
+        final int rounds = 100;
+        final StateMachineEngine engine = new StateMachineEngine(ring(7, null), entities, 4);
+
+        List<Thread> workers = new ArrayList<Thread>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread() {
+                public void run() {
+                    try {
+                        for (int r = 0; r < rounds; r++) {
+                            for (int entity = 0; entity < entities; entity++)
+                                engine.processEvent(entity, NEXT, null);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        for (int entity = 0; entity < entities; entity++)
+            assertEquals(engine.getState(entity), "S" + (threads * rounds % 7));
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testUnknownEntity() throws StateMachineException {
+        new StateMachineEngine(ring(3, null), 4).processEvent(4, NEXT, null);
+    }
+
+    @Test
+    public void testLockFreeAndLockedTransitionsMix() throws Exception {
+        final int entities = 64;
+        final int threads = 8;
+        final int rounds = 500;
+        final AtomicInteger controlled = new AtomicInteger();
+        // Only the transitions leaving S0 have a controller
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        definition.defineState("S1");
+        definition.defineState("S2");
+        definition.defineEvent(NEXT);
+        definition.defineTransition("S0", NEXT, "S1", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                controlled.incrementAndGet();
+            }
+        });
+        definition.defineTransition("S1", NEXT, "S2", null);
+        definition.defineTransition("S2", NEXT, "S0", null);
+        final StateMachineEngine engine = new StateMachineEngine(definition, entities, 2);
+
+        List<Thread> workers = new ArrayList<Thread>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread() {
+                public void run() {
+                    try {
+                        for (int r = 0; r < rounds; r++) {
+                            for (int entity = 0; entity < entities; entity++)
+                                engine.processEvent(entity, NEXT, null);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        int events = threads * rounds;
+        for (int entity = 0; entity < entities; entity++)
+            assertEquals(engine.getState(entity), "S" + (events % 3));
+        assertEquals(controlled.get(), entities * ((events + 2) / 3));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.jfr;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+public class FlightRecorderMetricsTest {
+    private static final String GO = "GO";
+    private static final String BACK = "BACK";
+    private static final String STAY = "STAY";
+
+    private volatile CountDownLatch inTransition;
+    private volatile CountDownLatch release;
+
+    @BeforeMethod
+    public void checkAvailable() {
+        if (!FlightRecorderMetrics.isAvailable())
+            throw new SkipException("Flight Recorder not available");
+    }
+
+    // A -GO-> B -BACK-> A, STAY from B is cancelled. GO blocks while the
+    // latches are set
+    private StateMachineDefinitionImpl definition() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent(GO);
+        definition.defineEvent(BACK);
+        definition.defineEvent(STAY);
+        definition.defineTransition("A", GO, "B", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                if (release == null)
+                    return;
+
+                inTransition.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        definition.defineTransition("B", BACK, "A", null);
+        definition.defineTransition("B", STAY, "B", null);
+        definition.defineExitState("B", new ExitStateController() {
+            public Boolean execute(TransitionInfo info) {
+                return !STAY.equals(info.getEvent());
+            }
+        });
+        return definition;
+    }
+
+    private static StateMachineImpl machine(StateMachineDefinitionImpl definition) throws StateMachineException {
+        ReentrantStrategy strategy = new NonReentrantStrategy();
+        strategy.setMetrics(new FlightRecorderMetrics());
+        return new StateMachineImpl(definition, strategy);
+    }
+
+    private static List<RecordedEvent> events(Recording recording, String name) throws Exception {
+        File file = File.createTempFile("statemachine", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                if (event.getEventType().getName().equals(name))
+                    events.add(event);
+            }
+            return events;
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRecordsTransitions() throws Exception {
+        StateMachineImpl sm = machine(definition());
+        Recording recording = new Recording();
+        try {
+            recording.enable(TransitionEvent.NAME).with("durationThreshold", "0 ns");
+            recording.start();
+            sm.processEvent(GO, null);
+            sm.processEvent(STAY, null);
+            sm.processEvent(BACK, null);
+            recording.stop();
+
+            List<RecordedEvent> events = events(recording, TransitionEvent.NAME);
+            assertEquals(events.size(), 3);
+            assertEquals(events.get(0).getString("source"), "A");
+            assertEquals(events.get(0).getString("event"), GO);
+            assertEquals(events.get(0).getString("target"), "B");
+            assertFalse(events.get(0).getBoolean("cancelled"));
+            assertEquals(events.get(0).getLong("exitDuration"), -1);
+            assertTrue(events.get(1).getBoolean("cancelled"));
+            assertTrue(events.get(2).getLong("exitDuration") >= 0);
+        } finally {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testDurationThreshold() throws Exception {
+        StateMachineImpl sm = machine(definition());
+        Recording recording = new Recording();
+        try {
+            recording.enable(TransitionEvent.NAME).with("durationThreshold", "1 s");
+            recording.start();
+            sm.processEvent(GO, null);
+            recording.stop();
+
+            assertEquals(events(recording, TransitionEvent.NAME).size(), 0);
+        } finally {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testRecordsLongLockWaits() throws Exception {
+        final StateMachineImpl sm = machine(definition());
+        Recording recording = new Recording();
+        try {
+            recording.enable(LockWaitEvent.NAME);
+            recording.start();
+
+            // Not recorded, nobody waits
+            sm.processEvent(GO, null);
+            sm.processEvent(BACK, null);
+
+            inTransition = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+            Thread holder = new Thread() {
+                public void run() {
+                    try {
+                        sm.processEvent(GO, null);
+                    } catch (StateMachineException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            holder.start();
+            inTransition.await();
+            Thread waiter = new Thread() {
+                public void run() {
+                    try {
+                        sm.processEvent(BACK, null);
+                    } catch (StateMachineException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            waiter.start();
+            Thread.sleep(50);
+            release.countDown();
+            holder.join();
+            waiter.join();
+            recording.stop();
+
+            List<RecordedEvent> events = events(recording, LockWaitEvent.NAME);
+            assertEquals(events.size(), 1);
+            assertTrue(events.get(0).getLong("waitDuration") >= 40000000L);
+            assertEquals(events.get(0).getString("state"), "B");
+        } finally {
+            release = null;
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testDisabledWithoutRecording() {
+        assertFalse(new FlightRecorderMetrics().isEnabled());
+    }
+
+    @Test
+    public void testParsesDurations() {
+        assertEquals(DurationThreshold.parse("0 ns"), 0);
+        assertEquals(DurationThreshold.parse("20 ms"), 20000000L);
+        assertEquals(DurationThreshold.parse("3us"), 3000);
+        assertEquals(DurationThreshold.parse("1 s"), 1000000000L);
+        assertEquals(DurationThreshold.parse("42"), 42);
+        assertEquals(DurationThreshold.parse("infinity"), Long.MAX_VALUE);
+        assertEquals(DurationThreshold.parse("1000000 d"), Long.MAX_VALUE);
+        assertEquals(DurationThreshold.parse("99999999999999999999 ns"), Long.MAX_VALUE);
+        assertEquals(DurationThreshold.parse("20 weeks"), -1);
+        assertEquals(DurationThreshold.parse("ms"), -1);
+    }
+
+    @Test
+    public void testIgnoresInvalidThresholds() {
+        LockWaitEvent.Threshold threshold = new LockWaitEvent.Threshold();
+        threshold.setValue("20 weeks");
+        assertEquals(threshold.getValue(), LockWaitEvent.Threshold.DEFAULT);
+        assertEquals(threshold.combine(new HashSet<String>(Arrays.asList("1 s", "oops", "infinity"))), "1 s");
+
+        threshold.setValue("infinity");
+        assertFalse(threshold.isExceededBy(TimeUnit.DAYS.toNanos(365)));
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.journal;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.FlyweightStrategy;
+
+public class CheckpointerTest {
+    private static final String NEXT = "NEXT";
+    private static final int HEADER_SIZE = 40;
+    private static final int RECORD_SIZE = 16;
+
+    private StateMachineDefinitionImpl ring(int states) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        for (int i = 1; i < states; i++)
+            definition.defineState("S" + i);
+
+        definition.defineEvent(NEXT);
+        for (int i = 0; i < states; i++)
+            definition.defineTransition("S" + i, NEXT, "S" + ((i + 1) % states), null);
+
+        return definition;
+    }
+
+    private final List<File> directories = new ArrayList<File>();
+
+    private File newDirectory() throws IOException {
+        File directory = File.createTempFile("checkpoint", "");
+        directory.delete();
+        directory.mkdirs();
+        directories.add(directory);
+        return directory;
+    }
+
+    @AfterMethod
+    public void deleteDirectories() {
+        for (File directory : directories) {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+        directories.clear();
+    }
+
+    private static List<StateMachineImpl> machines(StateMachineDefinitionImpl definition, Checkpointer checkpointer,
+            int count) throws StateMachineException {
+        List<StateMachineImpl> machines = new ArrayList<StateMachineImpl>();
+        for (int i = 0; i < count; i++) {
+            StateMachineImpl sm = new StateMachineImpl(definition, FlyweightStrategy.SHARED);
+            checkpointer.register(1000 + i, sm);
+            machines.add(sm);
+        }
+        return machines;
+    }
+
+    @Test
+    public void testRestoresEveryMachineInItsState() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(5);
+
+        Checkpointer checkpointer = new Checkpointer(directory, definition);
+        List<StateMachineImpl> machines = machines(definition, checkpointer, 10);
+        for (int i = 0; i < machines.size(); i++) {
+            for (int j = 0; j < i; j++)
+                machines.get(i).processEvent(NEXT, null);
+        }
+        File file = checkpointer.checkpoint();
+        assertEquals(file.length(), HEADER_SIZE + 10 * RECORD_SIZE);
+
+        Map<Long, StateMachineImpl> restored = CheckpointRecovery.restore(directory, definition,
+                FlyweightStrategy.SHARED);
+        assertEquals(restored.size(), 10);
+        for (int i = 0; i < machines.size(); i++) {
+            StateMachineImpl sm = restored.get(1000L + i);
+            assertEquals(sm.getCurrentState(), "S" + (i % 5));
+            assertEquals(sm.getSequence(), i);
+        }
+
+        // Restored machines keep processing events
+        restored.get(1000L).processEvent(NEXT, null);
+        assertEquals(restored.get(1000L).getCurrentState(), "S1");
+    }
+
+    @Test
+    public void testIncrementalCheckpointsOnlyWriteChangedMachines() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(3);
+
+        Checkpointer checkpointer = new Checkpointer(directory, definition);
+        List<StateMachineImpl> machines = machines(definition, checkpointer, 100);
+        checkpointer.checkpoint();
+
+        machines.get(3).processEvent(NEXT, null);
+        machines.get(7).processEvent(NEXT, null);
+        machines.get(7).processEvent(NEXT, null);
+        assertEquals(checkpointer.checkpoint().length(), HEADER_SIZE + 2 * RECORD_SIZE);
+
+        // Nothing changed
+        assertEquals(checkpointer.checkpoint().length(), HEADER_SIZE);
+
+        machines.get(7).processEvent(NEXT, null);
+        checkpointer.checkpoint();
+
+        Map<Long, StateMachineImpl> restored = CheckpointRecovery.restore(directory, definition,
+                FlyweightStrategy.SHARED);
+        assertEquals(restored.size(), 100);
+        assertEquals(restored.get(1003L).getCurrentState(), "S1");
+        assertEquals(restored.get(1007L).getCurrentState(), "S0");
+        assertEquals(restored.get(1007L).getSequence(), 3);
+        assertEquals(restored.get(1050L).getCurrentState(), "S0");
+    }
+
+    @Test
+    public void testFullCheckpointDeletesTheOlderOnes() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(3);
+
+        Checkpointer checkpointer = new Checkpointer(directory, definition);
+        List<StateMachineImpl> machines = machines(definition, checkpointer, 5);
+        checkpointer.checkpoint();
+        machines.get(0).processEvent(NEXT, null);
+        checkpointer.checkpoint();
+        assertEquals(Checkpointer.checkpoints(directory).length, 2);
+
+        File full = checkpointer.fullCheckpoint();
+        File[] checkpoints = Checkpointer.checkpoints(directory);
+        assertEquals(checkpoints.length, 1);
+        assertEquals(checkpoints[0], full);
+        assertEquals(full.length(), HEADER_SIZE + 5 * RECORD_SIZE);
+    }
+
+    @Test
+    public void testStopsAtAMissingIncrementalCheckpoint() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(5);
+
+        Checkpointer checkpointer = new Checkpointer(directory, definition);
+        StateMachineImpl sm = machines(definition, checkpointer, 1).get(0);
+        checkpointer.checkpoint();
+        sm.processEvent(NEXT, null);
+        File lost = checkpointer.checkpoint();
+        sm.processEvent(NEXT, null);
+        checkpointer.checkpoint();
+
+        assertTrue(lost.delete());
+        Map<Long, StateMachineImpl> restored = CheckpointRecovery.restore(directory, definition,
+                FlyweightStrategy.SHARED);
+        assertEquals(restored.get(1000L).getCurrentState(), "S0");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testRejectsCheckpointsOfAnotherDefinition() throws Exception {
+        File directory = newDirectory();
+        Checkpointer checkpointer = new Checkpointer(directory, ring(3));
+        machines(ring(3), checkpointer, 1);
+        checkpointer.checkpoint();
+
+        CheckpointRecovery.restore(directory, ring(4), FlyweightStrategy.SHARED);
+    }
+
+    @Test
+    public void testJournalCoversTheTransitionsAfterTheCheckpoint() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(5);
+
+        TransitionJournal journal = new TransitionJournal(directory, definition);
+        Checkpointer checkpointer = new Checkpointer(directory, definition);
+        List<StateMachineImpl> machines = machines(definition, checkpointer, 3);
+        for (int i = 0; i < machines.size(); i++)
+            journal.attach(machines.get(i), 1000 + i);
+
+        machines.get(0).processEvent(NEXT, null);
+        machines.get(1).processEvent(NEXT, null);
+        long segment = journal.roll();
+        checkpointer.checkpoint();
+        assertEquals(journal.deleteSegmentsBefore(segment), 1);
+
+        machines.get(1).processEvent(NEXT, null);
+        machines.get(2).processEvent(NEXT, null);
+        journal.close();
+
+        Map<Long, StateMachineImpl> restored = CheckpointRecovery.restore(directory, definition,
+                FlyweightStrategy.SHARED);
+        JournalRecovery recovery = JournalRecovery.scan(directory, definition);
+        assertFalse(recovery.restore(1000, restored.get(1000L)));
+        assertTrue(recovery.restore(1001, restored.get(1001L)));
+        assertTrue(recovery.restore(1002, restored.get(1002L)));
+
+        for (int i = 0; i < machines.size(); i++) {
+            assertEquals(restored.get(1000L + i).getCurrentState(), machines.get(i).getCurrentState());
+            assertEquals(restored.get(1000L + i).getSequence(), machines.get(i).getSequence());
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.journal;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.strategy.OptimisticStrategy;
+
+public class TransitionJournalTest {
+    private static final String NEXT = "NEXT";
+
+    private StateMachineDefinitionImpl ring(int states) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        for (int i = 1; i < states; i++)
+            definition.defineState("S" + i);
+
+        definition.defineEvent(NEXT);
+        for (int i = 0; i < states; i++)
+            definition.defineTransition("S" + i, NEXT, "S" + ((i + 1) % states), null);
+
+        return definition;
+    }
+
+    private final List<File> directories = new ArrayList<File>();
+
+    private File newDirectory() throws IOException {
+        File directory = File.createTempFile("journal", "");
+        directory.delete();
+        directory.mkdirs();
+        directories.add(directory);
+        return directory;
+    }
+
+    @AfterMethod
+    public void deleteDirectories() {
+        for (File directory : directories) {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+        directories.clear();
+    }
+
+    private static List<StateMachineImpl> machines(StateMachineDefinitionImpl definition, TransitionJournal journal,
+            int count) throws StateMachineException {
+        List<StateMachineImpl> machines = new ArrayList<StateMachineImpl>();
+        for (int i = 0; i < count; i++) {
+            StateMachineImpl sm = new StateMachineImpl(definition, new NonReentrantStrategy());
+            journal.attach(sm, 1000 + i);
+            machines.add(sm);
+        }
+        return machines;
+    }
+
+    @Test
+    public void testRecoversTheLastStateOfEveryMachine() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(5);
+
+        TransitionJournal journal = new TransitionJournal(directory, definition);
+        List<StateMachineImpl> machines = machines(definition, journal, 10);
+        for (int i = 0; i < machines.size(); i++) {
+            for (int j = 0; j < i; j++)
+                machines.get(i).processEvent(NEXT, null);
+        }
+        journal.close();
+
+        JournalRecovery recovery = JournalRecovery.scan(directory, definition);
+        // The first machine never moved
+        assertEquals(recovery.getMachineIds().size(), 9);
+        assertNull(recovery.getState(1000));
+        for (int i = 1; i < machines.size(); i++) {
+            assertEquals(recovery.getState(1000 + i), "S" + (i % 5));
+            assertEquals(recovery.getSequence(1000 + i), i);
+        }
+    }
+
+    @Test
+    public void testRestoredMachinesContinueTheirSequence() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(3);
+
+        TransitionJournal journal = new TransitionJournal(directory, definition);
+        StateMachineImpl sm = machines(definition, journal, 1).get(0);
+        sm.processEvent(NEXT, null);
+        sm.processEvent(NEXT, null);
+        journal.close();
+
+        // Restart: restore, then move once more with a new journal
+        TransitionJournal reopened = new TransitionJournal(directory, definition);
+        StateMachineImpl restored = machines(definition, reopened, 1).get(0);
+        assertTrue(JournalRecovery.scan(directory, definition).restore(1000, restored));
+        assertEquals(restored.getCurrentState(), "S2");
+        restored.processEvent(NEXT, null);
+        reopened.close();
+
+        JournalRecovery recovery = JournalRecovery.scan(directory, definition);
+        assertEquals(recovery.getState(1000), "S0");
+        assertEquals(recovery.getSequence(1000), 3);
+        assertEquals(TransitionJournal.segments(directory).length, 2);
+    }
+
+    @Test
+    public void testSegmentsRollWhenFull() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(4);
+
+        TransitionJournal journal = new TransitionJournal(directory, definition,
+                TransitionJournal.FsyncPolicy.NEVER, 0, TransitionJournal.HEADER_SIZE + 10
+                        * TransitionJournal.RECORD_SIZE);
+        StateMachineImpl sm = machines(definition, journal, 1).get(0);
+        for (int i = 0; i < 95; i++)
+            sm.processEvent(NEXT, null);
+        journal.close();
+
+        assertEquals(TransitionJournal.segments(directory).length, 10);
+        JournalRecovery recovery = JournalRecovery.scan(directory, definition);
+        assertEquals(recovery.getState(1000), "S3");
+        assertEquals(recovery.getSequence(1000), 95);
+    }
+
+    @Test
+    public void testRolledSegmentsAreSyncedWithTheIntervalPolicy() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(4);
+
+        // The flusher does not run during the test
+        TransitionJournal journal = new TransitionJournal(directory, definition,
+                TransitionJournal.FsyncPolicy.INTERVAL, 3600 * 1000, TransitionJournal.HEADER_SIZE + 10
+                        * TransitionJournal.RECORD_SIZE);
+        StateMachineImpl sm = machines(definition, journal, 1).get(0);
+        for (int i = 0; i < 25; i++)
+            sm.processEvent(NEXT, null);
+        journal.roll();
+        assertEquals(journal.unsyncedSegments(), 3);
+
+        journal.sync();
+        assertEquals(journal.unsyncedSegments(), 0);
+        journal.close();
+    }
+
+    @Test
+    public void testTornRecordsAreIgnored() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(4);
+
+        TransitionJournal journal = new TransitionJournal(directory, definition);
+        StateMachineImpl sm = machines(definition, journal, 1).get(0);
+        sm.processEvent(NEXT, null);
+        sm.processEvent(NEXT, null);
+        journal.close();
+
+        // Corrupt the target of the second record
+        RandomAccessFile raf = new RandomAccessFile(TransitionJournal.segments(directory)[0], "rw");
+        try {
+            raf.seek(TransitionJournal.HEADER_SIZE + TransitionJournal.RECORD_SIZE + 32);
+            raf.write(3);
+        } finally {
+            raf.close();
+        }
+
+        JournalRecovery recovery = JournalRecovery.scan(directory, definition);
+        assertEquals(recovery.getState(1000), "S1");
+        assertEquals(recovery.getSequence(1000), 1);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testAnotherDefinitionIsRejected() throws Exception {
+        File directory = newDirectory();
+        TransitionJournal journal = new TransitionJournal(directory, ring(3));
+        journal.close();
+
+        JournalRecovery.scan(directory, ring(4));
+    }
+
+    @Test
+    public void testConcurrentAppendsWithGroupCommit() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(7);
+        final int threads = 4;
+        final int events = 200;
+
+        final TransitionJournal journal = new TransitionJournal(directory, definition,
+                TransitionJournal.FsyncPolicy.ALWAYS, 0, TransitionJournal.DEFAULT_SEGMENT_SIZE);
+        final StateMachineImpl sm = new StateMachineImpl(definition, new OptimisticStrategy());
+        journal.attach(sm, 7);
+
+        List<Thread> workers = new ArrayList<Thread>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < events; i++)
+                            sm.processEvent(NEXT, null);
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers)
+            worker.join();
+        journal.close();
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        JournalRecovery recovery = JournalRecovery.scan(directory, definition);
+        assertEquals(recovery.getSequence(7), threads * events);
+        assertEquals(recovery.getState(7), sm.getCurrentState());
+    }
+
+    @Test
+    public void testUnknownMachinesAreNotRestored() throws Exception {
+        File directory = newDirectory();
+        StateMachineDefinitionImpl definition = ring(3);
+        new TransitionJournal(directory, definition).close();
+
+        StateMachineImpl sm = new StateMachineImpl(definition, new NonReentrantStrategy());
+        assertFalse(JournalRecovery.scan(directory, definition).restore(1, sm));
+        assertEquals(sm.getCurrentState(), "S0");
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testBucketsCoverEveryValue() {
+        assertEquals(LatencyHistogram.bucket(0), 0);
+        assertEquals(LatencyHistogram.bucket(Long.MAX_VALUE), LatencyHistogram.BUCKETS - 1);
+        assertEquals(LatencyHistogram.highestValue(LatencyHistogram.BUCKETS - 1), Long.MAX_VALUE);
+
+        for (long value = 0; value < 100000; value++) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(LatencyHistogram.highestValue(bucket) >= value);
+            assertTrue(bucket == 0 || LatencyHistogram.highestValue(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void testPercentilesWithinThePrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10000; value++)
+            histogram.record(value * 1000);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.getCount(), 10000);
+        assertEquals(snapshot.getMax(), 10000000);
+        assertEquals(snapshot.getValueAtPercentile(100), 10000000);
+        assertEquals(snapshot.getValueAtPercentile(50), 5000000, 5000000 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(snapshot.getValueAtPercentile(99), 9900000, 9900000 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(snapshot.getMean(), 5000500, 5000500 / LatencyHistogram.SUB_BUCKETS);
+    }
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(snapshot.getCount(), 0);
+        assertEquals(snapshot.getValueAtPercentile(99), 0);
+        assertEquals(snapshot.getMean(), 0.0);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 100000; j++)
+                        histogram.record(j);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(histogram.snapshot().getCount(), 800000);
+        assertEquals(histogram.snapshot().getMax(), 99999);
+    }
+}
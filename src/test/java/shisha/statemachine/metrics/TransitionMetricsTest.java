@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.annotations.util.StateMachineWithRedirectInEnterPhase;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.FlyweightStrategy;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+public class TransitionMetricsTest {
+    private static final String GO = "GO";
+    private static final String STAY = "STAY";
+
+    private boolean allowExit;
+
+    // A -GO-> B redirects with GO to C. STAY from C is cancelled unless
+    // allowExit
+    private StateMachineDefinitionImpl definition() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineState("C");
+        definition.defineEvent(GO);
+        definition.defineEvent(STAY);
+
+        TransitionController slow = new TransitionController() {
+            public void execute(TransitionInfo info) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        definition.defineTransition("A", GO, "B", slow);
+        definition.defineTransition("B", GO, "C", null);
+        definition.defineTransition("C", STAY, "C", null);
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                return new EventInfo(GO, null);
+            }
+        });
+        definition.defineExitState("C", new ExitStateController() {
+            public Boolean execute(TransitionInfo info) {
+                return allowExit;
+            }
+        });
+        return definition;
+    }
+
+    private static Map<String, MetricsSnapshot.TransitionCount> counts(MetricsSnapshot snapshot) {
+        Map<String, MetricsSnapshot.TransitionCount> counts = new HashMap<String, MetricsSnapshot.TransitionCount>();
+        for (MetricsSnapshot.TransitionCount count : snapshot.getTransitionCounts())
+            counts.put(count.getSource() + " " + count.getEvent() + " " + count.getTarget(), count);
+        return counts;
+    }
+
+    @Test
+    public void testRecordsEveryPhaseAndTransition() throws Exception {
+        TransitionMetrics metrics = new TransitionMetrics();
+        ReentrantStrategy strategy = new NonReentrantStrategy();
+        strategy.setMetrics(metrics);
+        StateMachineImpl sm = new StateMachineImpl(definition(), strategy);
+
+        sm.processEvent(GO, null);
+        sm.processEvent(STAY, null);
+        allowExit = true;
+        sm.processEvent(STAY, null);
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(snapshot.getLockWait().getCount(), 3);
+        // Only C has an exit controller, cancelled transitions only have the
+        // exit phase
+        assertEquals(snapshot.getExit().getCount(), 2);
+        assertEquals(snapshot.getTransition().getCount(), 3);
+        // Only B has an enter controller
+        assertEquals(snapshot.getEnter().getCount(), 1);
+        assertTrue(snapshot.getTransition().getMax() >= 2000000);
+
+        Map<String, MetricsSnapshot.TransitionCount> counts = counts(snapshot);
+        assertEquals(counts.size(), 3);
+        assertEquals(counts.get("A GO B").getApplied(), 1);
+        assertEquals(counts.get("B GO C").getApplied(), 1);
+        assertEquals(counts.get("C STAY C").getApplied(), 1);
+        assertEquals(counts.get("C STAY C").getCancelled(), 1);
+    }
+
+    @Test
+    public void testSharedByFlyweightStateMachines() throws Exception {
+        TransitionMetrics metrics = new TransitionMetrics();
+        FlyweightStrategy strategy = new FlyweightStrategy(ReentrantStrategy.DEFAULT_MAX_REDIRECTS, metrics);
+        StateMachineDefinitionImpl definition = definition();
+        for (int i = 0; i < 5; i++)
+            new StateMachineImpl(definition, strategy).processEvent(GO, null);
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(snapshot.getLockWait().getCount(), 5);
+        assertEquals(counts(snapshot).get("A GO B").getApplied(), 5);
+        assertEquals(counts(snapshot).get("B GO C").getApplied(), 5);
+    }
+
+    @Test
+    public void testSharedByBoundAnnotatedInstances() throws Exception {
+        TransitionMetrics metrics = new TransitionMetrics();
+        StateMachineImpl first = null;
+        for (int i = 0; i < 3; i++) {
+            StateMachineImpl sm = (StateMachineImpl) StateMachines
+                    .newNonReentrant(new StateMachineWithRedirectInEnterPhase());
+            ((ReentrantStrategy) sm.getStrategy()).setMetrics(metrics);
+            sm.processEvent(StateMachineWithRedirectInEnterPhase.EVENT_AB, null);
+            if (first == null)
+                first = sm;
+            else
+                assertNotSame(sm.getDefinition(), first.getDefinition());
+        }
+
+        Map<String, MetricsSnapshot.TransitionCount> counts = counts(metrics.snapshot());
+        assertEquals(counts.size(), 1);
+        assertEquals(counts.get("STATE_A EVENT_AB STATE_B").getApplied(), 3);
+    }
+
+    @Test
+    public void testNothingRecordedWithoutMetrics() throws Exception {
+        TransitionMetrics metrics = new TransitionMetrics();
+        ReentrantStrategy strategy = new NonReentrantStrategy();
+        strategy.setMetrics(metrics);
+        strategy.setMetrics(null);
+        new StateMachineImpl(definition(), strategy).processEvent(GO, null);
+
+        assertEquals(metrics.snapshot().getLockWait().getCount(), 0);
+        assertEquals(metrics.snapshot().getTransitionCounts().size(), 0);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+public class TransitionTraceTest {
+    private static final String NEXT = "NEXT";
+    private static final String STAY = "STAY";
+
+    // Ring of three states, STAY is always cancelled
+    private StateMachineDefinitionImpl definition() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        definition.defineState("S1");
+        definition.defineState("S2");
+        definition.defineEvent(NEXT);
+        definition.defineEvent(STAY);
+        for (int i = 0; i < 3; i++) {
+            definition.defineTransition("S" + i, NEXT, "S" + ((i + 1) % 3), null);
+            definition.defineTransition("S" + i, STAY, "S" + i, null);
+        }
+        definition.defineExitState("S1", new ExitStateController() {
+            public Boolean execute(TransitionInfo info) {
+                return !STAY.equals(info.getEvent());
+            }
+        });
+        return definition;
+    }
+
+    private static List<String> records(TransitionTrace trace, final CompiledStateMachineDefinition definition) {
+        final List<String> records = new ArrayList<String>();
+        trace.forEach(new TransitionTrace.Visitor() {
+            public void visit(long timestamp, int machine, long fingerprint, TransitionTrace.Kind kind,
+                    int sourceId, int eventId, int targetId, long exitNanos, long nanos, long enterNanos) {
+                assertEquals(fingerprint, definition.getFingerprint());
+                if (kind == TransitionTrace.Kind.LOCK_WAIT)
+                    records.add(kind + " " + definition.getStateName(sourceId));
+                else
+                    records.add(kind + " " + definition.getStateName(sourceId) + " "
+                            + definition.getEventName(eventId) + " " + definition.getStateName(targetId)
+                            + (exitNanos >= 0 ? " exit" : ""));
+            }
+        });
+        return records;
+    }
+
+    @Test
+    public void testRecordsTransitionsInOrder() throws Exception {
+        StateMachineDefinitionImpl definition = definition();
+        TransitionTrace trace = new TransitionTrace(1024);
+        ReentrantStrategy strategy = new NonReentrantStrategy();
+        strategy.setMetrics(trace);
+        StateMachineImpl sm = new StateMachineImpl(definition, strategy);
+
+        sm.processEvent(NEXT, null);
+        sm.processEvent(STAY, null);
+        sm.processEvent(NEXT, null);
+
+        List<String> records = records(trace, CompiledStateMachineDefinition.of(definition));
+        assertEquals(records.size(), 6);
+        assertEquals(records.get(0), "LOCK_WAIT S0");
+        assertEquals(records.get(1), "TRANSITION S0 NEXT S1");
+        assertEquals(records.get(2), "LOCK_WAIT S1");
+        assertEquals(records.get(3), "CANCELLED S1 STAY S1 exit");
+        assertEquals(records.get(4), "LOCK_WAIT S1");
+        assertEquals(records.get(5), "TRANSITION S1 NEXT S2 exit");
+    }
+
+    @Test
+    public void testKeepsTheLastRecords() throws Exception {
+        StateMachineDefinitionImpl definition = definition();
+        TransitionTrace trace = new TransitionTrace(1);
+        ReentrantStrategy strategy = new NonReentrantStrategy();
+        strategy.setMetrics(trace);
+        StateMachineImpl sm = new StateMachineImpl(definition, strategy);
+
+        for (int i = 0; i < 10; i++)
+            sm.processEvent(NEXT, null);
+
+        // A single thread only uses one stripe
+        List<String> records = records(trace, CompiledStateMachineDefinition.of(definition));
+        assertEquals(records.size(), 1);
+        assertEquals(records.get(records.size() - 1), "TRANSITION S0 NEXT S1");
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final StateMachineDefinitionImpl definition = definition();
+        // Large enough for all the records even if the threads share a
+        // stripe
+        final TransitionTrace trace = new TransitionTrace(1 << 18);
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        ReentrantStrategy strategy = new NonReentrantStrategy();
+                        strategy.setMetrics(trace);
+                        StateMachineImpl sm = new StateMachineImpl(definition, strategy);
+                        for (int j = 0; j < 500; j++)
+                            sm.processEvent(NEXT, null);
+                    } catch (StateMachineException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        List<String> records = records(trace, CompiledStateMachineDefinition.of(definition));
+        assertEquals(records.size(), 4000);
+        for (String record : records)
+            assertTrue(record.startsWith("LOCK_WAIT") || record.startsWith("TRANSITION"), record);
+    }
+
+    @Test
+    public void testRecordsAreNotMixedWhenWritersLapTheBuffer() throws Exception {
+        final StateMachineDefinitionImpl definition = definition();
+        // One record per stripe, the threads keep overwriting each other
+        final TransitionTrace trace = new TransitionTrace(1);
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        ReentrantStrategy strategy = new NonReentrantStrategy();
+                        strategy.setMetrics(trace);
+                        StateMachineImpl sm = new StateMachineImpl(definition, strategy);
+                        for (int j = 0; j < 20000; j++)
+                            sm.processEvent(NEXT, null);
+                    } catch (StateMachineException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        final CompiledStateMachineDefinition compiled = CompiledStateMachineDefinition.of(definition);
+        trace.forEach(new TransitionTrace.Visitor() {
+            public void visit(long timestamp, int machine, long fingerprint, TransitionTrace.Kind kind,
+                    int sourceId, int eventId, int targetId, long exitNanos, long nanos, long enterNanos) {
+                assertEquals(fingerprint, compiled.getFingerprint());
+                if (kind == TransitionTrace.Kind.LOCK_WAIT) {
+                    assertEquals(eventId, -1);
+                    assertEquals(targetId, -1);
+                } else {
+                    assertEquals(kind, TransitionTrace.Kind.TRANSITION);
+                    assertEquals(eventId, compiled.getEventId(NEXT));
+                    assertEquals(targetId, (sourceId + 1) % 3);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.processor;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachines;
+
+public class StateMachineProcessorTest {
+    private static final String HEADER = "package gen;\n"
+            + "import shisha.statemachine.*;\n"
+            + "import shisha.statemachine.annotations.*;\n";
+
+    private static final String DOOR = HEADER
+            + "@AStateMachine\n"
+            + "public class Door {\n"
+            + "    @State(isStart = true) public static final String OPENED = \"OPENED\";\n"
+            + "    @State public static final String CLOSED = \"CLOSED\";\n"
+            + "    @Event public static final String CLOSE = \"CLOSE\";\n"
+            + "    @Event public static final String OPEN = \"OPEN\";\n"
+            + "    public int exits, transitions, enters;\n"
+            + "    @ExitState(OPENED) public Boolean onExitOpened(TransitionInfo info) { exits++; return null; }\n"
+            + "    @Transition(source = OPENED, event = CLOSE, target = CLOSED)\n"
+            + "    public void onClose(TransitionInfo info) throws Exception { transitions++; }\n"
+            + "    @Transitions({ @Transition(source = CLOSED, event = OPEN, target = OPENED),\n"
+            + "                   @Transition(source = OPENED, event = OPEN, target = OPENED) })\n"
+            + "    public void onOpen(TransitionInfo info) { transitions++; }\n"
+            + "    @EnterState(CLOSED) public void onEnterClosed(TransitionInfo info) { enters++; }\n"
+            + "}\n";
+
+    private File output;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        output = File.createTempFile("processor", "");
+        output.delete();
+        output.mkdirs();
+        diagnostics = new DiagnosticCollector<JavaFileObject>();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        delete(output);
+    }
+
+    @Test
+    public void testGeneratedDefinitionIsUsed() throws Exception {
+        assertTrue(compile("gen.Door", DOOR), diagnostics.getDiagnostics().toString());
+        assertTrue(new File(output, "gen/DoorStateMachineDefinition.java").exists());
+
+        URLClassLoader loader = new URLClassLoader(new URL[] { output.toURI().toURL() }, getClass()
+                .getClassLoader());
+        try {
+            Class<?> door = loader.loadClass("gen.Door");
+            Object instance = door.getDeclaredConstructor().newInstance();
+
+            StateMachine sm = StateMachines.newNonReentrant(instance);
+            CompiledStateMachineDefinition definition = (CompiledStateMachineDefinition) sm.getDefinition();
+            assertEquals(definition.getTransitionController("OPENED", "CLOSE").getClass().getEnclosingClass()
+                    .getName(), "gen.DoorStateMachineDefinition");
+
+            sm.processEvent("CLOSE", null);
+            sm.processEvent("OPEN", null);
+            sm.processEvent("OPEN", null);
+
+            assertEquals(sm.getCurrentState(), "OPENED");
+            assertEquals(door.getField("exits").getInt(instance), 2);
+            assertEquals(door.getField("transitions").getInt(instance), 3);
+            assertEquals(door.getField("enters").getInt(instance), 1);
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testInstancesShareTheGeneratedDefinition() throws Exception {
+        assertTrue(compile("gen.Door", DOOR), diagnostics.getDiagnostics().toString());
+
+        URLClassLoader loader = new URLClassLoader(new URL[] { output.toURI().toURL() }, getClass()
+                .getClassLoader());
+        try {
+            Class<?> door = loader.loadClass("gen.Door");
+            Object first = door.getDeclaredConstructor().newInstance();
+            Object second = door.getDeclaredConstructor().newInstance();
+            StateMachine firstSm = StateMachines.newNonReentrant(first);
+            StateMachine secondSm = StateMachines.newNonReentrant(second);
+            CompiledStateMachineDefinition firstDefinition = (CompiledStateMachineDefinition) firstSm
+                    .getDefinition();
+            CompiledStateMachineDefinition secondDefinition = (CompiledStateMachineDefinition) secondSm
+                    .getDefinition();
+
+            // Only the controllers are created for every instance
+            assertSame(firstDefinition.getStates(), secondDefinition.getStates());
+            assertNotSame(firstDefinition.getTransitionController("OPENED", "CLOSE"), secondDefinition
+                    .getTransitionController("OPENED", "CLOSE"));
+            // Both transitions of onOpen share the controller
+            assertSame(firstDefinition.getTransitionController("OPENED", "OPEN"), firstDefinition
+                    .getTransitionController("CLOSED", "OPEN"));
+
+            firstSm.processEvent("CLOSE", null);
+            assertEquals(door.getField("transitions").getInt(first), 1);
+            assertEquals(door.getField("transitions").getInt(second), 0);
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testGeneratedOrdinalsMatchTheRuntimeProcessing() throws Exception {
+        // Fields declared out of alphabetical order
+        String source = HEADER
+                + "@AStateMachine\n"
+                + "public class Order {\n"
+                + "    @State(isStart = true) public static final String Z = \"Z\";\n"
+                + "    @State public static final String A = \"A\";\n"
+                + "    @Event public static final String Y = \"Y\";\n"
+                + "    @Event public static final String B = \"B\";\n"
+                + "    @Transition(source = Z, event = Y, target = A) public void onY(TransitionInfo info) {}\n"
+                + "}\n";
+
+        assertTrue(compile("gen.Order", source), diagnostics.getDiagnostics().toString());
+        File generated = output;
+        output = File.createTempFile("processor", "");
+        output.delete();
+        output.mkdirs();
+        try {
+            assertTrue(compile("gen.Order", source, false), diagnostics.getDiagnostics().toString());
+
+            CompiledStateMachineDefinition withProcessor = definition(generated, "gen.Order");
+            CompiledStateMachineDefinition withReflection = definition(output, "gen.Order");
+            assertEquals(withProcessor.getStates(), Arrays.asList("A", "Z"));
+            assertEquals(withReflection.getStates(), withProcessor.getStates());
+            assertEquals(withReflection.getEventId("B"), withProcessor.getEventId("B"));
+            assertEquals(withReflection.getFingerprint(), withProcessor.getFingerprint());
+        } finally {
+            delete(generated);
+        }
+    }
+
+    private CompiledStateMachineDefinition definition(File classes, String className) throws Exception {
+        URLClassLoader loader = new URLClassLoader(new URL[] { classes.toURI().toURL() }, getClass()
+                .getClassLoader());
+        try {
+            Object instance = loader.loadClass(className).getDeclaredConstructor().newInstance();
+            return (CompiledStateMachineDefinition) StateMachines.newNonReentrant(instance).getDefinition();
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testNestedClassName() {
+        String source = HEADER
+                + "public class Outer {\n"
+                + "    @AStateMachine public static class Inner {\n"
+                + "        @State(isStart = true) public static final String A = \"A\";\n"
+                + "    }\n"
+                + "}\n";
+
+        assertTrue(compile("gen.Outer", source), diagnostics.getDiagnostics().toString());
+        assertTrue(new File(output, "gen/Outer_InnerStateMachineDefinition.java").exists());
+    }
+
+    @Test
+    public void testStateNotFinal() {
+        String source = HEADER
+                + "@AStateMachine public class NotFinal {\n"
+                + "    @State(isStart = true) public static String A = \"A\";\n"
+                + "}\n";
+
+        assertFalse(compile("gen.NotFinal", source));
+        assertError("@State A must be declared as public static final");
+    }
+
+    @Test
+    public void testEventNotPublic() {
+        String source = HEADER
+                + "@AStateMachine public class NotPublic {\n"
+                + "    @State(isStart = true) public static final String A = \"A\";\n"
+                + "    @Event static final String E = \"E\";\n"
+                + "}\n";
+
+        assertFalse(compile("gen.NotPublic", source));
+        assertError("@Event E must be declared as public static final");
+    }
+
+    @Test
+    public void testEventDeclaredTwice() {
+        String source = HEADER
+                + "@AStateMachine public class Twice {\n"
+                + "    @State(isStart = true) public static final String A = \"A\";\n"
+                + "    @Event public static final String E1 = \"E\";\n"
+                + "    @Event public static final String E2 = \"E\";\n"
+                + "}\n";
+
+        assertFalse(compile("gen.Twice", source));
+        assertError("@Event E2 has been declared twice");
+    }
+
+    @Test
+    public void testStartStateNotDefined() {
+        String source = HEADER
+                + "@AStateMachine public class NoStart {\n"
+                + "    @State public static final String A = \"A\";\n"
+                + "}\n";
+
+        assertFalse(compile("gen.NoStart", source));
+        assertError("Start state has not been defined for the state machine");
+    }
+
+    @Test
+    public void testTransitionWrongParameter() {
+        String source = HEADER
+                + "@AStateMachine public class WrongParameter {\n"
+                + "    @State(isStart = true) public static final String A = \"A\";\n"
+                + "    @Event public static final String E = \"E\";\n"
+                + "    @Transition(source = A, event = E, target = A) public void onE(String info) {}\n"
+                + "}\n";
+
+        assertFalse(compile("gen.WrongParameter", source));
+        assertError("Transition for method onE is not well defined");
+    }
+
+    @Test
+    public void testTransitionToUndefinedState() {
+        String source = HEADER
+                + "@AStateMachine public class Undefined {\n"
+                + "    @State(isStart = true) public static final String A = \"A\";\n"
+                + "    @Event public static final String E = \"E\";\n"
+                + "    @Transition(source = A, event = E, target = \"B\") public void onE(TransitionInfo info) {}\n"
+                + "}\n";
+
+        assertFalse(compile("gen.Undefined", source));
+        assertError("State B does not exist");
+    }
+
+    @Test
+    public void testExitStateWrongReturnType() {
+        String source = HEADER
+                + "@AStateMachine public class WrongReturn {\n"
+                + "    @State(isStart = true) public static final String A = \"A\";\n"
+                + "    @ExitState(A) public String onExit(TransitionInfo info) { return null; }\n"
+                + "}\n";
+
+        assertFalse(compile("gen.WrongReturn", source));
+        assertError("Exit phase must return a boolean or void");
+    }
+
+    private boolean compile(String className, String source) {
+        return compile(className, source, true);
+    }
+
+    private boolean compile(String className, String source, boolean process) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        try {
+            fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(output));
+            fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(output));
+            fileManager.setLocation(StandardLocation.CLASS_PATH, Arrays.asList(location(StateMachine.class),
+                    location(LoggerFactory.class)));
+
+            List<JavaFileObject> units = new ArrayList<JavaFileObject>();
+            units.add(new Source(className, source));
+
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, null, null, units);
+            if (process)
+                task.setProcessors(Collections.singleton(new StateMachineProcessor()));
+            else
+                task.setProcessors(Collections.<StateMachineProcessor> emptyList());
+            return task.call();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                fileManager.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void assertError(String message) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getMessage(null).contains(message))
+                return;
+        }
+        throw new AssertionError("Error '" + message + "' not reported: " + diagnostics.getDiagnostics());
+    }
+
+    private static File location(Class<?> clazz) {
+        try {
+            return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String code;
+
+        Source(String className, String code) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class ActorStrategyTest {
+    private ActorScheduler scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = new ActorScheduler(2, 8);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * A <-> B, NEXT toggles between them
+     */
+    private CompiledStateMachineDefinition toggle(TransitionController controller) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("NEXT");
+        definition.defineEvent("UNUSED");
+        definition.defineTransition("A", "NEXT", "B", controller);
+        definition.defineTransition("B", "NEXT", "A", controller);
+        return definition.compile();
+    }
+
+    /**
+     * Counts the transitions of every machine, passed as the event object,
+     * and the times two threads ran the same machine
+     */
+    private static class Counter {
+        private final AtomicInteger running = new AtomicInteger();
+        private int transitions;
+        private int lastSequence = -1;
+        private boolean outOfOrder;
+    }
+
+    private static class Event {
+        private final Counter counter;
+        private final int sequence;
+
+        Event(Counter counter, int sequence) {
+            this.counter = counter;
+            this.sequence = sequence;
+        }
+    }
+
+    @Test
+    public void testManyMachinesOnFewThreads() throws Exception {
+        final AtomicInteger overlaps = new AtomicInteger();
+        CompiledStateMachineDefinition definition = toggle(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                Event event = (Event) info.getObject();
+                Counter counter = event.counter;
+                if (counter.running.incrementAndGet() > 1)
+                    overlaps.incrementAndGet();
+                counter.transitions++;
+                if (event.sequence < counter.lastSequence)
+                    counter.outOfOrder = true;
+                counter.lastSequence = event.sequence;
+                counter.running.decrementAndGet();
+            }
+        });
+
+        final int machineCount = 10000;
+        final int events = 10;
+        final StateMachineImpl[] machines = new StateMachineImpl[machineCount];
+        final Counter[] counters = new Counter[machineCount];
+        for (int i = 0; i < machineCount; i++) {
+            machines[i] = StateMachines.newActor(definition, scheduler);
+            counters[i] = new Counter();
+        }
+
+        final List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+        for (int j = 0; j < events; j++) {
+            for (int i = 0; i < machineCount; i++)
+                results.add(machines[i].processEventAsync("NEXT", new Event(counters[i], j)));
+        }
+
+        for (CompletableFuture<String> result : results)
+            result.get(10, TimeUnit.SECONDS);
+
+        assertEquals(overlaps.get(), 0);
+        for (int i = 0; i < machineCount; i++) {
+            assertEquals(counters[i].transitions, events);
+            assertTrue(!counters[i].outOfOrder);
+            assertEquals(machines[i].getCurrentState(), "A");
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final AtomicInteger transitions = new AtomicInteger();
+        final StateMachineImpl sm = StateMachines.newActor(toggle(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                transitions.incrementAndGet();
+            }
+        }), scheduler);
+
+        final List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        CompletableFuture<String> result = sm.processEventAsync("NEXT", null);
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (Thread producer : producers)
+            producer.join();
+
+        for (CompletableFuture<String> result : results)
+            result.get(10, TimeUnit.SECONDS);
+
+        assertEquals(transitions.get(), 4000);
+        assertEquals(sm.getCurrentState(), "A");
+    }
+
+    @Test
+    public void testSynchronousProcessEvent() throws Exception {
+        StateMachineImpl sm = StateMachines.newActor(toggle(null), scheduler);
+        sm.processEvent("NEXT", null);
+        assertEquals(sm.getCurrentState(), "B");
+
+        try {
+            sm.processEvent("UNUSED", null);
+            fail("Exception not propagated");
+        } catch (TransitionNotDefinedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testControllersCannotWaitForEvents() throws Exception {
+        final AtomicReference<StateMachineImpl> other = new AtomicReference<StateMachineImpl>();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        StateMachineImpl sm = StateMachines.newActor(toggle(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                try {
+                    other.get().processEvent("NEXT", null);
+                } catch (StateMachineException e) {
+                    failure.set(e);
+                }
+            }
+        }), scheduler);
+        other.set(StateMachines.newActor(toggle(null), scheduler));
+
+        assertEquals(sm.processEventAsync("NEXT", null).get(10, TimeUnit.SECONDS), "B");
+        assertTrue(failure.get() instanceof ReentrantTransitionNotAllowed);
+        assertEquals(other.get().getCurrentState(), "A");
+    }
+
+    @Test
+    public void testShutdownScheduler() throws Exception {
+        StateMachineImpl sm = StateMachines.newActor(toggle(null), scheduler);
+        scheduler.shutdown();
+
+        try {
+            sm.processEventAsync("NEXT", null).get(10, TimeUnit.SECONDS);
+            fail("Event processed after shutdown");
+        } catch (ExecutionException e) {
+            assertEquals(e.getCause().getClass(), RejectedExecutionException.class);
+        }
+    }
+
+    /**
+     * Executor running the tasks only when asked to
+     */
+    private static class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runNext() {
+            tasks.poll().run();
+        }
+    }
+
+    @Test
+    public void testThroughputLimitWithinOneTake() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        StateMachineImpl sm = StateMachines.newActor(toggle(null), new ActorScheduler(executor, 2));
+
+        List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 5; i++)
+            results.add(sm.processEventAsync("NEXT", null));
+
+        executor.runNext();
+        assertTrue(results.get(1).isDone());
+        assertTrue(!results.get(2).isDone());
+        // Events arriving now go after the ones left by the limit
+        results.add(sm.processEventAsync("NEXT", null));
+
+        executor.runNext();
+        executor.runNext();
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(results.get(i).getNow(null), i % 2 == 0 ? "B" : "A");
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void testErrorsDoNotDropTheQueuedEvents() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        ManualExecutor executor = new ManualExecutor();
+        StateMachineImpl sm = StateMachines.newActor(toggle(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                if (calls.incrementAndGet() == 1)
+                    throw new AssertionError("Broken controller");
+            }
+        }), new ActorScheduler(executor, 8));
+
+        CompletableFuture<String> failed = sm.processEventAsync("NEXT", null);
+        CompletableFuture<String> second = sm.processEventAsync("NEXT", null);
+        CompletableFuture<String> third = sm.processEventAsync("NEXT", null);
+
+        boolean thrown = false;
+        try {
+            executor.runNext();
+        } catch (AssertionError e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+        try {
+            failed.getNow(null);
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+
+        executor.runNext();
+        assertEquals(second.getNow(null), "B");
+        assertEquals(third.getNow(null), "A");
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class FlyweightStrategyTest {
+    private static final String NEXT = "NEXT";
+
+    private StateMachineDefinitionImpl ring(int states, TransitionController controller)
+            throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        for (int i = 1; i < states; i++)
+            definition.defineState("S" + i);
+
+        definition.defineEvent(NEXT);
+        for (int i = 0; i < states; i++)
+            definition.defineTransition("S" + i, NEXT, "S" + ((i + 1) % states), controller);
+
+        return definition;
+    }
+
+    @Test
+    public void testStateMachinesShareTheStrategy() throws StateMachineException {
+        StateMachineDefinitionImpl definition = ring(3, null);
+        StateMachineImpl first = (StateMachineImpl) StateMachines.newFlyweight(definition);
+        StateMachineImpl second = (StateMachineImpl) StateMachines.newFlyweight(definition);
+        assertSame(first.getStrategy(), second.getStrategy());
+
+        first.processEvent(NEXT, null);
+        assertEquals(first.getCurrentState(), "S1");
+        assertEquals(second.getCurrentState(), "S0");
+    }
+
+    @Test
+    public void testReentranceIsNotAllowed() throws StateMachineException {
+        final AtomicReference<StateMachine> machine = new AtomicReference<StateMachine>();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        machine.set(StateMachines.newFlyweight(ring(3, new TransitionController() {
+            public void execute(TransitionInfo info) {
+                if (info.getObject() == null)
+                    return;
+
+                try {
+                    machine.get().processEvent(NEXT, null);
+                } catch (StateMachineException e) {
+                    error.set(e);
+                }
+            }
+        })));
+
+        machine.get().processEvent(NEXT, "reenter");
+        assertTrue(error.get() instanceof ReentrantTransitionNotAllowed);
+        assertEquals(machine.get().getCurrentState(), "S1");
+
+        // Not in a transition any more
+        machine.get().processEvent(NEXT, null);
+        assertEquals(machine.get().getCurrentState(), "S2");
+    }
+
+    @Test
+    public void testTransitionsAreSerialized() throws Exception {
+        final int threads = 8;
+        final int events = 10000;
+        final int[] unsafeCounter = new int[1];
+        final StateMachine sm = StateMachines.newFlyweight(ring(5, new TransitionController() {
+            public void execute(TransitionInfo info) {
+                unsafeCounter[0]++;
+            }
+        }));
+
+        List<Thread> workers = new ArrayList<Thread>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < events; i++)
+                            sm.processEvent(NEXT, null);
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        synchronized (sm) {
+            assertEquals(unsafeCounter[0], threads * events);
+        }
+        assertEquals(sm.getStateSnapshot().getSequence(), threads * events);
+    }
+}
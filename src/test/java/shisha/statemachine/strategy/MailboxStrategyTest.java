@@ -0,0 +1,237 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class MailboxStrategyTest {
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A <-> B, NEXT toggles between them
+     */
+    private StateMachineDefinitionImpl toggle(TransitionController controller) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("NEXT");
+        definition.defineEvent("UNUSED");
+        definition.defineTransition("A", "NEXT", "B", controller);
+        definition.defineTransition("B", "NEXT", "A", controller);
+        return definition;
+    }
+
+    @Test
+    public void testCallerDoesNotWaitForTheTransition() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        StateMachineImpl sm = StateMachines.newAsync(toggle(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }), executor);
+
+        CompletableFuture<String> first = sm.processEventAsync("NEXT", null);
+        CompletableFuture<String> second = sm.processEventAsync("NEXT", null);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        release.countDown();
+        assertEquals(first.get(5, TimeUnit.SECONDS), "B");
+        assertEquals(second.get(5, TimeUnit.SECONDS), "A");
+    }
+
+    @Test
+    public void testEventsFromManyThreadsAreProcessedOneAtATime() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger transitions = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final StateMachineImpl sm = StateMachines.newAsync(toggle(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                if (running.incrementAndGet() > 1)
+                    overlaps.incrementAndGet();
+                transitions.incrementAndGet();
+                running.decrementAndGet();
+            }
+        }), executor);
+
+        final List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        CompletableFuture<String> result = sm.processEventAsync("NEXT", null);
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (Thread producer : producers)
+            producer.join();
+
+        for (CompletableFuture<String> result : results)
+            result.get(5, TimeUnit.SECONDS);
+
+        assertEquals(transitions.get(), 4000);
+        assertEquals(overlaps.get(), 0);
+        assertEquals(sm.processEventAsync("NEXT", null).get(5, TimeUnit.SECONDS), "B");
+    }
+
+    @Test
+    public void testFailuresCompleteTheFuture() throws Exception {
+        StateMachineImpl sm = StateMachines.newAsync(toggle(null), executor);
+
+        assertCause(sm.processEventAsync("UNDEFINED", null), EventNotDefinedException.class);
+        assertCause(sm.processEventAsync("UNUSED", null), TransitionNotDefinedException.class);
+        assertEquals(sm.processEventAsync("NEXT", null).get(5, TimeUnit.SECONDS), "B");
+    }
+
+    @Test
+    public void testSynchronousProcessEventWaits() throws Exception {
+        StateMachineImpl sm = StateMachines.newAsync(toggle(null), executor);
+        sm.processEvent("NEXT", null);
+        assertEquals(sm.getCurrentState(), "B");
+
+        try {
+            sm.processEvent("UNUSED", null);
+            fail("Exception not propagated");
+        } catch (TransitionNotDefinedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testControllersCanOnlyQueueEvents() throws Exception {
+        final AtomicReference<StateMachineImpl> machine = new AtomicReference<StateMachineImpl>();
+        final AtomicReference<Exception> syncFailure = new AtomicReference<Exception>();
+        final AtomicReference<CompletableFuture<String>> queued = new AtomicReference<CompletableFuture<String>>();
+
+        StateMachineDefinitionImpl definition = toggle(null);
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                try {
+                    machine.get().processEvent("NEXT", null);
+                } catch (StateMachineException e) {
+                    syncFailure.set(e);
+                }
+                if (queued.get() == null)
+                    queued.set(machine.get().processEventAsync("NEXT", null));
+                return null;
+            }
+        });
+        machine.set(StateMachines.newAsync(definition, executor));
+
+        assertEquals(machine.get().processEventAsync("NEXT", null).get(5, TimeUnit.SECONDS), "B");
+        assertEquals(queued.get().get(5, TimeUnit.SECONDS), "A");
+        assertTrue(syncFailure.get() instanceof ReentrantTransitionNotAllowed);
+    }
+
+    @Test
+    public void testRejectedExecution() throws Exception {
+        StateMachineImpl sm = StateMachines.newAsync(toggle(null), new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("Shut down");
+            }
+        });
+
+        assertCause(sm.processEventAsync("NEXT", null), RejectedExecutionException.class);
+        assertEquals(sm.getCurrentState(), "A");
+    }
+
+    @Test
+    public void testErrorsCompleteTheResult() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        StateMachineImpl sm = StateMachines.newAsync(toggle(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                if (calls.incrementAndGet() == 1)
+                    throw new AssertionError("Broken controller");
+            }
+        }), executor);
+
+        assertCause(sm.processEventAsync("NEXT", null), AssertionError.class);
+        // The mailbox goes on with the following events
+        assertEquals(sm.processEventAsync("NEXT", null).get(5, TimeUnit.SECONDS), "B");
+    }
+
+    @Test
+    public void testSynchronousStrategiesCompleteImmediately() throws Exception {
+        StateMachineImpl sm = new StateMachineImpl(toggle(null), new NonReentrantStrategy());
+
+        CompletableFuture<String> result = sm.processEventAsync("NEXT", null);
+        assertTrue(result.isDone());
+        assertEquals(result.get(), "B");
+        assertCause(sm.processEventAsync("UNUSED", null), TransitionNotDefinedException.class);
+    }
+
+    private void assertCause(CompletableFuture<String> result, Class<? extends Throwable> expected)
+            throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            assertEquals(e.getCause().getClass(), expected);
+        }
+    }
+}
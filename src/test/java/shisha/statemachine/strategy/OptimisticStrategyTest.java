@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.EventOutcome;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.ConstraintException;
+import shisha.statemachine.exceptions.RedirectLimitExceededException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class OptimisticStrategyTest {
+    private static final String NEXT = "NEXT";
+    private static final String JUMP = "JUMP";
+
+    /**
+     * S0 -NEXT-> S1 -NEXT-> ... -NEXT-> S0
+     */
+    private StateMachineDefinitionImpl ring(int states, TransitionController controller)
+            throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        for (int i = 1; i < states; i++)
+            definition.defineState("S" + i);
+
+        definition.defineEvent(NEXT);
+        definition.defineEvent(JUMP);
+        for (int i = 0; i < states; i++)
+            definition.defineTransition("S" + i, NEXT, "S" + ((i + 1) % states), controller);
+
+        return definition;
+    }
+
+    @Test
+    public void testConcurrentEventsAreNotLost() throws Exception {
+        final int states = 7;
+        final int threads = 8;
+        final int events = 20000;
+        final AtomicInteger transitions = new AtomicInteger();
+        final StateMachine sm = StateMachines.newOptimistic(ring(states, new TransitionController() {
+            public void execute(TransitionInfo info) {
+                transitions.incrementAndGet();
+            }
+        }));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < events; i++)
+                            sm.processEvent(NEXT, null);
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(transitions.get(), threads * events);
+        assertEquals(sm.getCurrentState(), "S" + (threads * events % states));
+    }
+
+    @Test
+    public void testRedirectionsRunAfterTheCommit() throws StateMachineException {
+        StateMachineDefinitionImpl definition = ring(3, null);
+        definition.defineEnterState("S1", new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                return new EventInfo(NEXT, null);
+            }
+        });
+
+        StateMachine sm = StateMachines.newOptimistic(definition);
+        sm.processEvent(NEXT, null);
+        assertEquals(sm.getCurrentState(), "S2");
+    }
+
+    @Test
+    public void testRedirectLoopIsDetected() throws StateMachineException {
+        StateMachineDefinitionImpl definition = ring(2, null);
+        EnterStateController redirect = new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                return new EventInfo(NEXT, null);
+            }
+        };
+        definition.defineEnterState("S0", redirect);
+        definition.defineEnterState("S1", redirect);
+
+        OptimisticStrategy strategy = new OptimisticStrategy();
+        strategy.setMaxRedirects(10);
+        StateMachine sm = new StateMachineImpl(definition, strategy);
+        try {
+            sm.processEvent(NEXT, null);
+            assertFalse(true, "Redirect loop not detected");
+        } catch (RedirectLimitExceededException e) {
+            // Expected
+        }
+    }
+
+    @Test(expectedExceptions = TransitionNotDefinedException.class)
+    public void testUndefinedTransitionLeavesTheState() throws StateMachineException {
+        StateMachine sm = StateMachines.newOptimistic(ring(3, null));
+        try {
+            sm.processEvent(JUMP, null);
+        } finally {
+            assertEquals(sm.getCurrentState(), "S0");
+        }
+    }
+
+    @Test(expectedExceptions = ConstraintException.class)
+    public void testExitControllersAreRejected() throws StateMachineException {
+        StateMachineDefinitionImpl definition = ring(3, null);
+        definition.defineExitState("S1", new ExitStateController() {
+            public Boolean execute(TransitionInfo info) {
+                return true;
+            }
+        });
+        StateMachines.newOptimistic(definition);
+    }
+
+    @Test
+    public void testExitControllersAreRejectedWhenProcessing() throws StateMachineException {
+        StateMachineDefinitionImpl definition = ring(3, null);
+        definition.defineExitState("S1", new ExitStateController() {
+            public Boolean execute(TransitionInfo info) {
+                return true;
+            }
+        });
+
+        StateMachine sm = new StateMachineImpl(definition, new OptimisticStrategy());
+        sm.processEvent(NEXT, null);
+        try {
+            sm.processEvent(NEXT, null);
+            assertFalse(true, "Exit controller accepted");
+        } catch (ConstraintException e) {
+            assertEquals(sm.getCurrentState(), "S1");
+        }
+    }
+
+    @Test
+    public void testBatchesAreProcessedOneByOne() throws StateMachineException {
+        StateMachine sm = StateMachines.newOptimistic(ring(3, null));
+
+        List<EventOutcome> outcomes = sm.processEvents(Arrays.asList(new EventInfo(NEXT, null), new EventInfo(
+                JUMP, null), new EventInfo(NEXT, null)), true);
+        assertEquals(outcomes.get(0).getStatus(), EventOutcome.Status.APPLIED);
+        assertEquals(outcomes.get(1).getStatus(), EventOutcome.Status.REJECTED);
+        assertEquals(outcomes.get(2).getStatus(), EventOutcome.Status.APPLIED);
+        assertEquals(sm.getCurrentState(), "S2");
+    }
+}
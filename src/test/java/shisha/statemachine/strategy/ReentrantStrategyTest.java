@@ -0,0 +1,374 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.EventOutcome;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.LockTimeoutException;
+import shisha.statemachine.exceptions.RedirectLimitExceededException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class ReentrantStrategyTest {
+    private static final String GO = "GO";
+
+    private static final EnterStateController REDIRECT = new EnterStateController() {
+        public EventInfo execute(TransitionInfo info) {
+            return new EventInfo(GO, info.getObject());
+        }
+    };
+
+    /**
+     * S0 -GO-> S1 -GO-> ... -GO-> S<length>, redirecting from every state but
+     * the last one. With <code>loop</code>, the last state goes back to S1.
+     */
+    private StateMachineDefinitionImpl chain(int length, boolean loop) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        definition.defineEvent(GO);
+        for (int i = 1; i <= length; i++) {
+            definition.defineState("S" + i);
+            definition.defineTransition("S" + (i - 1), GO, "S" + i, null);
+            if (i < length || loop)
+                definition.defineEnterState("S" + i, REDIRECT);
+        }
+        if (loop)
+            definition.defineTransition("S" + length, GO, "S1", null);
+
+        return definition;
+    }
+
+    @Test
+    public void testDeepRedirectChainDoesNotGrowTheStack() throws StateMachineException {
+        ReentrantStrategy strategy = new ReentrantStrategy();
+        strategy.setMaxRedirects(Integer.MAX_VALUE);
+        StateMachine sm = new StateMachineImpl(chain(50000, false), strategy);
+
+        sm.processEvent(GO, null);
+        assertEquals(sm.getCurrentState(), "S50000");
+    }
+
+    @Test
+    public void testRedirectLoopIsDetected() throws StateMachineException {
+        ReentrantStrategy strategy = new ReentrantStrategy();
+        strategy.setMaxRedirects(10);
+        StateMachine sm = new StateMachineImpl(chain(3, true), strategy);
+
+        try {
+            sm.processEvent(GO, null);
+            fail("Redirect loop not detected");
+        } catch (RedirectLimitExceededException e) {
+            // S0 -> S1 plus 10 redirections through S2, S3, S1...
+            assertEquals(sm.getCurrentState(), "S2");
+        }
+
+        // The lock and the reentrance check have been released
+        strategy.setMaxRedirects(0);
+        try {
+            sm.processEvent(GO, null);
+            fail("Redirect not limited");
+        } catch (RedirectLimitExceededException e) {
+            assertEquals(sm.getCurrentState(), "S3");
+        }
+    }
+
+    @Test
+    public void testRedirectChainWithinTheLimit() throws StateMachineException {
+        ReentrantStrategy strategy = new NonReentrantStrategy();
+        strategy.setMaxRedirects(4);
+        StateMachine sm = new StateMachineImpl(chain(5, false), strategy);
+
+        sm.processEvent(GO, null);
+        assertEquals(sm.getCurrentState(), "S5");
+    }
+
+    /**
+     * A -TICK-> A running <code>controller</code>
+     */
+    private StateMachineDefinitionImpl ticking(TransitionController controller) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineEvent("TICK");
+        definition.defineTransition("A", "TICK", "A", controller);
+        return definition;
+    }
+
+    private static class Counter implements TransitionController {
+        private int transitions;
+        private int running;
+        private boolean overlapped;
+
+        public void execute(TransitionInfo info) {
+            if (++running > 1)
+                overlapped = true;
+            transitions++;
+            running--;
+        }
+    }
+
+    @Test
+    public void testBlockingLockUnderContention() throws Exception {
+        Counter counter = new Counter();
+        final StateMachine sm = new StateMachineImpl(ticking(counter), new NonReentrantStrategy());
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 10000; j++)
+                            sm.processEvent("TICK", null);
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get());
+        assertEquals(counter.transitions, 80000);
+        assertFalse(counter.overlapped);
+    }
+
+    /**
+     * Runs a transition in another thread that keeps the lock until the
+     * returned latch is released
+     */
+    private CountDownLatch holdLock(final StateMachine sm, final CountDownLatch locked) throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            public void run() {
+                try {
+                    sm.processEvent("TICK", release);
+                } catch (StateMachineException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        holder.setDaemon(true);
+        holder.start();
+        locked.await();
+        return release;
+    }
+
+    private TransitionController blockingController(final CountDownLatch locked) {
+        return new TransitionController() {
+            public void execute(TransitionInfo info) {
+                if (info.getObject() == null)
+                    return;
+
+                locked.countDown();
+                try {
+                    ((CountDownLatch) info.getObject()).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testTryOnceRejectsTheEvent() throws Exception {
+        CountDownLatch locked = new CountDownLatch(1);
+        StateMachine sm = new StateMachineImpl(ticking(blockingController(locked)), new NonReentrantStrategy(
+                LockPolicy.tryOnce()));
+
+        CountDownLatch release = holdLock(sm, locked);
+        try {
+            sm.processEvent("TICK", null);
+            fail("Event processed without the lock");
+        } catch (LockTimeoutException e) {
+            // expected
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testTimeoutPerEvent() throws Exception {
+        CountDownLatch locked = new CountDownLatch(1);
+        StateMachine sm = new StateMachineImpl(ticking(blockingController(locked)), new NonReentrantStrategy());
+
+        CountDownLatch release = holdLock(sm, locked);
+        long start = System.nanoTime();
+        try {
+            sm.processEvent("TICK", null, 50, TimeUnit.MILLISECONDS);
+            fail("Event processed without the lock");
+        } catch (LockTimeoutException e) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        } finally {
+            release.countDown();
+        }
+
+        // Once released, the lock is acquired in time
+        sm.processEvent("TICK", null, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testRejectedReentranceKeepsTheTransitionInProgress() throws Exception {
+        final AtomicReference<StateMachine> sm = new AtomicReference<StateMachine>();
+        final AtomicInteger rejected = new AtomicInteger();
+        sm.set(new StateMachineImpl(ticking(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                if (info.getObject() != null)
+                    return;
+
+                for (int i = 0; i < 2; i++) {
+                    try {
+                        sm.get().processEvent("TICK", "nested");
+                    } catch (ReentrantTransitionNotAllowed e) {
+                        rejected.incrementAndGet();
+                    } catch (StateMachineException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }), new NonReentrantStrategy()));
+
+        sm.get().processEvent("TICK", null);
+        assertEquals(rejected.get(), 2);
+    }
+
+    /**
+     * S0 -GO-> S1 -GO-> S2, where leaving S1 is cancelled once
+     */
+    private StateMachineImpl batchMachine(final AtomicBoolean cancel) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        definition.defineState("S1");
+        definition.defineState("S2");
+        definition.defineEvent(GO);
+        definition.defineEvent("UNKNOWN_TRANSITION");
+        definition.defineTransition("S0", GO, "S1", null);
+        definition.defineTransition("S1", GO, "S2", null);
+        definition.defineExitState("S1", new ExitStateController() {
+            public Boolean execute(TransitionInfo info) {
+                return !cancel.getAndSet(false);
+            }
+        });
+        return new StateMachineImpl(definition, new NonReentrantStrategy());
+    }
+
+    private static List<EventInfo> events(String... names) {
+        EventInfo[] events = new EventInfo[names.length];
+        for (int i = 0; i < names.length; i++)
+            events[i] = new EventInfo(names[i], null);
+
+        return Arrays.asList(events);
+    }
+
+    private static void assertOutcomes(List<EventOutcome> outcomes, EventOutcome.Status... expected) {
+        assertEquals(outcomes.size(), expected.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(outcomes.get(i).getStatus(), expected[i], "Event " + i);
+    }
+
+    @Test
+    public void testBatchReportsEveryEvent() throws StateMachineException {
+        StateMachineImpl sm = batchMachine(new AtomicBoolean(true));
+
+        List<EventOutcome> outcomes = sm.processEvents(events(GO, GO, "NOT_AN_EVENT", GO), true);
+        assertOutcomes(outcomes, EventOutcome.Status.APPLIED, EventOutcome.Status.CANCELLED,
+                EventOutcome.Status.REJECTED, EventOutcome.Status.APPLIED);
+        assertEquals(sm.getCurrentState(), "S2");
+        assertNull(outcomes.get(0).getException());
+    }
+
+    @Test
+    public void testBatchStopsAtTheFirstFailure() throws StateMachineException {
+        StateMachineImpl sm = batchMachine(new AtomicBoolean(false));
+
+        List<EventOutcome> outcomes = sm.processEvents(events(GO, "UNKNOWN_TRANSITION", GO));
+        assertOutcomes(outcomes, EventOutcome.Status.APPLIED, EventOutcome.Status.REJECTED,
+                EventOutcome.Status.SKIPPED);
+        assertTrue(outcomes.get(1).getException() instanceof TransitionNotDefinedException);
+        assertEquals(sm.getCurrentState(), "S1");
+    }
+
+    @Test
+    public void testBatchReportsFailingControllers() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        definition.defineState("S1");
+        definition.defineEvent(GO);
+        definition.defineTransition("S0", GO, "S1", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                throw new IllegalStateException("Failing controller");
+            }
+        });
+        definition.defineTransition("S1", GO, "S0", null);
+        StateMachineImpl sm = new StateMachineImpl(definition, new NonReentrantStrategy());
+
+        List<EventOutcome> outcomes = sm.processEvents(events(GO, GO), true);
+        assertOutcomes(outcomes, EventOutcome.Status.FAILED, EventOutcome.Status.FAILED);
+        assertTrue(outcomes.get(0).getException() instanceof IllegalStateException);
+        assertEquals(sm.getCurrentState(), "S0");
+
+        // The transition in progress flag has been cleared
+        assertOutcomes(sm.processEvents(events(GO)), EventOutcome.Status.FAILED);
+    }
+
+    @Test
+    public void testBatchFromATransitionIsNotAllowed() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        definition.defineState("S1");
+        definition.defineEvent(GO);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        final AtomicReference<StateMachineImpl> machine = new AtomicReference<StateMachineImpl>();
+        definition.defineTransition("S0", GO, "S1", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                try {
+                    machine.get().processEvents(events(GO));
+                } catch (StateMachineException e) {
+                    error.set(e);
+                }
+            }
+        });
+        machine.set(new StateMachineImpl(definition, new NonReentrantStrategy()));
+
+        machine.get().processEvent(GO, null);
+        assertTrue(error.get() instanceof ReentrantTransitionNotAllowed);
+    }
+}
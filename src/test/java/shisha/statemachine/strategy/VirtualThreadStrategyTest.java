@@ -0,0 +1,146 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.CompiledStateMachineDefinition;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+
+public class VirtualThreadStrategyTest {
+    private static final long BLOCKING_MILLIS = 20;
+
+    private CompiledStateMachineDefinition blocking(TransitionController controller) throws Exception {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("IDLE", true, false);
+        definition.defineState("DONE");
+        definition.defineEvent("CALL");
+        definition.defineTransition("IDLE", "CALL", "DONE", controller);
+        return definition.compile();
+    }
+
+    @Test
+    public void testBlockingControllersRunConcurrently() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        CompiledStateMachineDefinition definition = blocking(new TransitionController() {
+            public void execute(TransitionInfo info) {
+                thread.set(Thread.currentThread());
+                try {
+                    // Simulates a call to a blocking service
+                    Thread.sleep(BLOCKING_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                calls.incrementAndGet();
+            }
+        });
+
+        int machines = 2000;
+        CompletableFuture<?>[] results = new CompletableFuture<?>[machines];
+        long start = System.nanoTime();
+        for (int i = 0; i < machines; i++)
+            results[i] = StateMachines.newVirtual(definition).processEventAsync("CALL", null);
+        CompletableFuture.allOf(results).get(60, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(calls.get(), machines);
+        // One machine after the other would take 40 seconds
+        assertTrue(elapsed < machines * BLOCKING_MILLIS / 4, "Took " + elapsed + " ms");
+
+        if (VirtualThreads.isAvailable())
+            assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread.get()));
+    }
+
+    @Test
+    public void testEventsOfOneMachineAreSequential() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineEvent("SELF");
+        definition.defineTransition("A", "SELF", "A", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                if (running.incrementAndGet() > 1)
+                    overlaps.incrementAndGet();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            }
+        });
+
+        StateMachineImpl sm = StateMachines.newVirtual(definition);
+        CompletableFuture<?>[] results = new CompletableFuture<?>[100];
+        for (int i = 0; i < results.length; i++)
+            results[i] = sm.processEventAsync("SELF", null);
+        CompletableFuture.allOf(results).get(60, TimeUnit.SECONDS);
+
+        assertEquals(overlaps.get(), 0);
+    }
+
+    @Test
+    public void testManyBlockingMachinesReachTheirFinalState() throws Exception {
+        if (!VirtualThreads.isAvailable())
+            throw new SkipException("Virtual threads not available");
+
+        final AtomicInteger calls = new AtomicInteger();
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("IDLE", true, false);
+        definition.defineState("DONE", false, true);
+        definition.defineEvent("CALL");
+        definition.defineTransition("IDLE", "CALL", "DONE", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                try {
+                    Thread.sleep(BLOCKING_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                calls.incrementAndGet();
+            }
+        });
+        CompiledStateMachineDefinition compiled = definition.compile();
+
+        int machines = 100000;
+        StateMachine[] statemachines = new StateMachine[machines];
+        CompletableFuture<?>[] results = new CompletableFuture<?>[machines];
+        for (int i = 0; i < machines; i++) {
+            statemachines[i] = StateMachines.newVirtual(compiled);
+            results[i] = statemachines[i].processEventAsync("CALL", null);
+        }
+        CompletableFuture.allOf(results).get(120, TimeUnit.SECONDS);
+
+        assertEquals(calls.get(), machines);
+        for (int i = 0; i < machines; i++)
+            assertEquals(statemachines[i].getCurrentState(), "DONE", "Machine " + i);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.typed;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.EnumSet;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.StateMachineStrategy;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+import shisha.statemachine.strategy.FlyweightStrategy;
+import shisha.statemachine.strategy.OptimisticStrategy;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+public class EnumStateMachineTest {
+    enum State {
+        IDLE, CONNECTING, CONNECTED, CLOSED
+    }
+
+    enum Event {
+        CONNECT, CONNECTED, DISCONNECT, CLOSE
+    }
+
+    private EnumStateMachineDefinition<State, Event> definition() throws StateMachineException {
+        EnumStateMachineDefinition<State, Event> definition = new EnumStateMachineDefinition<State, Event>(
+                State.class, Event.class, State.IDLE, EnumSet.of(State.CLOSED));
+        definition.defineTransition(State.IDLE, Event.CONNECT, State.CONNECTING);
+        definition.defineTransition(State.CONNECTING, Event.CONNECTED, State.CONNECTED);
+        definition.defineTransition(State.CONNECTED, Event.DISCONNECT, State.IDLE);
+        definition.defineTransition(State.IDLE, Event.CLOSE, State.CLOSED);
+        return definition;
+    }
+
+    @Test
+    public void testDefinition() throws StateMachineException {
+        EnumStateMachineDefinition<State, Event> definition = definition();
+
+        assertEquals(definition.getStartState(), State.IDLE);
+        assertEquals(definition.getFinalStates(), EnumSet.of(State.CLOSED));
+        assertEquals(definition.getApplicableEvents(State.IDLE), EnumSet.of(Event.CONNECT, Event.CLOSE));
+        assertTrue(definition.getApplicableEvents(State.CLOSED).isEmpty());
+        assertEquals(definition.getTargetState(State.CONNECTING, Event.CONNECTED), State.CONNECTED);
+
+        // The String view uses the names of the constants
+        assertEquals(definition.getDefinition().getStartState(), "IDLE");
+        assertEquals(definition.getDefinition().getTargetState("IDLE", "CONNECT"), "CONNECTING");
+
+        try {
+            definition.getTargetState(State.CLOSED, Event.CONNECT);
+            fail();
+        } catch (TransitionNotDefinedException e) {
+        }
+    }
+
+    @Test
+    public void testOrdinals() throws StateMachineException {
+        EnumStateMachineDefinition<State, Event> definition = definition();
+        for (State state : State.values())
+            assertEquals(definition.compile().getStateName(state.ordinal()), state.name());
+        for (Event event : Event.values())
+            assertEquals(definition.compile().getEventName(event.ordinal()), event.name());
+    }
+
+    private void run(StateMachineStrategy strategy) throws StateMachineException {
+        EnumStateMachineDefinition<State, Event> definition = definition();
+        definition.freeze();
+        EnumStateMachine<State, Event> statemachine = new EnumStateMachine<State, Event>(definition, strategy);
+        assertEquals(statemachine.getState(), State.IDLE);
+
+        statemachine.processEvent(Event.CONNECT, null);
+        assertEquals(statemachine.getState(), State.CONNECTING);
+        assertEquals(statemachine.getCurrentState(), "CONNECTING");
+
+        statemachine.processEvent(Event.CONNECTED, null);
+        statemachine.processEvent("DISCONNECT", null);
+        assertEquals(statemachine.getState(), State.IDLE);
+
+        try {
+            statemachine.processEvent(Event.CONNECTED, null);
+            fail();
+        } catch (TransitionNotDefinedException e) {
+        }
+        assertEquals(statemachine.getState(), State.IDLE);
+
+        statemachine.processEvent(Event.CLOSE, null);
+        assertEquals(statemachine.getState(), State.CLOSED);
+    }
+
+    @Test
+    public void testStrategies() throws StateMachineException {
+        run(new ReentrantStrategy());
+        run(FlyweightStrategy.SHARED);
+        run(new OptimisticStrategy());
+    }
+
+    @Test
+    public void testControllersSeeNames() throws StateMachineException {
+        EnumStateMachineDefinition<State, Event> definition = new EnumStateMachineDefinition<State, Event>(
+                State.class, Event.class, State.IDLE);
+        final StringBuilder seen = new StringBuilder();
+        definition.defineTransition(State.IDLE, Event.CONNECT, State.CONNECTING, new TransitionController() {
+            public void execute(TransitionInfo info) {
+                seen.append(info.getSource()).append(' ').append(info.getEvent()).append(' ')
+                        .append(info.getTarget());
+            }
+        });
+        definition.defineTransition(State.CONNECTING, Event.CONNECTED, State.CONNECTED);
+        // Redirections are still by name
+        definition.defineEnterState(State.CONNECTING, new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                return new EventInfo(Event.CONNECTED.name(), null);
+            }
+        });
+
+        EnumStateMachine<State, Event> statemachine = new EnumStateMachine<State, Event>(definition,
+                new ReentrantStrategy());
+        statemachine.processEvent(Event.CONNECT, null);
+
+        assertEquals(seen.toString(), "IDLE CONNECT CONNECTING");
+        assertEquals(statemachine.getState(), State.CONNECTED);
+        assertTrue(definition.getFinalStates().isEmpty());
+    }
+}